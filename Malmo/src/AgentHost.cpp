@@ -81,11 +81,11 @@ namespace malmo
 
     void AgentHost::startMission(const MissionSpec& mission, const ClientPool& client_pool, const MissionRecordSpec& mission_record, int role, std::string unique_experiment_id)
     {
-        if( mission.isVideoRequested( role ) ) 
+        for( int stream = 0; stream < mission.getVideoStreamCount( role ); stream++ )
         {
-            if( mission.getVideoWidth( role ) % 4 )
+            if( mission.getVideoStreamWidth( role, stream ) % 4 )
                 throw std::runtime_error("Video width must be divisible by 4.");
-            if( mission.getVideoHeight( role ) % 2 )
+            if( mission.getVideoStreamHeight( role, stream ) % 2 )
                 throw std::runtime_error("Video height must be divisible by 2.");
         }
         
@@ -126,12 +126,9 @@ namespace malmo
         this->current_role = role;
 
         listenForMissionControlMessages(this->current_mission_init->getAgentMissionControlPort());
-        if (mission.isVideoRequested(this->current_role))
+        if (mission.getVideoStreamCount(this->current_role) > 0)
         {
-            listenForVideo(this->current_mission_init->getAgentVideoPort(),
-                mission.getVideoWidth(this->current_role),
-                mission.getVideoHeight(this->current_role),
-                mission.getVideoChannels(this->current_role));
+            listenForVideo(this->current_mission_init->getAgentVideoPort(), mission, this->current_role);
         }
         listenForRewards(this->current_mission_init->getAgentRewardsPort());
         listenForObservations(this->current_mission_init->getAgentObservationsPort());
@@ -273,17 +270,41 @@ namespace malmo
         this->mission_control_server->start();
     }
     
-    void AgentHost::listenForVideo( int port, short width, short height, short channels )
+    void AgentHost::listenForVideo( int port, const MissionSpec& mission, int role )
     {
-        if( !this->video_server || 
-            (port != 0 && this->video_server->getPort() != port ) ||
-            this->video_server->getWidth() != width || 
-            this->video_server->getHeight() != height ||
-            this->video_server->getChannels() != channels )
+        // All the streams come in on the one port - the existing server will do if it has the same port and streams:
+        const int num_streams = mission.getVideoStreamCount( role );
+        bool reuse = this->video_server &&
+            ( port == 0 || this->video_server->getPort() == port ) &&
+            this->video_server->getNumStreams() == num_streams &&
+            this->video_server->hasFrameHeader() == mission.isVideoFrameHeaderRequested();
+        for( int stream = 0; reuse && stream < num_streams; stream++ )
         {
-            this->video_server = boost::make_shared<VideoServer>( this->io_service, port, width, height, channels, boost::bind(&AgentHost::onVideo, this, _1));
+            reuse = this->video_server->getWidth( stream ) == mission.getVideoStreamWidth( role, stream ) &&
+                this->video_server->getHeight( stream ) == mission.getVideoStreamHeight( role, stream ) &&
+                this->video_server->getChannels( stream ) == mission.getVideoStreamChannels( role, stream ) &&
+                this->video_server->isStreamEncoded( stream ) == ( mission.getVideoStreamEncoding( role, stream ) != "raw" );
+        }
+
+        // Only the VideoProducer's stream (always the first, if present) is recorded:
+        const bool record_mp4 = this->current_mission_record->isRecordingMP4() && mission.isVideoRequested( role );
 
-            if (this->current_mission_record->isRecordingMP4()){
+        if( !reuse )
+        {
+            this->video_server = boost::make_shared<VideoServer>( this->io_service, port,
+                mission.getVideoStreamWidth( role, 0 ), mission.getVideoStreamHeight( role, 0 ), mission.getVideoStreamChannels( role, 0 ),
+                boost::bind(&AgentHost::onVideo, this, _1));
+            for( int stream = 1; stream < num_streams; stream++ )
+            {
+                this->video_server->addStream( mission.getVideoStreamWidth( role, stream ), mission.getVideoStreamHeight( role, stream ), mission.getVideoStreamChannels( role, stream ) );
+            }
+            for( int stream = 0; stream < num_streams; stream++ )
+            {
+                this->video_server->setStreamEncoded( stream, mission.getVideoStreamEncoding( role, stream ) != "raw" );
+            }
+            this->video_server->setFrameHeader( mission.isVideoFrameHeaderRequested() );
+
+            if (record_mp4){
                 this->video_server->recordMP4(this->current_mission_record->getMP4Path(), this->current_mission_record->getMP4FramesPerSecond(), this->current_mission_record->getMP4BitRate());
             }
             
@@ -292,7 +313,7 @@ namespace malmo
         else {
             // re-use the existing video_server
             // but now we need to re-create the file writers with the new file names
-            if (this->current_mission_record->isRecordingMP4()){
+            if (record_mp4){
                 this->video_server->recordMP4(this->current_mission_record->getMP4Path(), this->current_mission_record->getMP4FramesPerSecond(), this->current_mission_record->getMP4BitRate());
             }
         }
@@ -473,9 +494,19 @@ namespace malmo
         switch( this->video_policy )
         {
             case VideoPolicy::LATEST_FRAME_ONLY:
-                this->world_state.video_frames.clear();
-                this->world_state.video_frames.push_back( boost::make_shared<TimestampedVideoFrame>( message ) );
+            {
+                // Keep the latest frame of each stream:
+                std::vector< boost::shared_ptr< TimestampedVideoFrame > >& frames = this->world_state.video_frames;
+                for( auto it = frames.begin(); it != frames.end(); )
+                {
+                    if( (*it)->stream == message.stream )
+                        it = frames.erase( it );
+                    else
+                        ++it;
+                }
+                frames.push_back( boost::make_shared<TimestampedVideoFrame>( message ) );
                 break;
+            }
             case VideoPolicy::KEEP_ALL_FRAMES:
                 this->world_state.video_frames.push_back( boost::make_shared<TimestampedVideoFrame>( message ) );
                 break;
@@ -46,7 +46,7 @@ namespace malmo
 
             //! Specifies what to do when there are more video frames being received than can be processed.
             enum VideoPolicy { 
-                  LATEST_FRAME_ONLY          //!< Discard all but the most recent frame. This is the default.
+                  LATEST_FRAME_ONLY          //!< Discard all but the most recent frame of each video stream. This is the default.
                 , KEEP_ALL_FRAMES            //!< Attempt to store all of the frames.
             };
 
@@ -121,7 +121,7 @@ namespace malmo
             void searchThroughClientPool( const ClientPool& client_pool, bool looking_for_server );
         
             void listenForMissionControlMessages( int port );
-            void listenForVideo( int port, short width, short height, short channels );
+            void listenForVideo( int port, const MissionSpec& mission, int role );
             void listenForRewards( int port );
             void listenForObservations( int port );
             
@@ -350,12 +350,24 @@ public:
   int getNumberOfAgents() const;
 
   bool isVideoRequested(int role) const;
+  bool isVideoFrameHeaderRequested() const;
 
   int getVideoWidth(int role) const;
 
   int getVideoHeight(int role) const;
 
   int getVideoChannels(int role) const;
+
+  int getVideoStreamCount(int role) const;
+
+  std::string getVideoStreamType(int role, int stream) const;
+
+  int getVideoStreamWidth(int role, int stream) const;
+
+  int getVideoStreamHeight(int role, int stream) const;
+
+  int getVideoStreamChannels(int role, int stream) const;
+  std::string getVideoStreamEncoding(int role, int stream) const;
 };
 
 struct TimestampedString {
@@ -399,7 +411,21 @@ public:
 
   const short channels;
 
+  const short stream;
+
   const std::vector<unsigned char> pixels;
+
+  const bool has_header;
+
+  const int64_t world_tick;
+
+  const int64_t capture_time;
+
+  const int64_t frame_sequence;
+
+  const double x, y, z;
+
+  const float yaw, pitch;
 };
 
 struct ClientInfo {
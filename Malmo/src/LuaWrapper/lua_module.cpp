@@ -231,9 +231,16 @@ MODULE_EXPORT int luaopen_libMalmoLua(lua_State* L)
             .def("allowAllChatCommands",      &MissionSpec::allowAllChatCommands)
             .def("getNumberOfAgents",         &MissionSpec::getNumberOfAgents)
             .def("isVideoRequested",          &MissionSpec::isVideoRequested)
+            .def("isVideoFrameHeaderRequested", &MissionSpec::isVideoFrameHeaderRequested)
             .def("getVideoWidth",             &MissionSpec::getVideoWidth)
             .def("getVideoHeight",            &MissionSpec::getVideoHeight)
             .def("getVideoChannels",          &MissionSpec::getVideoChannels)
+            .def("getVideoStreamCount",       &MissionSpec::getVideoStreamCount)
+            .def("getVideoStreamType",        &MissionSpec::getVideoStreamType)
+            .def("getVideoStreamWidth",       &MissionSpec::getVideoStreamWidth)
+            .def("getVideoStreamHeight",      &MissionSpec::getVideoStreamHeight)
+            .def("getVideoStreamChannels",    &MissionSpec::getVideoStreamChannels)
+            .def("getVideoStreamEncoding",    &MissionSpec::getVideoStreamEncoding)
             .def(tostring(const_self))
         ,
         class_< MissionRecordSpec >("MissionRecordSpec")
@@ -289,7 +296,17 @@ MODULE_EXPORT int luaopen_libMalmoLua(lua_State* L)
             .def_readonly("width",        &TimestampedVideoFrame::width)
             .def_readonly("height",       &TimestampedVideoFrame::height)
             .def_readonly("channels",     &TimestampedVideoFrame::channels)
+            .def_readonly("stream",       &TimestampedVideoFrame::stream)
             .def_readonly("pixels",       &TimestampedVideoFrame::pixels,               return_stl_iterator )
+            .def_readonly("has_header",   &TimestampedVideoFrame::has_header)
+            .def_readonly("world_tick",   &TimestampedVideoFrame::world_tick)
+            .def_readonly("capture_time", &TimestampedVideoFrame::capture_time)
+            .def_readonly("frame_sequence", &TimestampedVideoFrame::frame_sequence)
+            .def_readonly("x",            &TimestampedVideoFrame::x)
+            .def_readonly("y",            &TimestampedVideoFrame::y)
+            .def_readonly("z",            &TimestampedVideoFrame::z)
+            .def_readonly("yaw",          &TimestampedVideoFrame::yaw)
+            .def_readonly("pitch",        &TimestampedVideoFrame::pitch)
             .def(tostring(const_self))
       #ifdef TORCH
         ,
@@ -444,6 +444,12 @@ namespace malmo
     {
         return this->mission->AgentSection()[role].AgentHandlers().VideoProducer().present();
     }
+
+    bool MissionSpec::isVideoFrameHeaderRequested() const
+    {
+        return this->mission->ModSettings().present() && this->mission->ModSettings()->VideoFrameHeader().present()
+            && this->mission->ModSettings()->VideoFrameHeader().get();
+    }
     
     int MissionSpec::getVideoWidth(int role) const
     {
@@ -468,8 +474,87 @@ namespace malmo
             throw runtime_error("MissionInitSpec::getVideoChannels : video has not been requested for this role");
         return vps->want_depth() ? 4 : 3;
     }
+
+    int MissionSpec::getVideoStreamCount(int role) const
+    {
+        const AgentHandlers& handlers = this->mission->AgentSection()[role].AgentHandlers();
+        return ( handlers.VideoProducer().present() ? 1 : 0 )
+             + ( handlers.DepthProducer().present() ? 1 : 0 )
+             + ( handlers.ColourMapProducer().present() ? 1 : 0 );
+    }
+
+    std::string MissionSpec::getVideoStreamType(int role, int stream) const
+    {
+        std::string type, encoding;
+        int width, height, channels;
+        getVideoStream( role, stream, type, width, height, channels, encoding );
+        return type;
+    }
+
+    int MissionSpec::getVideoStreamWidth(int role, int stream) const
+    {
+        std::string type, encoding;
+        int width, height, channels;
+        getVideoStream( role, stream, type, width, height, channels, encoding );
+        return width;
+    }
+
+    int MissionSpec::getVideoStreamHeight(int role, int stream) const
+    {
+        std::string type, encoding;
+        int width, height, channels;
+        getVideoStream( role, stream, type, width, height, channels, encoding );
+        return height;
+    }
+
+    int MissionSpec::getVideoStreamChannels(int role, int stream) const
+    {
+        std::string type, encoding;
+        int width, height, channels;
+        getVideoStream( role, stream, type, width, height, channels, encoding );
+        return channels;
+    }
+
+    std::string MissionSpec::getVideoStreamEncoding(int role, int stream) const
+    {
+        std::string type, encoding;
+        int width, height, channels;
+        getVideoStream( role, stream, type, width, height, channels, encoding );
+        return encoding;
+    }
     
     // ---------------------------- private functions -----------------------------------------------
+
+    void MissionSpec::getVideoStream( int role, int stream, std::string& type, int& width, int& height, int& channels, std::string& encoding ) const
+    {
+        // The streams are numbered in the order the producers appear in the AgentHandlers, which is the order we write them in:
+        const AgentHandlers& handlers = this->mission->AgentSection()[role].AgentHandlers();
+        if( handlers.VideoProducer().present() && stream-- == 0 ) {
+            type = "VideoProducer";
+            width = handlers.VideoProducer()->Width();
+            height = handlers.VideoProducer()->Height();
+            channels = handlers.VideoProducer()->want_depth() ? 4 : 3;
+            encoding = handlers.VideoProducer()->encoding();
+            return;
+        }
+        if( handlers.DepthProducer().present() && stream-- == 0 ) {
+            type = "DepthProducer";
+            width = handlers.DepthProducer()->Width();
+            height = handlers.DepthProducer()->Height();
+            channels = 1;
+            encoding = handlers.DepthProducer()->encoding();
+            return;
+        }
+        if( handlers.ColourMapProducer().present() && stream-- == 0 ) {
+            type = "ColourMapProducer";
+            width = handlers.ColourMapProducer()->Width();
+            height = handlers.ColourMapProducer()->Height();
+            channels = 3;
+            encoding = handlers.ColourMapProducer()->encoding();
+            return;
+        }
+        throw runtime_error("MissionSpec::getVideoStream : no such video stream for this role");
+    }
     
     void MissionSpec::putVerbOnList( ::xsd::cxx::tree::optional< ModifierList >& mlo
                                    , const std::string& verb
@@ -271,6 +271,10 @@ namespace malmo
             //! \param role The agent index. Zero based.
             //! \returns True if video was requested.
             bool isVideoRequested(int role) const;
+
+            //! Gets whether each video frame will carry a header with the world tick, sequence number and player pose (ModSettings VideoFrameHeader).
+            //! \returns True if the frame header was requested. \see TimestampedVideoFrame::has_header
+            bool isVideoFrameHeaderRequested() const;
             
             //! Returns the width of the requested video for one of the agents involved in this mission.
             //! \param role The agent index. Zero based.
@@ -287,6 +291,44 @@ namespace malmo
             //! \returns The number of channels in the requested video: 3 for RGB, 4 for RGBD.
             int getVideoChannels(int role) const;
 
+            //! Returns the number of video streams requested for one of the agents involved in this mission - one for each of
+            //! VideoProducer, DepthProducer and ColourMapProducer that is present, in that order.
+            //! When there is more than one, each TimestampedVideoFrame says which stream it belongs to.
+            //! \param role The agent index. Zero based.
+            //! \returns The number of video streams.
+            int getVideoStreamCount(int role) const;
+
+            //! Returns the type of one of the video streams requested for one of the agents involved in this mission.
+            //! \param role The agent index. Zero based.
+            //! \param stream The stream index. Zero based.
+            //! \returns The name of the producer: "VideoProducer", "DepthProducer" or "ColourMapProducer".
+            std::string getVideoStreamType(int role, int stream) const;
+
+            //! Returns the width of one of the video streams requested for one of the agents involved in this mission.
+            //! \param role The agent index. Zero based.
+            //! \param stream The stream index. Zero based.
+            //! \returns The width of the stream in pixels.
+            int getVideoStreamWidth(int role, int stream) const;
+
+            //! Returns the height of one of the video streams requested for one of the agents involved in this mission.
+            //! \param role The agent index. Zero based.
+            //! \param stream The stream index. Zero based.
+            //! \returns The height of the stream in pixels.
+            int getVideoStreamHeight(int role, int stream) const;
+
+            //! Returns the number of channels in one of the video streams requested for one of the agents involved in this mission.
+            //! \param role The agent index. Zero based.
+            //! \param stream The stream index. Zero based.
+            //! \returns The number of channels: 3 for RGB or a colour map, 4 for RGBD, 1 for depth alone.
+            int getVideoStreamChannels(int role, int stream) const;
+
+            //! Returns how one of the video streams requested for one of the agents involved in this mission is encoded for sending.
+            //! The AgentHost decodes the frames as they arrive, so this only affects the bandwidth used.
+            //! \param role The agent index. Zero based.
+            //! \param stream The stream index. Zero based.
+            //! \returns The encoding: "raw", "lzFast" or "xorRle".
+            std::string getVideoStreamEncoding(int role, int stream) const;
+
             friend std::ostream& operator<<(std::ostream& os, const MissionSpec& ms);
         private:
         
@@ -294,6 +336,8 @@ namespace malmo
                               , const std::string& verb
                               , const std::string& on_list
                               , const std::string& off_list );
+
+            void getVideoStream( int role, int stream, std::string& type, int& width, int& height, int& channels, std::string& encoding ) const;
         
             friend class MissionInitSpec;
         
@@ -196,9 +196,16 @@ BOOST_PYTHON_MODULE(MalmoPython)
         .def("allowAllChatCommands",      &MissionSpec::allowAllChatCommands)
         .def("getNumberOfAgents",         &MissionSpec::getNumberOfAgents)
         .def("isVideoRequested",          &MissionSpec::isVideoRequested)
+        .def("isVideoFrameHeaderRequested", &MissionSpec::isVideoFrameHeaderRequested)
         .def("getVideoWidth",             &MissionSpec::getVideoWidth)
         .def("getVideoHeight",            &MissionSpec::getVideoHeight)
         .def("getVideoChannels",          &MissionSpec::getVideoChannels)
+        .def("getVideoStreamCount",       &MissionSpec::getVideoStreamCount)
+        .def("getVideoStreamType",        &MissionSpec::getVideoStreamType)
+        .def("getVideoStreamWidth",       &MissionSpec::getVideoStreamWidth)
+        .def("getVideoStreamHeight",      &MissionSpec::getVideoStreamHeight)
+        .def("getVideoStreamChannels",    &MissionSpec::getVideoStreamChannels)
+        .def("getVideoStreamEncoding",    &MissionSpec::getVideoStreamEncoding)
         .def(self_ns::str(self_ns::self))
     ;
     class_< MissionRecordSpec >("MissionRecordSpec", init<>())
@@ -253,7 +260,17 @@ BOOST_PYTHON_MODULE(MalmoPython)
         .def_readonly( "width",       &TimestampedVideoFrame::width )
         .def_readonly( "height",      &TimestampedVideoFrame::height )
         .def_readonly( "channels",    &TimestampedVideoFrame::channels )
+        .def_readonly( "stream",      &TimestampedVideoFrame::stream )
         .def_readonly( "pixels",      &TimestampedVideoFrame::pixels )
+        .def_readonly( "has_header",  &TimestampedVideoFrame::has_header )
+        .def_readonly( "world_tick",  &TimestampedVideoFrame::world_tick )
+        .def_readonly( "capture_time", &TimestampedVideoFrame::capture_time )
+        .def_readonly( "frame_sequence", &TimestampedVideoFrame::frame_sequence )
+        .def_readonly( "x",           &TimestampedVideoFrame::x )
+        .def_readonly( "y",           &TimestampedVideoFrame::y )
+        .def_readonly( "z",           &TimestampedVideoFrame::z )
+        .def_readonly( "yaw",         &TimestampedVideoFrame::yaw )
+        .def_readonly( "pitch",       &TimestampedVideoFrame::pitch )
         .def(self_ns::str(self_ns::self))
     ;
     class_< std::vector< boost::shared_ptr< TimestampedString > > >( "TimestampedStringVector" )
@@ -28,15 +28,29 @@ namespace malmo
         : width(0)
         , height(0)
         , channels(0)        
+        , stream(0)
+        , has_header(false)
+        , world_tick(0)
+        , capture_time(0)
+        , frame_sequence(0)
+        , x(0), y(0), z(0)
+        , yaw(0), pitch(0)
     {
 
     }
 
-    TimestampedVideoFrame::TimestampedVideoFrame(short width, short height, short channels, TimestampedUnsignedCharVector& message, Transform transform)
+    TimestampedVideoFrame::TimestampedVideoFrame(short width, short height, short channels, TimestampedUnsignedCharVector& message, Transform transform, short stream)
         : timestamp(message.timestamp)
         , width(width)
         , height(height)
         , channels(channels)
+        , stream(stream)
+        , has_header(false)
+        , world_tick(0)
+        , capture_time(0)
+        , frame_sequence(0)
+        , x(0), y(0), z(0)
+        , yaw(0), pitch(0)
     {
         const int stride = width * channels;
         switch (transform){
@@ -60,12 +74,14 @@ namespace malmo
 
     bool TimestampedVideoFrame::operator==(const TimestampedVideoFrame& other) const
     {
-        return this->width == other.width && this->height == other.height && this->channels == other.channels && this->timestamp == other.timestamp && this->pixels == other.pixels;
+        return this->width == other.width && this->height == other.height && this->channels == other.channels && this->stream == other.stream && this->timestamp == other.timestamp && this->pixels == other.pixels;
     }
 
     std::ostream& operator<<(std::ostream& os, const TimestampedVideoFrame& tsvidframe)
     {
-        os << "TimestampedVideoFrame: " << to_simple_string(tsvidframe.timestamp) << ", " << tsvidframe.width << " x " << tsvidframe.height << " x " << tsvidframe.channels;
+        os << "TimestampedVideoFrame: " << to_simple_string(tsvidframe.timestamp) << ", " << tsvidframe.width << " x " << tsvidframe.height << " x " << tsvidframe.channels << ", stream " << tsvidframe.stream;
+        if (tsvidframe.has_header)
+            os << ", tick " << tsvidframe.world_tick << ", frame " << tsvidframe.frame_sequence;
         return os;
     }
 }
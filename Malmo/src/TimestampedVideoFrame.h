@@ -27,6 +27,7 @@
 #include <boost/date_time/posix_time/posix_time_types.hpp>
 
 // STL:
+#include <cstdint>
 #include <vector>
 
 namespace malmo 
@@ -51,11 +52,32 @@ namespace malmo
         //! The number of channels. e.g. 3 for RGB data, 4 for RGBD
         short channels;
         
+        //! The index of the video stream this frame belongs to - always 0 unless several were requested. \see MissionSpec::getVideoStreamType
+        short stream;
+
         //! The pixels, stored as channels then columns then rows. Length should be width*height*channels.
         std::vector<unsigned char> pixels;
 
+        //! True if the frame came with a header (ModSettings VideoFrameHeader) - the fields below are only set if it did.
+        bool has_header;
+
+        //! The world tick the frame was rendered in.
+        int64_t world_tick;
+
+        //! When the frame was captured, from the client's System.nanoTime() - only meaningful relative to other frames.
+        int64_t capture_time;
+
+        //! The sequence number of the frame within its stream - gaps show how many frames were dropped.
+        int64_t frame_sequence;
+
+        //! The player's position when the frame was rendered.
+        double x, y, z;
+
+        //! The player's orientation when the frame was rendered, in degrees.
+        float yaw, pitch;
+
         TimestampedVideoFrame();
-        TimestampedVideoFrame(short width, short height, short channels, TimestampedUnsignedCharVector& message, Transform transform = IDENTITY);
+        TimestampedVideoFrame(short width, short height, short channels, TimestampedUnsignedCharVector& message, Transform transform = IDENTITY, short stream = 0);
         
         bool operator==(const TimestampedVideoFrame& other) const;
         friend std::ostream& operator<<(std::ostream& os, const TimestampedVideoFrame& tsvidframe);
@@ -24,15 +24,49 @@
 // Boost:
 #include <boost/bind.hpp>
 
+// STL:
+#include <algorithm>
+#include <cstring>
+
 namespace malmo 
 {
     VideoServer::VideoServer( boost::asio::io_service& io_service, int port, short width, short height, short channels, const boost::function<void(TimestampedVideoFrame message)> handle_frame )
         : handle_frame( handle_frame )
-        , width( width )
-        , height( height )
-        , channels( channels )
+        , frame_header( false )
         , server( io_service, port, boost::bind( &VideoServer::handleMessage, this, _1 ) )
     {
+        addStream( width, height, channels );
+    }
+
+    VideoServer& VideoServer::addStream(short width, short height, short channels)
+    {
+        StreamFormat format;
+        format.width = width;
+        format.height = height;
+        format.channels = channels;
+        format.encoded = false;
+        format.has_previous = false;
+        this->streams.push_back( format );
+
+        return *this;
+    }
+
+    VideoServer& VideoServer::setStreamEncoded(int stream, bool encoded)
+    {
+        StreamFormat& format = this->streams.at(stream);
+        format.encoded = encoded;
+        // Until the first frame arrives, xorRle frames are relative to all zeros - as on the sender:
+        format.previous.assign( (size_t)format.width * format.height * format.channels, 0 );
+        format.has_previous = false;
+
+        return *this;
+    }
+
+    VideoServer& VideoServer::setFrameHeader(bool frame_header)
+    {
+        this->frame_header = frame_header;
+
+        return *this;
     }
 
     void VideoServer::start()
@@ -59,46 +93,259 @@ namespace malmo
 
     VideoServer& VideoServer::recordMP4(std::string path, int frames_per_second, int64_t bit_rate)
     {        
-        this->writers.push_back(VideoFrameWriter::create(path, this->width, this->height, frames_per_second, bit_rate));
+        this->writers.push_back(VideoFrameWriter::create(path, this->streams[0].width, this->streams[0].height, frames_per_second, bit_rate));
 
         return *this;
     }
     
     void VideoServer::handleMessage( TimestampedUnsignedCharVector message )
     {
-        if (message.data.size() != this->width * this->height * this->channels) 
+        // With more than one stream, each frame starts with the index of its stream:
+        int stream = 0;
+        if (this->streams.size() > 1)
+        {
+            if (message.data.size() < (size_t)STREAM_ID_SIZE)
+                return;
+            stream = (message.data[0] << 24) | (message.data[1] << 16) | (message.data[2] << 8) | message.data[3];
+            if (stream < 0 || stream >= (int)this->streams.size())
+                return;
+            message.data.erase(message.data.begin(), message.data.begin() + STREAM_ID_SIZE);
+        }
+
+        // Then the header, if asked for - it comes before any encoding:
+        std::vector<unsigned char> header;
+        if (this->frame_header)
+        {
+            if (message.data.size() < (size_t)FRAME_HEADER_SIZE)
+                return;
+            header.assign(message.data.begin(), message.data.begin() + FRAME_HEADER_SIZE);
+            message.data.erase(message.data.begin(), message.data.begin() + FRAME_HEADER_SIZE);
+        }
+
+        StreamFormat& format = this->streams[stream];
+        if (format.encoded)
+        {
+            std::vector<unsigned char> decoded;
+            if (!decodeFrame(format, message.data, decoded))
+                return;
+            message.data.swap(decoded);
+        }
+        if (message.data.size() != format.width * format.height * format.channels) 
         {
             // Have seen this happen during stress testing when a reward packet from (I think) a previous mission arrives during the next
             // one when the same port has been reassigned. Could throw here but chose to silently ignore since very rare.
             return;
         }
-        TimestampedVideoFrame frame(this->width, this->height, this->channels, message, TimestampedVideoFrame::REVERSE_SCANLINE);
+        TimestampedVideoFrame frame(format.width, format.height, format.channels, message, TimestampedVideoFrame::REVERSE_SCANLINE, (short)stream);
+        if (!header.empty())
+        {
+            const unsigned char* in = header.data();
+            frame.has_header = true;
+            frame.world_tick = (int64_t)readBigEndian(in, 8);
+            frame.capture_time = (int64_t)readBigEndian(in + 8, 8);
+            frame.frame_sequence = (int64_t)readBigEndian(in + 16, 8);
+            uint64_t bits;
+            bits = readBigEndian(in + 24, 8);
+            std::memcpy(&frame.x, &bits, sizeof(double));
+            bits = readBigEndian(in + 32, 8);
+            std::memcpy(&frame.y, &bits, sizeof(double));
+            bits = readBigEndian(in + 40, 8);
+            std::memcpy(&frame.z, &bits, sizeof(double));
+            uint32_t float_bits;
+            float_bits = (uint32_t)readBigEndian(in + 48, 4);
+            std::memcpy(&frame.yaw, &float_bits, sizeof(float));
+            float_bits = (uint32_t)readBigEndian(in + 52, 4);
+            std::memcpy(&frame.pitch, &float_bits, sizeof(float));
+        }
         this->handle_frame(frame);
         
-        for (const auto& writer : this->writers){
-            if (writer->isOpen()){
-                writer->write(frame);
+        if (stream == 0)
+        {
+            for (const auto& writer : this->writers){
+                if (writer->isOpen()){
+                    writer->write(frame);
+                }
             }
         }
     }
     
+    bool VideoServer::decodeFrame( StreamFormat& format, const std::vector<unsigned char>& data, std::vector<unsigned char>& frame )
+    {
+        const size_t frame_size = (size_t)format.width * format.height * format.channels;
+        if (data.size() < (size_t)ENCODING_HEADER_SIZE)
+            return false;
+        const unsigned char encoding = data[0];
+        const size_t raw_length = ((size_t)data[1] << 24) | ((size_t)data[2] << 16) | ((size_t)data[3] << 8) | (size_t)data[4];
+        if (raw_length != frame_size)
+            return false;
+        const unsigned char* in = data.data() + ENCODING_HEADER_SIZE;
+        const size_t in_size = data.size() - ENCODING_HEADER_SIZE;
+
+        frame.resize(frame_size);
+        switch (encoding)
+        {
+        case ENCODING_RAW:
+            if (in_size != frame_size)
+                return false;
+            std::copy(in, in + in_size, frame.begin());
+            break;
+        case ENCODING_LZ_FAST:
+            if (!decodeLz4(in, in_size, frame.data(), frame_size))
+                return false;
+            break;
+        case ENCODING_XOR_RLE:
+            // The sender restarts each stream with a raw frame, so previous is always the frame this one is relative to:
+            if (!decodeXorRle(in, in_size, format.previous.data(), frame.data(), frame_size))
+                return false;
+            break;
+        case ENCODING_UNCHANGED:
+            if (!format.has_previous || in_size != 0)
+                return false;
+            frame = format.previous;
+            break;
+        default:
+            return false;
+        }
+        format.previous = frame;
+        format.has_previous = true;
+        return true;
+    }
+
+    bool VideoServer::decodeLz4( const unsigned char* in, size_t in_size, unsigned char* out, size_t out_size )
+    {
+        // LZ4 block format: a series of sequences, each a token (literal length, match length), the literals,
+        // a two byte little-endian offset and the match - except the last, which has only literals.
+        size_t ip = 0;
+        size_t op = 0;
+        while (ip < in_size)
+        {
+            const unsigned char token = in[ip++];
+            size_t literals = token >> 4;
+            if (literals == 15)
+            {
+                unsigned char extra;
+                do
+                {
+                    if (ip >= in_size)
+                        return false;
+                    extra = in[ip++];
+                    literals += extra;
+                } while (extra == 255);
+            }
+            if (literals > in_size - ip || literals > out_size - op)
+                return false;
+            std::copy(in + ip, in + ip + literals, out + op);
+            ip += literals;
+            op += literals;
+            if (ip == in_size)
+                break;
+
+            if (in_size - ip < 2)
+                return false;
+            const size_t offset = (size_t)in[ip] | ((size_t)in[ip + 1] << 8);
+            ip += 2;
+            if (offset == 0 || offset > op)
+                return false;
+            size_t match = token & 15;
+            if (match == 15)
+            {
+                unsigned char extra;
+                do
+                {
+                    if (ip >= in_size)
+                        return false;
+                    extra = in[ip++];
+                    match += extra;
+                } while (extra == 255);
+            }
+            match += 4;
+            if (match > out_size - op)
+                return false;
+            // The match can overlap the bytes it's producing, so copy a byte at a time:
+            for (size_t i = 0; i < match; i++, op++)
+                out[op] = out[op - offset];
+        }
+        return op == out_size;
+    }
+
+    bool VideoServer::decodeXorRle( const unsigned char* in, size_t in_size, const unsigned char* previous, unsigned char* out, size_t out_size )
+    {
+        // A series of (number of zero bytes, number of literal bytes, literal bytes), XORed with the previous frame:
+        size_t ip = 0;
+        size_t op = 0;
+        while (ip < in_size)
+        {
+            size_t zeros, literals;
+            if (!readVarint(in, in_size, ip, zeros) || !readVarint(in, in_size, ip, literals))
+                return false;
+            if (zeros > out_size - op)
+                return false;
+            std::copy(previous + op, previous + op + zeros, out + op);
+            op += zeros;
+            if (literals > out_size - op || literals > in_size - ip)
+                return false;
+            for (size_t i = 0; i < literals; i++, op++)
+                out[op] = previous[op] ^ in[ip++];
+        }
+        return op == out_size;
+    }
+
+    bool VideoServer::readVarint( const unsigned char* in, size_t in_size, size_t& ip, size_t& value )
+    {
+        // Unsigned LEB128 - seven bits at a time, least significant first:
+        value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            if (ip >= in_size)
+                return false;
+            const unsigned char b = in[ip++];
+            value |= (size_t)(b & 0x7F) << shift;
+            if (!(b & 0x80))
+                return true;
+        }
+        return false;
+    }
+
+    uint64_t VideoServer::readBigEndian( const unsigned char* in, int num_bytes )
+    {
+        uint64_t value = 0;
+        for (int i = 0; i < num_bytes; i++)
+            value = (value << 8) | in[i];
+        return value;
+    }
+
     int VideoServer::getPort() const
     {
         return this->server.getPort();
     }
 
-    short VideoServer::getWidth() const
+    int VideoServer::getNumStreams() const
+    {
+        return (int)this->streams.size();
+    }
+
+    short VideoServer::getWidth(int stream) const
+    {
+        return this->streams.at(stream).width;
+    }
+
+    short VideoServer::getHeight(int stream) const
+    {
+        return this->streams.at(stream).height;
+    }
+
+    short VideoServer::getChannels(int stream) const
     {
-        return this->width;
+        return this->streams.at(stream).channels;
     }
 
-    short VideoServer::getHeight() const
+    bool VideoServer::isStreamEncoded(int stream) const
     {
-        return this->height;
+        return this->streams.at(stream).encoded;
     }
 
-    short VideoServer::getChannels() const
+    bool VideoServer::hasFrameHeader() const
     {
-        return this->channels;
+        return this->frame_header;
     }
 }
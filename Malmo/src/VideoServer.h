@@ -35,30 +35,62 @@
 namespace malmo
 {
     //! A TCP server that receives video frames of a size specified beforehand and can optionally persist to file.
+    //! It can receive several streams on the one port: each frame is then preceded by the four byte, big-endian index of its stream.
+    //! Streams sent with an encoding other than raw are decoded on arrival, so the frames handed on are always raw.
     class VideoServer 
     {
         public:
 
+            //! Creates the server, receiving a single stream - call addStream() to receive more.
             VideoServer( boost::asio::io_service& io_service, int port, short width, short height, short channels, const boost::function<void(const TimestampedVideoFrame message)> handle_frame );
+
+            //! Adds another stream, numbered after those already added. Call before start().
+            VideoServer& addStream(short width, short height, short channels);
+
+            //! Says whether the frames of a stream are encoded - see the encoding attribute of the video producers - and need decoding. Call before start().
+            //! \param stream The stream index. Zero based.
+            //! \param encoded True if each frame starts with an encoding code and the raw length, false if the frames are sent raw.
+            VideoServer& setStreamEncoded(int stream, bool encoded);
+
+            //! Says whether each frame carries the 56 byte header of ModSettings VideoFrameHeader, after the stream index. Call before start().
+            //! The header is parsed into the fields of the TimestampedVideoFrame.
+            VideoServer& setFrameHeader(bool frame_header);
             
             //! Request that the video is saved in an mp4 file. Call before either startInBackground() or startRecording().
+            //! Only the first stream is recorded.
             VideoServer& recordMP4(std::string path, int frames_per_second, int64_t bit_rate);
 
             //! Gets the port this server is listening on.
             //! \returns The port this server is listening on.
             int getPort() const;
             
+            //! Gets the number of streams this server receives.
+            //! \returns The number of streams.
+            int getNumStreams() const;
+
             //! Gets the width of the video.
+            //! \param stream The stream index. Zero based.
             //! \returns The width of the video in pixels.
-            short getWidth() const;
+            short getWidth(int stream = 0) const;
             
             //! Gets the height of the video.
+            //! \param stream The stream index. Zero based.
             //! \returns The height of the video in pixels.
-            short getHeight() const;
+            short getHeight(int stream = 0) const;
             
             //! Gets the number of channels in the video. e.g. 3 for RGB, 4 for RGBA.
+            //! \param stream The stream index. Zero based.
             //! \returns The number of channels in the video.
-            short getChannels() const;
+            short getChannels(int stream = 0) const;
+
+            //! Gets whether the frames of a stream are encoded.
+            //! \param stream The stream index. Zero based.
+            //! \returns True if the frames are decoded on arrival.
+            bool isStreamEncoded(int stream = 0) const;
+
+            //! Gets whether each frame carries a header.
+            //! \returns True if the frames carry a header.
+            bool hasFrameHeader() const;
 
             //! Stop recording the data being received by the server.
             void stopRecording();
@@ -71,12 +103,33 @@ namespace malmo
 
         private:
 
-            void handleMessage( const TimestampedUnsignedCharVector message );
+            void handleMessage( TimestampedUnsignedCharVector message );
+
+            struct StreamFormat
+            {
+                short width;
+                short height;
+                short channels;
+                bool encoded;
+                std::vector<unsigned char> previous;   // the last frame decoded, for xorRle and unchanged frames
+                bool has_previous;
+            };
+
+            //! Decodes a frame of an encoded stream, and keeps it as the stream's previous frame. Returns false if the frame is malformed.
+            static bool decodeFrame( StreamFormat& format, const std::vector<unsigned char>& data, std::vector<unsigned char>& frame );
+            static bool decodeLz4( const unsigned char* in, size_t in_size, unsigned char* out, size_t out_size );
+            static bool decodeXorRle( const unsigned char* in, size_t in_size, const unsigned char* previous, unsigned char* out, size_t out_size );
+            static bool readVarint( const unsigned char* in, size_t in_size, size_t& ip, size_t& value );
+            static uint64_t readBigEndian( const unsigned char* in, int num_bytes );
+
+            static const int STREAM_ID_SIZE = 4;
+            static const int FRAME_HEADER_SIZE = 56;       // tick, capture time and sequence (longs), x, y, z (doubles), yaw and pitch (floats)
+            static const int ENCODING_HEADER_SIZE = 5;     // the encoding code and the big-endian raw length
+            enum Encoding { ENCODING_RAW = 0, ENCODING_LZ_FAST = 1, ENCODING_XOR_RLE = 2, ENCODING_UNCHANGED = 3 };
             
             boost::function<void(const TimestampedVideoFrame message)> handle_frame;
-            short width;
-            short height;
-            short channels;
+            std::vector<StreamFormat> streams;
+            bool frame_header;
             TCPServer server;
             std::vector<std::unique_ptr<VideoFrameWriter>> writers;
     };
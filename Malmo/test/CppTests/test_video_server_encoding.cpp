@@ -0,0 +1,140 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+// Malmo:
+#include <VideoServer.h>
+#include <TCPClient.h>
+using namespace malmo;
+
+// Boost:
+#include <boost/date_time/posix_time/posix_time.hpp>
+#include <boost/thread.hpp>
+using namespace boost::posix_time;
+
+// STL:
+#include <atomic>
+#include <iostream>
+#include <vector>
+using namespace std;
+
+// A single row, so that the frames aren't flipped on the way in:
+const short width = 32;
+const short height = 1;
+const short channels = 1;
+const int port = 10015;
+const milliseconds sleep_time(100);
+vector< vector<unsigned char> > expected_frames;
+std::atomic<int> num_messages_received;
+
+void handleFrame(TimestampedVideoFrame frame)
+{
+    const int index = num_messages_received;
+    if (index >= (int)expected_frames.size())
+    {
+        cout << "Too many frames - a malformed frame got through." << endl;
+        exit(EXIT_FAILURE);
+    }
+    if (frame.pixels != expected_frames[index])
+    {
+        cout << "Frame " << index << " wasn't decoded correctly." << endl;
+        exit(EXIT_FAILURE);
+    }
+    num_messages_received++;
+}
+
+vector<unsigned char> makeMessage(unsigned char encoding, const vector<unsigned char>& data)
+{
+    // Encoding code, then the big-endian length of the raw frame, then the encoded data:
+    vector<unsigned char> message(5);
+    message[0] = encoding;
+    message[4] = width * height * channels;
+    message.insert(message.end(), data.begin(), data.end());
+    return message;
+}
+
+int main()
+{
+    num_messages_received = 0;
+    vector<unsigned char> frame(width * height * channels);
+    for (int i = 0; i < (int)frame.size(); i++)
+        frame[i] = i;
+
+    vector< vector<unsigned char> > messages;
+
+    // 0 - raw:
+    messages.push_back(makeMessage(0, frame));
+    expected_frames.push_back(frame);
+
+    // 3 - unchanged:
+    messages.push_back(makeMessage(3, vector<unsigned char>()));
+    expected_frames.push_back(frame);
+
+    // 2 - xorRle: four unchanged bytes, two changed ones, then the rest unchanged:
+    const unsigned char xor_rle[] = { 4, 2, 0xFF, 0x0F, 26, 0 };
+    messages.push_back(makeMessage(2, vector<unsigned char>(xor_rle, xor_rle + sizeof(xor_rle))));
+    frame[4] ^= 0xFF;
+    frame[5] ^= 0x0F;
+    expected_frames.push_back(frame);
+
+    // 1 - lzFast: four literals, a 24 byte match that overlaps itself, then four more literals:
+    const unsigned char lz[] = { 0x4F, 1, 2, 3, 4, 4, 0, 5, 0x40, 9, 8, 7, 6 };
+    messages.push_back(makeMessage(1, vector<unsigned char>(lz, lz + sizeof(lz))));
+    for (int i = 0; i < 28; i++)
+        frame[i] = 1 + i % 4;
+    frame[28] = 9; frame[29] = 8; frame[30] = 7; frame[31] = 6;
+    expected_frames.push_back(frame);
+
+    // Malformed frames should be ignored - an unknown encoding, a match before the start of the frame, and a short xorRle frame:
+    messages.push_back(makeMessage(7, vector<unsigned char>()));
+    const unsigned char bad_lz[] = { 0x1F, 1, 2, 0, 20, 0x40, 9, 8, 7, 6 };
+    messages.push_back(makeMessage(1, vector<unsigned char>(bad_lz, bad_lz + sizeof(bad_lz))));
+    const unsigned char short_xor_rle[] = { 4, 2, 0xFF, 0x0F };
+    messages.push_back(makeMessage(2, vector<unsigned char>(short_xor_rle, short_xor_rle + sizeof(short_xor_rle))));
+
+    try{
+        boost::asio::io_service io_service;
+        VideoServer server(io_service, port, width, height, channels, boost::function<void(const TimestampedVideoFrame)>(handleFrame));
+        server.setStreamEncoded(0, true);
+        server.start();
+
+        // start the io_service on a background thread
+        boost::thread bt(boost::bind(&boost::asio::io_service::run, &io_service));
+
+        boost::this_thread::sleep(sleep_time);
+
+        for (const auto& message : messages){
+            SendOverTCP(io_service, "127.0.0.1", port, message, true);
+            boost::this_thread::sleep(sleep_time);
+        }
+
+        io_service.stop();
+        bt.join();
+    }
+    catch (runtime_error& error){
+        cout << "Error: " << error.what() << endl;
+        return EXIT_FAILURE;
+    }
+
+    if (num_messages_received != (int)expected_frames.size()){
+        cout << num_messages_received << " != " << expected_frames.size();
+        return EXIT_FAILURE;
+    }
+
+    return EXIT_SUCCESS;
+}
@@ -0,0 +1,142 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+// Malmo:
+#include <VideoServer.h>
+#include <TCPClient.h>
+using namespace malmo;
+
+// Boost:
+#include <boost/date_time/posix_time/posix_time.hpp>
+#include <boost/thread.hpp>
+using namespace boost::posix_time;
+
+// STL:
+#include <atomic>
+#include <cstring>
+#include <iostream>
+#include <vector>
+using namespace std;
+
+const short width = 16;
+const short height = 8;
+const short channels = 3;
+const int port = 10016;
+const milliseconds sleep_time(100);
+const int num_frames = 10;
+std::atomic<int> num_messages_received;
+
+void handleFrame(TimestampedVideoFrame frame)
+{
+    const int i = num_messages_received;
+    if (!frame.has_header || frame.world_tick != 1000 + i || frame.capture_time != -1 || frame.frame_sequence != i)
+    {
+        cout << "Frame " << i << ": header not parsed." << endl;
+        exit(EXIT_FAILURE);
+    }
+    if (frame.x != i + 0.5 || frame.y != 64.0 || frame.z != -i || frame.yaw != 90.0f || frame.pitch != -45.5f)
+    {
+        cout << "Frame " << i << ": pose not parsed." << endl;
+        exit(EXIT_FAILURE);
+    }
+    if (frame.pixels.size() != width * height * channels || frame.pixels[0] != i)
+    {
+        cout << "Frame " << i << ": header not stripped from the pixels." << endl;
+        exit(EXIT_FAILURE);
+    }
+    num_messages_received++;
+}
+
+void putBigEndian(vector<unsigned char>& message, uint64_t value, int num_bytes)
+{
+    for (int shift = (num_bytes - 1) * 8; shift >= 0; shift -= 8)
+        message.push_back((unsigned char)(value >> shift));
+}
+
+void putDouble(vector<unsigned char>& message, double value)
+{
+    uint64_t bits;
+    std::memcpy(&bits, &value, sizeof(double));
+    putBigEndian(message, bits, 8);
+}
+
+void putFloat(vector<unsigned char>& message, float value)
+{
+    uint32_t bits;
+    std::memcpy(&bits, &value, sizeof(float));
+    putBigEndian(message, bits, 4);
+}
+
+vector<unsigned char> makeMessage(int frame)
+{
+    // World tick, capture time, sequence number, x, y, z, yaw, pitch - then the pixels, bottom row first:
+    vector<unsigned char> message;
+    putBigEndian(message, 1000 + frame, 8);
+    putBigEndian(message, (uint64_t)-1, 8);
+    putBigEndian(message, frame, 8);
+    putDouble(message, frame + 0.5);
+    putDouble(message, 64.0);
+    putDouble(message, -frame);
+    putFloat(message, 90.0f);
+    putFloat(message, -45.5f);
+    vector<unsigned char> pixels(width * height * channels);
+    pixels[(height - 1) * width * channels] = frame;
+    message.insert(message.end(), pixels.begin(), pixels.end());
+    return message;
+}
+
+int main()
+{
+    num_messages_received = 0;
+
+    try{
+        boost::asio::io_service io_service;
+        VideoServer server(io_service, port, width, height, channels, boost::function<void(const TimestampedVideoFrame)>(handleFrame));
+        server.setFrameHeader(true);
+        server.start();
+
+        // start the io_service on a background thread
+        boost::thread bt(boost::bind(&boost::asio::io_service::run, &io_service));
+
+        boost::this_thread::sleep(sleep_time);
+
+        for (int i = 0; i < num_frames; i++){
+            SendOverTCP(io_service, "127.0.0.1", port, makeMessage(i), true);
+            boost::this_thread::sleep(sleep_time);
+        }
+
+        // A frame too short to hold the header should be ignored:
+        SendOverTCP(io_service, "127.0.0.1", port, vector<unsigned char>(40), true);
+        boost::this_thread::sleep(sleep_time);
+
+        io_service.stop();
+        bt.join();
+    }
+    catch (runtime_error& error){
+        cout << "Error: " << error.what() << endl;
+        return EXIT_FAILURE;
+    }
+
+    if (num_messages_received != num_frames){
+        cout << num_messages_received << " != " << num_frames;
+        return EXIT_FAILURE;
+    }
+
+    return EXIT_SUCCESS;
+}
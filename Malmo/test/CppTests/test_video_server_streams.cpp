@@ -0,0 +1,126 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+// Malmo:
+#include <VideoServer.h>
+#include <TCPClient.h>
+using namespace malmo;
+
+// Boost:
+#include <boost/date_time/posix_time/posix_time.hpp>
+#include <boost/thread.hpp>
+using namespace boost::posix_time;
+
+// STL:
+#include <atomic>
+#include <iostream>
+#include <vector>
+using namespace std;
+
+const short width[] = { 64, 32 };
+const short height[] = { 32, 16 };
+const short channels[] = { 3, 1 };
+const int num_streams = 2;
+const int port = 10014;
+const milliseconds sleep_time(100);
+const int num_frames = 10;
+std::atomic<int> num_messages_received[num_streams];
+
+void handleFrame(TimestampedVideoFrame frame)
+{
+    if (frame.stream < 0 || frame.stream >= num_streams)
+    {
+        cout << "Unknown stream: " << frame.stream << endl;
+        exit(EXIT_FAILURE);
+    }
+
+    const int stream = frame.stream;
+    if (frame.width != width[stream] || frame.height != height[stream] || frame.channels != channels[stream])
+    {
+        cout << "Mismatch in frame dimensions for stream " << stream << "." << endl;
+        exit(EXIT_FAILURE);
+    }
+
+    if (frame.pixels[0] != num_messages_received[stream])
+    {
+        cout << "Pixel not set, frames passed out of order." << endl;
+        exit(EXIT_FAILURE);
+    }
+
+    num_messages_received[stream]++;
+}
+
+vector<unsigned char> makeMessage(int stream, int frame)
+{
+    // Stream id, big-endian, then the pixels - bottom row first:
+    vector<unsigned char> message(4 + width[stream] * height[stream] * channels[stream]);
+    message[3] = stream;
+    message[4 + (height[stream] - 1) * width[stream] * channels[stream]] = frame;
+    return message;
+}
+
+int main()
+{
+    for (int stream = 0; stream < num_streams; stream++)
+        num_messages_received[stream] = 0;
+
+    try{
+        boost::asio::io_service io_service;
+        VideoServer server(io_service, port, width[0], height[0], channels[0], boost::function<void(const TimestampedVideoFrame)>(handleFrame));
+        server.addStream(width[1], height[1], channels[1]);
+        server.start();
+
+        // start the io_service on a background thread
+        boost::thread bt(boost::bind(&boost::asio::io_service::run, &io_service));
+
+        boost::this_thread::sleep(sleep_time);
+
+        for (int i = 0; i < num_frames; i++){
+            for (int stream = 0; stream < num_streams; stream++){
+                SendOverTCP(io_service, "127.0.0.1", port, makeMessage(stream, i), true);
+                boost::this_thread::sleep(sleep_time);
+            }
+        }
+
+        // Frames for streams the server doesn't know about, or of the wrong size, should be ignored:
+        vector<unsigned char> unknown_stream = makeMessage(0, num_frames);
+        unknown_stream[3] = num_streams;
+        SendOverTCP(io_service, "127.0.0.1", port, unknown_stream, true);
+        vector<unsigned char> wrong_size = makeMessage(1, num_frames);
+        wrong_size.push_back(0);
+        SendOverTCP(io_service, "127.0.0.1", port, wrong_size, true);
+        boost::this_thread::sleep(sleep_time);
+
+        io_service.stop();
+        bt.join();
+    }
+    catch (runtime_error& error){
+        cout << "Error: " << error.what() << endl;
+        return EXIT_FAILURE;
+    }
+
+    for (int stream = 0; stream < num_streams; stream++){
+        if (num_messages_received[stream] != num_frames){
+            cout << "Stream " << stream << ": " << num_messages_received[stream] << " != " << num_frames;
+            return EXIT_FAILURE;
+        }
+    }
+
+    return EXIT_SUCCESS;
+}
@@ -23,6 +23,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,7 +56,7 @@ import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
 
 import org.xml.sax.SAXException;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.Malmo.IState;
 import com.microsoft.Malmo.MalmoMod;
 import com.microsoft.Malmo.MalmoMod.IMalmoMessageListener;
@@ -77,6 +78,7 @@ import com.microsoft.Malmo.Schemas.MissionResult;
 import com.microsoft.Malmo.Schemas.ModSettings;
 import com.microsoft.Malmo.Utils.AddressHelper;
 import com.microsoft.Malmo.Utils.AuthenticationHelper;
+import com.microsoft.Malmo.Utils.JSONFrameWriter;
 import com.microsoft.Malmo.Utils.SchemaHelper;
 import com.microsoft.Malmo.Utils.ScreenHelper;
 import com.microsoft.Malmo.Utils.ScreenHelper.TextCategory;
@@ -1277,11 +1279,12 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
         boolean serverHasFiredStartingPistol = false;
         boolean playerDied = false;
         private int failedTCPRewardSendCount = 0;
-        private int failedTCPObservationSendCount = 0;
         private boolean wantsToQuit = false; // We have decided our mission is at an end
         private VideoHook videoHook = new VideoHook();
         private String quitCode = "";
-        private TCPSocketHelper observationSocket = null;
+        private TCPSocketHelper.SocketChannelHelper observationSocket = null;
+        private JSONFrameWriter observationWriter = new JSONFrameWriter();
+        private List<CommandAndIPAddress> pendingCommands = new ArrayList<CommandAndIPAddress>();	// Taken off the queue but not yet handled - see checkForControlCommand().
         private TCPSocketHelper rewardSocket = null;
 
         protected void onMissionStarted()
@@ -1310,7 +1313,10 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
             if (currentMissionBehaviour().rewardProducer != null)
                 currentMissionBehaviour().rewardProducer.prepare(currentMissionInit());
 
-            this.videoHook.start(currentMissionInit(), currentMissionBehaviour().videoProducer);
+            this.videoHook.start(currentMissionInit(), currentMissionBehaviour().videoProducers);
+
+            // Start counting command latency afresh for this mission:
+            ClientStateMachine.this.controlInputPoller.resetStatistics();
 
             // Make sure we have mouse control:
             ClientStateMachine.this.inputController.setInputType(InputType.AI);
@@ -1347,6 +1353,11 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
 
             this.videoHook.stop();
 
+            TCPInputPoller poller = ClientStateMachine.this.controlInputPoller;
+            if (poller != null)
+                System.out.println(String.format("Commands: %d taken off the queue, max queue depth %d, time queued mean %.2fms, max %.2fms",
+                        poller.getCommandsDequeued(), poller.getMaxQueueDepth(), poller.getMeanLatencyMs(), poller.getMaxLatencyMs()));
+
             // Return Minecraft speed to "normal":
             TimeHelper.setMinecraftClientClockSpeed(20);
             TimeHelper.displayGranularityMs = 0;
@@ -1450,7 +1461,7 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
         private void openSockets()
         {
             ClientAgentConnection cac = currentMissionInit().getClientAgentConnection();
-            this.observationSocket = new TCPSocketHelper(cac.getAgentIPAddress(), cac.getAgentObservationsPort());
+            this.observationSocket = new TCPSocketHelper.SocketChannelHelper(cac.getAgentIPAddress(), cac.getAgentObservationsPort());
             this.rewardSocket = new TCPSocketHelper(cac.getAgentIPAddress(), cac.getAgentRewardsPort());
         }
 
@@ -1462,28 +1473,34 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
 
         private void sendData()
         {
-            // Create the observation data:
-            String data = "";
+            // Create the observation data - streamed straight into the reusable message buffer:
+            int dataLength = 0;
             if (currentMissionBehaviour() != null && currentMissionBehaviour().observationProducer != null)
             {
-                JsonObject json = new JsonObject();
-                currentMissionBehaviour().observationProducer.writeObservationsToJSON(json, currentMissionInit());
-                data = json.toString();
+                try
+                {
+                    JsonWriter writer = this.observationWriter.begin();
+                    writer.beginObject();
+                    JSONFrameWriter.writeObservations(currentMissionBehaviour().observationProducer, writer, currentMissionInit());
+                    writer.endObject();
+                    dataLength = this.observationWriter.end(writer);
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Failed to write observations: " + e);
+                    dataLength = 0;
+                }
             }
 
             ClientAgentConnection cac = currentMissionInit().getClientAgentConnection();
 
-            if (data != null && data.length() > 2 && cac != null) // An empty json string will be "{}" (length 2) - don't send these.
+            if (dataLength > 2 && cac != null) // An empty json string will be "{}" (length 2) - don't send these.
             {
-                // Bung the whole shebang off via TCP:
-                if (this.observationSocket.sendTCPString(data))
-                {
-                    this.failedTCPObservationSendCount = 0;
-                }
-                else
+                // Bung the whole shebang off via TCP - the socket keeps count of consecutive failed attempts, not counting the
+                // observations it drops while it waits to retry a failed connection:
+                if (!this.observationSocket.sendFrame(this.observationWriter.getBuffer(), dataLength))
                 {
                     // Failed to send observation message.
-                    this.failedTCPObservationSendCount++;
                     ClientStateMachine.this.getScreenHelper().addFragment("ERROR: Agent missed observation signal", TextCategory.TXT_CLIENT_WARNING, 5000);
                 }
             }
@@ -1511,8 +1528,8 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
             }
 
             // Check that our messages are getting through:
-            int maxFailed = Math.max(this.failedTCPRewardSendCount, this.videoHook.failedTCPSendCount);
-            maxFailed = Math.max(maxFailed, this.failedTCPObservationSendCount);
+            int maxFailed = Math.max(this.failedTCPRewardSendCount, this.videoHook.getFailedTCPSendCount());
+            maxFailed = Math.max(maxFailed, this.observationSocket.getFailureCount());
             if (maxFailed > FailedTCPSendCountTolerance)
             {
                 // They're not - and we've exceeded the count of allowed TCP failures.
@@ -1527,22 +1544,30 @@ public class ClientStateMachine extends StateMachine implements IMalmoMessageLis
          */
         private void checkForControlCommand()
         {
-            String command = "";
             boolean quitHandlerFired = false;
             IWantToQuit quitHandler = (currentMissionBehaviour() != null) ? currentMissionBehaviour().quitProducer : null;
 
-            command = ClientStateMachine.this.controlInputPoller.getCommand();
-            while (command != null && command.length() > 0 && !quitHandlerFired)
+            // Take everything that has arrived since the last tick in one go, rather than going back to the queue for each command.
+            // They go after any left over from last time, which are older:
+            ClientStateMachine.this.controlInputPoller.drainTo(this.pendingCommands, Integer.MAX_VALUE);
+            int next = 0;
+            while (next < this.pendingCommands.size() && !quitHandlerFired)
             {
+                String command = this.pendingCommands.get(next++).command;
+                if (command == null || command.length() == 0)
+                    continue;
                 // Pass the command to our various control overrides:
                 boolean handled = handleCommand(command);
-                // Get the next command:
-                command = ClientStateMachine.this.controlInputPoller.getCommand();
-                // If there *is* another command (commands came in faster than one per client tick),
+                // Let the video hook know, in case a frame should be captured in response:
+                if (handled)
+                    this.videoHook.onCommand();
+                // If there is another command (commands came in faster than one per client tick),
                 // then we should check our quit producer before deciding whether to execute it.
-                if (command != null && command.length() > 0 && handled)
+                if (next < this.pendingCommands.size() && handled)
                     quitHandlerFired = (quitHandler != null && quitHandler.doIWantToQuit(currentMissionInit()));
             }
+            // If the quit producer fired, keep the rest for the next tick, just as if they had been left on the queue:
+            this.pendingCommands.subList(0, next).clear();
         }
 
         /**
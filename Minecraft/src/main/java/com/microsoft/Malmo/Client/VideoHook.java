@@ -19,27 +19,36 @@
 
 package com.microsoft.Malmo.Client;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.LWJGLException;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.launchwrapper.Launch;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
 import net.minecraftforge.fml.common.gameevent.TickEvent.RenderTickEvent;
 
 import com.microsoft.Malmo.MissionHandlerInterfaces.IVideoProducer;
+import com.microsoft.Malmo.Schemas.CaptureSchedule;
 import com.microsoft.Malmo.Schemas.ClientAgentConnection;
+import com.microsoft.Malmo.Schemas.FrameDropPolicy;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.ModSettings;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
+import com.microsoft.Malmo.Utils.IFrameTransport;
+import com.microsoft.Malmo.Utils.SharedMemoryFrameRing;
 import com.microsoft.Malmo.Utils.TCPSocketHelper;
 
 /**
@@ -49,16 +58,14 @@ import com.microsoft.Malmo.Utils.TCPSocketHelper;
  * We use this to send video frames over sockets.
  */
 public class VideoHook {
-    /**
-     * If the sockets are not yet open we delay before retrying. Value is in
-     * nanoseconds.
-     */
-    private static final long RETRY_GAP_NS = 5000000000L;
+    /** Number of frames that can be waiting to be sent, if the mission doesn't say otherwise. */
+    private static final int DEFAULT_FRAME_QUEUE_LENGTH = 2;
 
-    /**
-     * The time in nanoseconds after which we should try sending again.
-     */
-    private long retry_time_ns = 0;
+    /** Number of bytes in the stream id which precedes each frame when there is more than one producer. */
+    private static final int STREAM_ID_SIZE = 4;
+
+    /** Number of bytes in the optional frame header - tick, timestamp and sequence number, then x, y, z, yaw and pitch. */
+    private static final int FRAME_HEADER_SIZE = 8 + 8 + 8 + 8 * 3 + 4 * 2;
 
     /**
      * Calling stop() if we're not running is a no-op.
@@ -71,43 +78,106 @@ public class VideoHook {
     private MissionInit missionInit;
 
     /**
-     * Object that will provide the actual video frame on demand.
+     * Objects that will provide the actual video frames on demand.
+     */
+    private List<IVideoProducer> videoProducers;
+
+    /**
+     * If there is more than one producer, each frame is preceded by a stream id - the index of its producer.
+     */
+    private boolean multiplexed;
+
+    /**
+     * If true, each frame is preceded by a header describing when and where it was captured.
+     */
+    private boolean sendFrameHeader;
+
+    /**
+     * Sequence number of the next frame of each stream.
+     */
+    private long[] frameSequence;
+
+    /**
+     * When and where the world was rendered, for the frame header.
+     */
+    private static class FrameHeader
+    {
+        long worldTick;
+        long timestamp;
+        double x, y, z;
+        float yaw, pitch;
+    }
+
+    /**
+     * Headers of the frames each stream has started reading back, but not yet returned - oldest first.<br>
+     * A producer that reads back asynchronously returns the pixels of an earlier frame, and the header must go with those pixels.
+     */
+    private ArrayDeque<FrameHeader>[] pendingHeaders;
+
+    /**
+     * Headers that have been sent, kept for reuse.
      */
-    private IVideoProducer videoProducer;
+    private ArrayDeque<FrameHeader> spareHeaders = new ArrayDeque<FrameHeader>();
 
     /**
-     * Public count of consecutive TCP failures - used to terminate a mission if nothing is listening
+     * Whether each producer is due to capture a frame, according to its capture schedule.
      */
-    public int failedTCPSendCount = 0;
+    private boolean[] captureDue;
+
+    /**
+     * Number of client ticks since the mission started - for the everyNTicks capture schedule.
+     */
+    private long tickCount;
+
+    /**
+     * If true, Minecraft doesn't render the world on frames that no producer will capture.
+     */
+    private boolean skipUncapturedFrames;
 
     /**
      * Object which maintains our connection to the agent.
      */
-    private TCPSocketHelper.SocketChannelHelper connection = null;
+    private IFrameTransport connection = null;
+
+    /**
+     * Thread which sends the frames down the connection, so that the render thread doesn't have to wait for the agent.
+     */
+    private VideoSender sender = null;
     
     private int renderWidth;
     
     private int renderHeight;
 
-    ByteBuffer buffer = null;
+    /**
+     * If true, Minecraft renders at the video size without the window being resized.
+     */
+    private boolean renderOffscreen;
 
     /**
-     * Resize the rendering and start sending video over TCP.
+     * Resize the rendering and start sending video to the agent.
      */
-    public void start(MissionInit missionInit, IVideoProducer videoProducer)
+    public void start(MissionInit missionInit, List<IVideoProducer> videoProducers)
     {
-        if (videoProducer == null)
+        if (videoProducers == null || videoProducers.isEmpty())
         {
             return; // Don't start up if there is nothing to provide the video.
         }
 
-        videoProducer.prepare(missionInit);
+        int payloadSize = 0;
+        for (IVideoProducer videoProducer : videoProducers)
+        {
+            videoProducer.prepare(missionInit);
+            payloadSize = Math.max(payloadSize, videoProducer.getRequiredBufferSize());
+        }
         this.missionInit = missionInit;
-        this.videoProducer = videoProducer;
-        this.buffer = BufferUtils.createByteBuffer(this.videoProducer.getRequiredBufferSize());
-        
+        this.videoProducers = videoProducers;
+        this.multiplexed = videoProducers.size() > 1;
+
+        // The first producer decides how Minecraft renders - the others just read from the same rendering:
+        IVideoProducer videoProducer = videoProducers.get(0);
         this.renderWidth = videoProducer.getWidth(missionInit);
         this.renderHeight = videoProducer.getHeight(missionInit);
+        this.renderOffscreen = videoProducer.rendersOffscreen();
         resizeIfNeeded();
         Display.setResizable(false); // prevent the user from resizing using the window borders
 
@@ -115,11 +185,44 @@ public class VideoHook {
         if (cac == null)
             return;	// Don't start up if we don't have any connection details.
 
-        String agentIPAddress = cac.getAgentIPAddress();
-        int agentPort = cac.getAgentVideoPort();
+        int queueLength = DEFAULT_FRAME_QUEUE_LENGTH;
+        FrameDropPolicy dropPolicy = FrameDropPolicy.BLOCK;
+        ModSettings modsettings = missionInit.getMission().getModSettings();
+        if (modsettings != null && modsettings.getVideoFrameQueueLength() != null)
+            queueLength = modsettings.getVideoFrameQueueLength();
+        if (modsettings != null && modsettings.getVideoFrameDropPolicy() != null)
+            dropPolicy = modsettings.getVideoFrameDropPolicy();
+        this.sendFrameHeader = modsettings != null && Boolean.TRUE.equals(modsettings.isVideoFrameHeader());
+        this.frameSequence = new long[videoProducers.size()];
+        this.pendingHeaders = createHeaderQueues(videoProducers.size());
+        this.skipUncapturedFrames = modsettings != null && Boolean.TRUE.equals(modsettings.isSkipRenderingUncapturedFrames());
+        this.captureDue = new boolean[videoProducers.size()];
+        this.tickCount = 0;
+        // (Queue length is per producer.)
+        int headerSize = (this.multiplexed ? STREAM_ID_SIZE : 0) + (this.sendFrameHeader ? FRAME_HEADER_SIZE : 0);
+        VideoEncoding[] encodings = new VideoEncoding[videoProducers.size()];
+        for (int i = 0; i < encodings.length; i++)
+            encodings[i] = videoProducers.get(i).getEncoding();
+        int frames = queueLength * videoProducers.size();
+
+        // Agents on the same machine can ask for the frames through shared memory; otherwise they come over TCP:
+        if (cac.getAgentVideoSharedMemoryFile() != null)
+        {
+            try
+            {
+                int slotSize = VideoSender.getMaxMessageSize(headerSize, payloadSize, encodings);
+                this.connection = new SharedMemoryFrameRing(cac.getAgentVideoSharedMemoryFile(), frames + 2, slotSize);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Failed to map " + cac.getAgentVideoSharedMemoryFile() + " - sending video over TCP instead: " + e);
+            }
+        }
+        if (this.connection == null)
+            this.connection = new TCPSocketHelper.SocketChannelHelper(cac.getAgentIPAddress(), cac.getAgentVideoPort());
 
-        this.connection = new TCPSocketHelper.SocketChannelHelper(agentIPAddress, agentPort);
-        this.failedTCPSendCount = 0;
+        this.sender = new VideoSender(this.connection, headerSize, payloadSize, frames, dropPolicy, encodings);
+        this.sender.start();
 
         try
         {
@@ -138,6 +241,15 @@ public class VideoHook {
      */
     private void resizeIfNeeded()
     {
+        if (this.renderOffscreen)
+        {
+            // Leave the window alone, and just make Minecraft render at our size:
+            Minecraft mc = Minecraft.getMinecraft();
+            if (mc.displayWidth != this.renderWidth || mc.displayHeight != this.renderHeight)
+                forceResize(this.renderWidth, this.renderHeight);
+            return;
+        }
+
         // resize the window if we need to
         int oldRenderWidth = Display.getWidth(); 
         int oldRenderHeight = Display.getHeight();
@@ -163,8 +275,8 @@ public class VideoHook {
         {
             return;
         }
-        if (this.videoProducer != null)
-            this.videoProducer.cleanup();
+        for (IVideoProducer videoProducer : this.videoProducers)
+            videoProducer.cleanup();
 
         // stop sending video frames
         try
@@ -176,10 +288,20 @@ public class VideoHook {
         {
             System.out.println("Failed to unregister video hook: " + e);
         }
-        // Close our TCP socket:
-        this.connection.close();
+        // Let the sending thread finish, then close our TCP socket:
+        if (this.sender != null)
+            this.sender.stopSending();
+        this.sender = null;
+        Minecraft.getMinecraft().skipRenderWorld = false;
+        if (this.connection != null)
+            this.connection.close();
+        this.connection = null;
         this.isRunning = false;
 
+        // put Minecraft's rendering back to the size of the window
+        if (this.renderOffscreen)
+            forceResize(Display.getWidth(), Display.getHeight());
+
         // allow the user to resize the window again
         Display.setResizable(true);
     }
@@ -199,6 +321,65 @@ public class VideoHook {
             resizeIfNeeded();
         }
     }
+
+    /**
+     * Called at the start and end of each client tick - used to schedule the per-tick captures.
+     * 
+     * @param event
+     *            Contains information about the event.
+     */
+    @SubscribeEvent
+    public void onClientTick(ClientTickEvent event)
+    {
+        if (!this.isRunning || event.phase != Phase.START)
+            return;
+        this.tickCount++;
+        for (int i = 0; i < this.videoProducers.size(); i++)
+        {
+            IVideoProducer videoProducer = this.videoProducers.get(i);
+            if (videoProducer.getCaptureSchedule() == CaptureSchedule.EVERY_TICK)
+                this.captureDue[i] = true;
+            else if (videoProducer.getCaptureSchedule() == CaptureSchedule.EVERY_N_TICKS && this.tickCount % videoProducer.getCapturePeriod() == 0)
+                this.captureDue[i] = true;
+        }
+        updateSkipRenderWorld();
+    }
+
+    /**
+     * Called when the agent has sent a command - triggers a capture for the producers that capture on command.
+     */
+    public void onCommand()
+    {
+        if (!this.isRunning)
+            return;
+        for (int i = 0; i < this.videoProducers.size(); i++)
+        {
+            if (this.videoProducers.get(i).getCaptureSchedule() == CaptureSchedule.ON_COMMAND)
+                this.captureDue[i] = true;
+        }
+        updateSkipRenderWorld();
+    }
+
+    /**
+     * Don't bother rendering the world if nothing is going to capture it.<br>
+     * The flag must always be re-evaluated from something that runs whether or not the world is rendered (the client tick,
+     * or a command) - while skipRenderWorld is set, Minecraft doesn't fire the render events at all, so they can never clear it.
+     */
+    private void updateSkipRenderWorld()
+    {
+        if (this.skipUncapturedFrames)
+            Minecraft.getMinecraft().skipRenderWorld = !isAnyCaptureDue();
+    }
+
+    private boolean isAnyCaptureDue()
+    {
+        for (int i = 0; i < this.videoProducers.size(); i++)
+        {
+            if (this.captureDue[i] || this.videoProducers.get(i).getCaptureSchedule() == CaptureSchedule.EVERY_FRAME)
+                return true;
+        }
+        return false;
+    }
     
     /**
      * Called when the world has been rendered but not yet the GUI or player hand.
@@ -209,43 +390,121 @@ public class VideoHook {
     @SubscribeEvent
     public void postRender(RenderWorldLastEvent event)
     {
-        long time_before_ns = System.nanoTime();
-
-        if (time_before_ns < retry_time_ns)
+        if (this.sender == null || this.sender.isWaitingToRetry())
             return;
 
-        boolean success = false;
 
-        try
+        for (int i = 0; i < this.videoProducers.size(); i++)
         {
-            int size = this.videoProducer.getRequiredBufferSize();
-            // Get buffer ready for writing to:
-            this.buffer.clear();
-            // Write the frame:
-            this.videoProducer.getFrame(this.missionInit, this.buffer);
-            long time_after_render_ns = System.nanoTime();
-            // The buffer gets flipped by getFrame(), so now we can simply write the frame to the socket:
-            success = this.connection.sendTCPBytes(this.buffer, size);
-
-            long time_after_ns = System.nanoTime();
-            float ms_send = (time_after_ns - time_after_render_ns) / 1000000.0f;
-            float ms_render = (time_after_render_ns - time_before_ns) / 1000000.0f;
-            if (success)
-                this.failedTCPSendCount = 0;    // Reset count of failed sends.
-            //            System.out.format("Total: %.2fms; collecting took %.2fms; sending %d bytes took %.2fms\n", ms_send + ms_render, ms_render, size, ms_send);
-            //            System.out.println("Collect: " + ms_render + "; Send: " + ms_send);
+            IVideoProducer videoProducer = this.videoProducers.get(i);
+            if (videoProducer.getCaptureSchedule() != CaptureSchedule.EVERY_FRAME)
+            {
+                if (!this.captureDue[i])
+                    continue;   // Not this producer's turn.
+                this.captureDue[i] = false;
+            }
+
+            // Get a free slot from the sender's ring - depending on the drop policy, this may wait for the agent to catch up:
+            VideoSender.Frame frame = this.sender.acquireFrame();
+            if (frame == null)
+                return;
+
+            int offset = 0;
+            if (this.multiplexed)
+            {
+                frame.buffer.putInt(0, i);
+                offset = STREAM_ID_SIZE;
+            }
+            // Record the state of the world for the frame we are about to start reading:
+            if (this.sendFrameHeader)
+                this.pendingHeaders[i].addLast(captureHeader(event.partialTicks));
+
+            boolean gotFrame = false;
+            try
+            {
+                // Write the frame:
+                gotFrame = videoProducer.getFrame(this.missionInit, frame.payload);
+            }
+            catch (Exception e)
+            {
+                System.out.println("Failed to get a frame from the video producer: " + e);
+            }
+
+            // Hand it over to the sending thread.
+            // (If the producer has no frame for us yet, there is nothing to send - but that isn't a failure.)
+            if (this.sendFrameHeader)
+            {
+                // The pixels we got back belong to the oldest frame the producer hasn't returned yet; anything older than that
+                // (eg if a read failed) is never going to be returned, so throw it away:
+                ArrayDeque<FrameHeader> pending = this.pendingHeaders[i];
+                while (pending.size() > videoProducer.getFrameLatency() + (gotFrame ? 1 : 0))
+                    this.spareHeaders.addLast(pending.removeFirst());
+                if (gotFrame)
+                {
+                    FrameHeader header = pending.removeFirst();
+                    frame.buffer.putLong(offset, header.worldTick);
+                    frame.buffer.putLong(offset + 8, header.timestamp);
+                    frame.buffer.putLong(offset + 16, this.frameSequence[i]);
+                    frame.buffer.putDouble(offset + 24, header.x);
+                    frame.buffer.putDouble(offset + 32, header.y);
+                    frame.buffer.putDouble(offset + 40, header.z);
+                    frame.buffer.putFloat(offset + 48, header.yaw);
+                    frame.buffer.putFloat(offset + 52, header.pitch);
+                    this.spareHeaders.addLast(header);
+                }
+            }
+            if (gotFrame)
+            {
+                this.frameSequence[i]++;
+                this.sender.submitFrame(frame, i, videoProducer.getRequiredBufferSize());
+            }
+            else
+                this.sender.releaseFrame(frame);
         }
-        catch (Exception e)
+        // If that was the last capture due, don't render again until the next one is:
+        updateSkipRenderWorld();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<FrameHeader>[] createHeaderQueues(int count)
+    {
+        ArrayDeque<FrameHeader>[] queues = new ArrayDeque[count];
+        for (int i = 0; i < count; i++)
+            queues[i] = new ArrayDeque<FrameHeader>();
+        return queues;
+    }
+
+    /**
+     * @return a header describing the frame that has just been rendered - interpolated, as for the camera.
+     */
+    private FrameHeader captureHeader(float partialTicks)
+    {
+        FrameHeader header = this.spareHeaders.isEmpty() ? new FrameHeader() : this.spareHeaders.removeFirst();
+        header.timestamp = System.nanoTime();
+        EntityPlayerSP player = Minecraft.getMinecraft().thePlayer;
+        if (player != null)
         {
-            System.out.format(e.getMessage());
+            header.worldTick = player.worldObj.getTotalWorldTime();
+            header.x = player.lastTickPosX + (player.posX - player.lastTickPosX) * partialTicks;
+            header.y = player.lastTickPosY + (player.posY - player.lastTickPosY) * partialTicks;
+            header.z = player.lastTickPosZ + (player.posZ - player.lastTickPosZ) * partialTicks;
+            header.yaw = player.prevRotationYaw + (player.rotationYaw - player.prevRotationYaw) * partialTicks;
+            header.pitch = player.prevRotationPitch + (player.rotationPitch - player.prevRotationPitch) * partialTicks;
         }
-        
-        if (!success)
+        else
         {
-            System.out.format("Failed to send frame - will retry in %d seconds\n", RETRY_GAP_NS / 1000000000L);
-            retry_time_ns = time_before_ns + RETRY_GAP_NS;
-            this.failedTCPSendCount++;
+            header.worldTick = 0;
+            header.x = header.y = header.z = 0;
+            header.yaw = header.pitch = 0;
         }
+        return header;
+    }
+
+    /** Count of consecutive TCP failures - used to terminate a mission if nothing is listening.
+     */
+    public int getFailedTCPSendCount()
+    {
+        return (this.sender != null) ? this.sender.getFailedTCPSendCount() : 0;
     }
 
     /** Force Minecraft to resize its GUI
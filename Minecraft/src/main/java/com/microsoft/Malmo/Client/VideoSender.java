@@ -0,0 +1,387 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.BufferUtils;
+
+import com.microsoft.Malmo.Schemas.FrameDropPolicy;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
+import com.microsoft.Malmo.Utils.FrameEncoder;
+import com.microsoft.Malmo.Utils.IFrameTransport;
+
+/** Sends video frames to the agent on a dedicated thread.<br>
+ * The render thread copies each frame into a free slot from a bounded ring of preallocated direct buffers, and carries on;
+ * this thread drains the ring to the socket, so rendering and sending overlap and a slow agent no longer holds up Minecraft.<br>
+ * When every slot is in use, the drop policy decides whether the render thread waits for the agent to catch up (BLOCK),
+ * or reclaims the oldest frame that hasn't been sent yet (DROP_OLDEST).
+ */
+public class VideoSender extends Thread
+{
+    /** A slot in the ring - one frame's worth of preallocated buffer.<br>
+     * The buffer starts with a header of fixed size (possibly empty), which the render thread fills in; the producer writes into the payload, which follows it.
+     */
+    public static class Frame
+    {
+        /** The whole frame, header and payload - big-endian, for writing the header. */
+        public final ByteBuffer buffer;
+        /** View of the buffer after the header, for the producer to write into. */
+        public final ByteBuffer payload;
+        int stream;
+        int length;
+
+        Frame(int headerSize, int payloadSize)
+        {
+            this.buffer = BufferUtils.createByteBuffer(headerSize + payloadSize);
+            this.buffer.position(headerSize);
+            this.payload = this.buffer.slice();
+            this.buffer.clear();
+            this.buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    /** Per-stream state for the encoders.
+     */
+    private static class Stream
+    {
+        final VideoEncoding encoding;
+        final ByteBuffer previous;
+        long previousHash;
+        boolean hasPrevious = false;
+
+        Stream(VideoEncoding encoding, int payloadSize)
+        {
+            this.encoding = encoding;
+            // Only XOR/RLE needs the previous frame itself:
+            this.previous = (encoding == VideoEncoding.XOR_RLE) ? ByteBuffer.allocateDirect(payloadSize) : null;
+        }
+
+        /** Forget the previous frame - the receiver won't have it. */
+        void reset()
+        {
+            this.hasPrevious = false;
+            if (this.previous != null)
+            {
+                this.previous.clear();
+                while (this.previous.hasRemaining())
+                    this.previous.put((byte)0);
+                this.previous.clear();
+            }
+        }
+    }
+
+    /** Number of bytes in front of an encoded frame: the encoding code and the raw length. */
+    private static final int ENCODING_HEADER_SIZE = 5;
+
+    private IFrameTransport connection;
+    private FrameDropPolicy dropPolicy;
+    private int headerSize;
+    private Stream[] streams;
+    private FrameEncoder encoder = null;
+    private ByteBuffer encodeBuffer = null;
+    private ArrayDeque<Frame> freeFrames = new ArrayDeque<Frame>();
+    private ArrayDeque<Frame> queuedFrames = new ArrayDeque<Frame>();
+    private boolean keepRunning = true;
+
+    private volatile long framesSent = 0;
+    private final AtomicLong framesDropped = new AtomicLong();  // Counted from both the render thread and this one.
+    private volatile long framesLate = 0;
+
+    /** Create a sender - call start() to begin sending.
+     * @param connection the transport to send the frames down.
+     * @param headerSize the number of bytes reserved at the start of each frame for a header.
+     * @param payloadSize the maximum number of bytes in each frame, excluding the header.
+     * @param queueLength the maximum number of frames that can be waiting to be sent.
+     * @param dropPolicy what to do when a frame is ready but the queue is full.
+     * @param encodings how to encode each stream's frames.
+     */
+    public VideoSender(IFrameTransport connection, int headerSize, int payloadSize, int queueLength, FrameDropPolicy dropPolicy, VideoEncoding[] encodings)
+    {
+        this.connection = connection;
+        this.dropPolicy = (dropPolicy != null) ? dropPolicy : FrameDropPolicy.BLOCK;
+        this.headerSize = headerSize;
+        this.streams = new Stream[encodings.length];
+        for (int i = 0; i < encodings.length; i++)
+        {
+            this.streams[i] = new Stream(encodings[i], payloadSize);
+            if (encodings[i] != VideoEncoding.RAW && this.encoder == null)
+            {
+                this.encoder = new FrameEncoder();
+                this.encodeBuffer = ByteBuffer.allocateDirect(headerSize + ENCODING_HEADER_SIZE + FrameEncoder.maxEncodedLength(payloadSize));
+            }
+        }
+        // One slot for the render thread to fill, one for this thread to send, and the rest for the queue:
+        int slots = Math.max(1, queueLength) + 2;
+        for (int i = 0; i < slots; i++)
+            this.freeFrames.add(new Frame(headerSize, payloadSize));
+        setDaemon(true);
+        setName("Malmo video sender");
+    }
+
+    /** @return the largest message the sender can produce, header included - eg for sizing a transport's buffers.
+     * @param headerSize the number of bytes reserved at the start of each frame for a header.
+     * @param payloadSize the maximum number of bytes in each frame, excluding the header.
+     * @param encodings how each stream's frames will be encoded.
+     */
+    public static int getMaxMessageSize(int headerSize, int payloadSize, VideoEncoding[] encodings)
+    {
+        int size = headerSize + payloadSize;
+        for (VideoEncoding encoding : encodings)
+        {
+            if (encoding != VideoEncoding.RAW)
+                size = headerSize + ENCODING_HEADER_SIZE + FrameEncoder.maxEncodedLength(payloadSize);
+        }
+        return size;
+    }
+
+    /** Get an empty frame to render into. Called from the render thread.<br>
+     * Will wait for a free slot if the policy is BLOCK; otherwise reclaims the oldest unsent frame.
+     * @return a cleared frame, which must be handed back via submitFrame() or releaseFrame(); or null if we are stopping.
+     */
+    public Frame acquireFrame()
+    {
+        Frame frame = null;
+        synchronized (this)
+        {
+            while (this.keepRunning && this.freeFrames.isEmpty())
+            {
+                if (this.dropPolicy == FrameDropPolicy.DROP_OLDEST && !this.queuedFrames.isEmpty())
+                {
+                    this.freeFrames.add(this.queuedFrames.pollFirst());
+                    this.framesDropped.incrementAndGet();
+                }
+                else
+                {
+                    try
+                    {
+                        this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return null;
+                    }
+                }
+            }
+            if (this.keepRunning)
+                frame = this.freeFrames.pollFirst();
+        }
+        if (frame != null)
+        {
+            frame.buffer.clear();
+            frame.payload.clear();
+        }
+        return frame;
+    }
+
+    /** Queue a filled frame for sending. Called from the render thread.
+     * @param frame the frame returned by acquireFrame().
+     * @param stream index of the stream the frame belongs to.
+     * @param length number of bytes in the frame's payload.
+     */
+    public void submitFrame(Frame frame, int stream, int length)
+    {
+        frame.stream = stream;
+        frame.length = length;
+        synchronized (this)
+        {
+            this.queuedFrames.addLast(frame);
+            this.notifyAll();
+        }
+    }
+
+    /** Hand back a frame without sending it (eg because the producer had nothing for us).
+     * @param frame the frame returned by acquireFrame().
+     */
+    public void releaseFrame(Frame frame)
+    {
+        synchronized (this)
+        {
+            this.freeFrames.addFirst(frame);
+            this.notifyAll();
+        }
+    }
+
+    /** Stop sending, and wait for the sending thread to finish.<br>
+     * Once this returns, nothing is using the connection, so it is safe to close it.
+     * (A send can't hang for ever - the transports give up on a stalled agent - so neither can this.)
+     */
+    public void stopSending()
+    {
+        synchronized (this)
+        {
+            this.keepRunning = false;
+            this.notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive())
+        {
+            try
+            {
+                join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        System.out.println(String.format("Video: sent %d frames, dropped %d, sent late %d.", this.framesSent, this.framesDropped.get(), this.framesLate));
+    }
+
+    /** @return true if a send has failed recently and we're waiting before trying again - no point rendering frames in the meantime. */
+    public boolean isWaitingToRetry()
+    {
+        return this.connection.isWaitingToRetry();
+    }
+
+    /** @return the number of consecutive failed sends - used to terminate a mission if nothing is listening. */
+    public int getFailedTCPSendCount()
+    {
+        return this.connection.getFailureCount();
+    }
+
+    /** @return the number of frames discarded, unsent, because the queue was full. */
+    public long getFramesDropped()
+    {
+        return this.framesDropped.get();
+    }
+
+    /** @return the number of frames that only got sent once a newer frame was already waiting behind them. */
+    public long getFramesLate()
+    {
+        return this.framesLate;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            Frame frame = null;
+            synchronized (this)
+            {
+                while (this.keepRunning && this.queuedFrames.isEmpty())
+                {
+                    try
+                    {
+                        this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        this.keepRunning = false;
+                    }
+                }
+                if (!this.keepRunning)
+                    break;
+                frame = this.queuedFrames.pollFirst();
+                if (!this.queuedFrames.isEmpty())
+                    this.framesLate++;  // The render thread is already ahead of us.
+            }
+
+            sendFrame(frame);
+
+            synchronized (this)
+            {
+                this.freeFrames.addLast(frame);
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void sendFrame(Frame frame)
+    {
+        if (this.connection.isWaitingToRetry())
+        {
+            this.framesDropped.incrementAndGet();   // Connection is down - nothing will be listening.
+            return;
+        }
+        ByteBuffer message = frame.buffer;
+        int length = this.headerSize + frame.length;
+        Stream stream = this.streams[frame.stream];
+        if (stream.encoding != VideoEncoding.RAW)
+        {
+            message = this.encodeBuffer;
+            length = encodeFrame(frame, stream);
+        }
+        if (this.connection.sendFrame(message, length))
+        {
+            this.framesSent++;
+        }
+        else
+        {
+            // When we reconnect, the receiver will be starting afresh:
+            for (Stream s : this.streams)
+                s.reset();
+        }
+    }
+
+    /** Encode the frame into the encode buffer, after a copy of its header.
+     * @return the number of bytes to send.
+     */
+    private int encodeFrame(Frame frame, Stream stream)
+    {
+        ByteBuffer out = this.encodeBuffer;
+        out.clear();
+        for (int i = 0; i < this.headerSize; i++)
+            out.put(i, frame.buffer.get(i));
+        int dataStart = this.headerSize + ENCODING_HEADER_SIZE;
+
+        byte encoding;
+        int encodedLength;
+        long hash = FrameEncoder.hash(frame.payload, frame.length);
+        if (stream.hasPrevious && hash == stream.previousHash)
+        {
+            encoding = FrameEncoder.ENCODING_UNCHANGED;
+            encodedLength = 0;
+        }
+        else
+        {
+            if (stream.encoding == VideoEncoding.LZ_FAST)
+            {
+                encoding = FrameEncoder.ENCODING_LZ_FAST;
+                encodedLength = this.encoder.encodeLzFast(frame.payload, frame.length, out, dataStart);
+            }
+            else
+            {
+                encoding = FrameEncoder.ENCODING_XOR_RLE;
+                encodedLength = this.encoder.encodeXorRle(frame.payload, stream.previous, frame.length, out, dataStart);
+            }
+            if (encodedLength >= frame.length || (stream.encoding == VideoEncoding.XOR_RLE && !stream.hasPrevious))
+            {
+                // Not worth it - or the receiver may not have the frame we XORed with - so send the frame as it is:
+                encoding = FrameEncoder.ENCODING_RAW;
+                encodedLength = frame.length;
+                for (int i = 0; i < frame.length; i++)
+                    out.put(dataStart + i, frame.payload.get(i));
+            }
+        }
+        stream.previousHash = hash;
+        stream.hasPrevious = true;
+
+        out.put(this.headerSize, encoding);
+        out.putInt(this.headerSize + 1, frame.length);
+        return dataStart + encodedLength;
+    }
+}
@@ -43,6 +43,7 @@ import net.minecraftforge.fml.common.Mod.Instance;
 import net.minecraftforge.fml.common.ModMetadata;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppingEvent;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
@@ -55,6 +56,11 @@ import com.microsoft.Malmo.Client.MalmoModClient;
 import com.microsoft.Malmo.MissionHandlers.AbsoluteMovementCommandsImplementation;
 import com.microsoft.Malmo.MissionHandlers.ObservationFromFullStatsImplementation;
 import com.microsoft.Malmo.MissionHandlers.ObservationFromGridImplementation;
+import com.microsoft.Malmo.MissionHandlers.ObservationFromNearbyEntitiesImplementation;
+import com.microsoft.Malmo.MissionHandlers.ObservationFromRaysImplementation;
+import com.microsoft.Malmo.MissionHandlers.ObservationFromHeightmapImplementation;
+import com.microsoft.Malmo.MissionHandlers.ObservationFromPathDistanceImplementation;
+import com.microsoft.Malmo.MissionHandlers.ObservationFromServer;
 import com.microsoft.Malmo.MissionHandlers.SimpleCraftCommandsImplementation;
 import com.microsoft.Malmo.Schemas.MissionInit;
 import com.microsoft.Malmo.Server.MalmoModServer;
@@ -116,6 +122,19 @@ public class MalmoMod
         network.registerMessage(SimpleCraftCommandsImplementation.CraftMessageHandler.class, SimpleCraftCommandsImplementation.CraftMessage.class, 4, Side.SERVER);
         network.registerMessage(AbsoluteMovementCommandsImplementation.TeleportMessageHandler.class, AbsoluteMovementCommandsImplementation.TeleportMessage.class, 5, Side.SERVER);
         network.registerMessage(MalmoMessageHandler.class, MalmoMessage.class, 6, Side.SERVER);	// Malmo messages from client to server
+        network.registerMessage(ObservationFromServer.ObservationReplyMessageHandler.class, ObservationFromServer.ObservationReplyMessage.class, 7, Side.CLIENT);	// Observations from server to client
+        network.registerMessage(ObservationFromServer.SubscriptionMessageHandler.class, ObservationFromServer.SubscriptionMessage.class, 8, Side.SERVER);	// Observation subscriptions from client to server
+        network.registerMessage(ObservationFromNearbyEntitiesImplementation.NearbyEntitiesRequestMessageHandler.class, ObservationFromNearbyEntitiesImplementation.NearbyEntitiesRequestMessage.class, 9, Side.SERVER);
+        network.registerMessage(ObservationFromRaysImplementation.RaysRequestMessageHandler.class, ObservationFromRaysImplementation.RaysRequestMessage.class, 10, Side.SERVER);
+        network.registerMessage(ObservationFromHeightmapImplementation.HeightmapRequestMessageHandler.class, ObservationFromHeightmapImplementation.HeightmapRequestMessage.class, 11, Side.SERVER);
+        network.registerMessage(ObservationFromPathDistanceImplementation.PathDistanceRequestMessageHandler.class, ObservationFromPathDistanceImplementation.PathDistanceRequestMessage.class, 12, Side.SERVER);
+        network.registerMessage(ObservationFromGridImplementation.KeyframeRequestMessageHandler.class, ObservationFromGridImplementation.KeyframeRequestMessage.class, 13, Side.SERVER);
+        ObservationFromServer.registerRequestType(ObservationFromFullStatsImplementation.FullStatsRequestMessage.class, new ObservationFromFullStatsImplementation.FullStatsRequestMessageHandler());
+        ObservationFromServer.registerRequestType(ObservationFromGridImplementation.GridRequestMessage.class, new ObservationFromGridImplementation.GridRequestMessageHandler());
+        ObservationFromServer.registerRequestType(ObservationFromNearbyEntitiesImplementation.NearbyEntitiesRequestMessage.class, new ObservationFromNearbyEntitiesImplementation.NearbyEntitiesRequestMessageHandler());
+        ObservationFromServer.registerRequestType(ObservationFromRaysImplementation.RaysRequestMessage.class, new ObservationFromRaysImplementation.RaysRequestMessageHandler());
+        ObservationFromServer.registerRequestType(ObservationFromHeightmapImplementation.HeightmapRequestMessage.class, new ObservationFromHeightmapImplementation.HeightmapRequestMessageHandler());
+        ObservationFromServer.registerRequestType(ObservationFromPathDistanceImplementation.PathDistanceRequestMessage.class, new ObservationFromPathDistanceImplementation.PathDistanceRequestMessageHandler());
     }
 
     public Configuration getModSessionConfigFile() { return this.sessionConfig; }
@@ -145,6 +164,13 @@ public class MalmoMod
         }
     }
 
+    @EventHandler
+    public void serverStopping(FMLServerStoppingEvent event)
+    {
+        // Don't hang on to the old server's worlds through any observation subscriptions that are still open:
+        ObservationFromServer.SubscriptionMessageHandler.clearSubscriptions();
+    }
+
     public void initIntegratedServer(MissionInit minit)
     {
         // Will replace any existing server objects.
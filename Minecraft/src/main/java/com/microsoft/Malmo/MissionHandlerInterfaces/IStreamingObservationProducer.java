@@ -0,0 +1,41 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlerInterfaces;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.Schemas.MissionInit;
+
+/** Observation producer that can write its observations straight into the outgoing message, rather than building a JSON tree.<br>
+ * Producers that don't implement this are still called through writeObservationsToJSON(), and their tree is written out for them.<br>
+ * Only the client-side producers that are sent every tick stream (FullInventory, HotBar, Distance, DiscreteCell), along with
+ * ObservationFromServer, which streams the bytes it was sent. The server-side producers still build a tree, on the server, once per
+ * subscription every ServerObservationPeriod ticks - streaming only saves the client from building it again.
+ */
+public interface IStreamingObservationProducer extends IObservationProducer
+{
+    /** Write our observations into the outgoing JSON.
+     * @param writer a writer with a JSON object already open - write name/value pairs into it, but don't close it.
+     * @param missionInit the MissionInit object for the currently running mission, which may contain parameters for the observation requirements.
+     * @throws IOException if the writer fails.
+     */
+    public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException;
+}
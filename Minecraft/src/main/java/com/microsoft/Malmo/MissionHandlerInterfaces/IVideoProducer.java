@@ -21,7 +21,9 @@ package com.microsoft.Malmo.MissionHandlerInterfaces;
 
 import java.nio.ByteBuffer;
 
+import com.microsoft.Malmo.Schemas.CaptureSchedule;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
 
 /** Interface for objects which are responsible for providing Minecraft video data.
  */
@@ -29,10 +31,11 @@ public interface IVideoProducer
 {
     /** Get a frame of video from Minecraft.
      * @param missionInit the MissionInit object for the currently running mission, which may contain parameters for the video requirements.
-     * @return an array of bytes representing this frame.<br>
+     * @param buffer the buffer to write the frame into.<br>
      * (The format is unspecified; it is up to the IVideoProducer implementation and the agent to agree on how the data is formatted.)
+     * @return true if a frame was written; false if none is available yet (eg while an asynchronous readback is still in flight).
      */
-    public void getFrame(MissionInit missionInit, ByteBuffer buffer);
+    public boolean getFrame(MissionInit missionInit, ByteBuffer buffer);
     
     /** Get the requested width of the video frames returned.*/
     public int getWidth(MissionInit missionInit);
@@ -40,8 +43,25 @@ public interface IVideoProducer
     /** Get the requested height of the video frames returned.*/
     public int getHeight(MissionInit missionInit);
     
+    /** Whether Minecraft should render the world offscreen, at exactly the requested width and height, instead of resizing the window.<br>
+     * Only valid once prepare() has been called.*/
+    public boolean rendersOffscreen();
+    
+    /** How the frames should be encoded for sending.*/
+    public VideoEncoding getEncoding();
+    
+    /** When frames should be captured.*/
+    public CaptureSchedule getCaptureSchedule();
+
+    /** Number of client ticks between captures, for CaptureSchedule.EVERY_N_TICKS.*/
+    public int getCapturePeriod();
+    
     /** Get the number of bytes required to store a frame.*/
     public int getRequiredBufferSize();
+
+    /** Number of calls to getFrame() between a frame being captured and its pixels being returned - zero unless reading back asynchronously.<br>
+     * Only valid once prepare() has been called.*/
+    public int getFrameLatency();
     
     /** Called once before the mission starts - use for any necessary initialisation.*/
     public void prepare(MissionInit missionInit);
@@ -0,0 +1,490 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.OpenGlHelper;
+import net.minecraft.client.renderer.culling.ClippingHelperImpl;
+import net.minecraft.client.renderer.culling.Frustum;
+import net.minecraft.client.renderer.texture.TextureMap;
+import net.minecraft.client.shader.Framebuffer;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.EnumWorldBlockLayer;
+import net.minecraft.util.MathHelper;
+import net.minecraftforge.client.event.RenderLivingEvent;
+import net.minecraftforge.client.event.RenderWorldLastEvent;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IVideoProducer;
+import com.microsoft.Malmo.Schemas.CaptureSchedule;
+import com.microsoft.Malmo.Schemas.ColourMapProducer;
+import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
+import com.microsoft.Malmo.Utils.BlockColourVolume;
+import com.microsoft.Malmo.Utils.BlockGridSampler;
+import com.microsoft.Malmo.Utils.PixelBufferRing;
+import com.microsoft.Malmo.Utils.ShaderHelper;
+
+/** Video producer that returns a per-pixel class map, with each type of block and entity drawn in its own flat colour.<br>
+ * Once the world has been rendered, its chunk geometry is drawn again into our own framebuffer, at the requested size. The chunk geometry
+ * doesn't say which block it came from, so the shader works it out from the fragment's position: it steps just past the surface, along the
+ * line of sight, and looks up the colour of the block it lands in, in a BlockColourVolume - a 3D texture of the colour of each block id, for
+ * the blocks around the viewer. So the colouring is just a texture lookup in the shader, with no per-pixel work in Java. Blocks beyond the
+ * volume are drawn in the colour for "unknown", as are blocks in chunks that aren't loaded yet. Entities are drawn with a flat colour set per entity.<br>
+ * The legend - which names each colour stands for - is sent with the observations, as ColourMapLegend (see getLegendProducer()), though only
+ * when it has changed. Blocks are named by their block name; living entities by their entity name (eg "Pig", or "Player"); other entities
+ * share the colour for "entity", and anything else, such as the sky, is black.
+ */
+public class ColourMapProducerImplementation extends HandlerBase implements IVideoProducer
+{
+	/** Number of pixel buffer objects used for asynchronous readback - frames are delivered one frame late.*/
+	private static final int PIXEL_BUFFER_RING_SIZE = 2;
+
+	/** Name whose colour is used for entities that aren't living - items, arrows, tile entities, etc.*/
+	private static final String OTHER_ENTITY_NAME = "entity";
+
+	/** Name of the observation that holds the legend.*/
+	private static final String LEGEND_NAME = "ColourMapLegend";
+
+	/** Texture unit the block colour volume is bound to - clear of the block atlas (0) and the lightmap (1).*/
+	private static final int VOLUME_TEXTURE_UNIT = 2;
+
+	/** Passes the position on to the fragment shader in the volume's coordinates - relative to its lowest corner.*/
+	private static final String VERTEX_SHADER =
+		"#version 120\n" +
+		"uniform mat4 eyeToVolume;\n" +
+		"varying vec2 uv;\n" +
+		"varying vec3 volumePos;\n" +
+		"void main()\n" +
+		"{\n" +
+		"    gl_Position = ftransform();\n" +
+		"    uv = (gl_TextureMatrix[0] * gl_MultiTexCoord0).st;\n" +
+		"    volumePos = (eyeToVolume * (gl_ModelViewMatrix * gl_Vertex)).xyz;\n" +
+		"}\n";
+
+	/** Blocks take their colour from the volume, entities from the flat colour - either way, the texture's alpha decides what gets drawn.<br>
+	 * A block's colour is read from a hundredth of a block past the surface, along the line of sight, to land inside the block the surface belongs to.
+	 */
+	private static final String FRAGMENT_SHADER =
+		"#version 120\n" +
+		"const float SIZE = " + BlockColourVolume.SIZE + ".0;\n" +
+		"uniform sampler2D tex;\n" +
+		"uniform sampler3D blockColours;\n" +
+		"uniform mat4 eyeToVolume;\n" +
+		"uniform vec3 volumeWrap;\n" +
+		"uniform bool useFlatColour;\n" +
+		"uniform vec3 flatColour;\n" +
+		"uniform vec3 unknownColour;\n" +
+		"varying vec2 uv;\n" +
+		"varying vec3 volumePos;\n" +
+		"void main()\n" +
+		"{\n" +
+		"    vec4 t = texture2D(tex, uv);\n" +
+		"    if (t.a < 0.1)\n" +
+		"        discard;\n" +
+		"    vec3 colour = flatColour;\n" +
+		"    if (!useFlatColour)\n" +
+		"    {\n" +
+		"        vec3 p = floor(volumePos + normalize(volumePos - eyeToVolume[3].xyz) * 0.01);\n" +
+		"        if (all(greaterThanEqual(p, vec3(0.0))) && all(lessThan(p, vec3(SIZE))))\n" +
+		"            colour = texture3D(blockColours, (p + volumeWrap + 0.5) / SIZE).rgb;\n" +
+		"        else\n" +
+		"            colour = unknownColour;\n" +
+		"    }\n" +
+		"    gl_FragColor = vec4(colour, 1.0);\n" +
+		"}\n";
+
+	private ColourMapProducer cmParams;
+	private Framebuffer fbo;
+	private PixelBufferRing ring;
+	private int program = 0;
+	private int useFlatColourLoc;
+	private int flatColourLoc;
+	private int eyeToVolumeLoc;
+	private int volumeWrapLoc;
+	private BlockColourVolume volume;
+	private float partialTicks = 0;
+	private boolean renderingEntities = false;
+	private Frustum frustum;
+	private FloatBuffer projection = BufferUtils.createFloatBuffer(16);
+	private FloatBuffer matrix = BufferUtils.createFloatBuffer(16);
+	private Matrix4f eyeToVolume = new Matrix4f();
+	private Matrix4f volumeTranslation = new Matrix4f();
+	private Vector3f volumeOffset = new Vector3f();
+	/** The names each colour stands for - the blocks, added in prepare(), and the entities, added as they are drawn.*/
+	private Map<Integer, List<String>> legend = new TreeMap<Integer, List<String>>();
+	/** The legend as JSON - rebuilt only when the legend changes.*/
+	private JsonObject legendJson = null;
+	/** Goes up each time the legend changes, so that the legend producer can tell whether it needs sending again.*/
+	private int legendVersion = 0;
+
+    @Override
+    public boolean parseParameters(Object params)
+    {
+        if (params == null || !(params instanceof ColourMapProducer))
+            return false;
+        this.cmParams = (ColourMapProducer)params;
+        return true;
+    }
+
+    /** The colour we paint the named type with, as 0xRRGGBB - names which hash to the same colour share it, so see the legend.*/
+    public static int getColourForName(String name)
+    {
+        return name.hashCode() & 0xFFFFFF;
+    }
+
+    /** @return an observation producer that sends the legend, as an object mapping each colour (six hex digits, "rrggbb") to the names it stands for.<br>
+     * It holds every block, and every type of entity drawn so far - so it can grow during the mission. It is sent with the first observations,
+     * and after that only when it has grown - each time in full, so the latest one received is always complete.
+     */
+    public IObservationProducer getLegendProducer()
+    {
+        return new IObservationProducer()
+        {
+            private int sentVersion = -1;
+
+            @Override
+            public void writeObservationsToJSON(JsonObject json, MissionInit missionInit)
+            {
+                if (this.sentVersion == legendVersion)
+                    return;
+                json.add(LEGEND_NAME, getLegendJson());
+                this.sentVersion = legendVersion;
+            }
+
+            @Override
+            public void prepare(MissionInit missionInit)
+            {
+                this.sentVersion = -1;
+            }
+
+            @Override
+            public void cleanup()
+            {
+            }
+        };
+    }
+
+    private JsonObject getLegendJson()
+    {
+        if (this.legendJson == null)
+        {
+            this.legendJson = new JsonObject();
+            for (Map.Entry<Integer, List<String>> entry : this.legend.entrySet())
+            {
+                JsonArray names = new JsonArray();
+                for (String name : entry.getValue())
+                    names.add(new JsonPrimitive(name));
+                this.legendJson.add(String.format("%06x", entry.getKey()), names);
+            }
+        }
+        return this.legendJson;
+    }
+
+    private void addToLegend(int colour, String name)
+    {
+        List<String> names = this.legend.get(colour);
+        if (names == null)
+        {
+            names = new ArrayList<String>();
+            this.legend.put(colour, names);
+        }
+        if (!names.contains(name))
+        {
+            names.add(name);
+            this.legendJson = null;
+            this.legendVersion++;
+        }
+    }
+
+    @Override
+    public boolean getFrame(MissionInit missionInit, ByteBuffer buffer)
+    {
+        Minecraft mc = Minecraft.getMinecraft();
+        Entity viewer = mc.getRenderViewEntity();
+        if (this.program == 0 || viewer == null || mc.theWorld == null || mc.displayWidth == 0 || mc.displayHeight == 0)
+            return false;
+
+        final int width = this.cmParams.getWidth();
+        final int height = this.cmParams.getHeight();
+        double x = viewer.lastTickPosX + (viewer.posX - viewer.lastTickPosX) * this.partialTicks;
+        double y = viewer.lastTickPosY + (viewer.posY - viewer.lastTickPosY) * this.partialTicks;
+        double z = viewer.lastTickPosZ + (viewer.posZ - viewer.lastTickPosZ) * this.partialTicks;
+        this.volume.update(mc.theWorld, MathHelper.floor_double(x), MathHelper.floor_double(y), MathHelper.floor_double(z));
+
+        // The chunks are drawn relative to the viewer, so undo the camera to get back to that, then move to the volume's lowest corner:
+        this.matrix.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, this.matrix);
+        this.eyeToVolume.load(this.matrix);
+        if (Matrix4f.invert(this.eyeToVolume, this.eyeToVolume) == null)
+            return false;
+        this.volumeOffset.set((float)(x - this.volume.getXMin()), (float)(y - this.volume.getYMin()), (float)(z - this.volume.getZMin()));
+        this.volumeTranslation.setIdentity();
+        this.volumeTranslation.translate(this.volumeOffset);
+        Matrix4f.mul(this.volumeTranslation, this.eyeToVolume, this.eyeToVolume);
+
+        // The camera is still set up from rendering the world, so just draw it all again into our framebuffer - but the projection is for
+        // the main view's aspect ratio. Crop it to ours, keeping the centre of the main view, so that we draw nothing the world render culled:
+        float mainAspect = (float)mc.displayWidth / (float)mc.displayHeight;
+        float aspect = (float)width / (float)height;
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPushMatrix();
+        GL11.glGetFloat(GL11.GL_PROJECTION_MATRIX, this.projection);
+        GL11.glLoadIdentity();
+        if (aspect < mainAspect)
+            GL11.glScalef(mainAspect / aspect, 1, 1);
+        else
+            GL11.glScalef(1, aspect / mainAspect, 1);
+        GL11.glMultMatrix(this.projection);
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        ClippingHelperImpl.getInstance();	// Recalculates the clipping planes our frustum uses, for our projection.
+        this.fbo.framebufferClear();
+        this.fbo.bindFramebuffer(true);
+        GlStateManager.enableDepth();
+        GlStateManager.depthMask(true);
+        GlStateManager.disableBlend();
+        GL20.glUseProgram(this.program);
+        this.matrix.clear();
+        this.eyeToVolume.store(this.matrix);
+        this.matrix.flip();
+        GL20.glUniformMatrix4(this.eyeToVolumeLoc, false, this.matrix);
+        final int mask = BlockColourVolume.SIZE - 1;
+        GL20.glUniform3f(this.volumeWrapLoc, this.volume.getXMin() & mask, this.volume.getYMin() & mask, this.volume.getZMin() & mask);
+        GlStateManager.setActiveTexture(OpenGlHelper.defaultTexUnit + VOLUME_TEXTURE_UNIT);
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, this.volume.getTexture());
+        GlStateManager.setActiveTexture(OpenGlHelper.defaultTexUnit);
+
+        // Blocks, coloured through the volume - the atlas is still bound, to give their shapes:
+        GL20.glUniform1i(this.useFlatColourLoc, 0);
+        mc.renderGlobal.renderBlockLayer(EnumWorldBlockLayer.SOLID, this.partialTicks, 2, viewer);
+        mc.renderGlobal.renderBlockLayer(EnumWorldBlockLayer.CUTOUT_MIPPED, this.partialTicks, 2, viewer);
+        mc.renderGlobal.renderBlockLayer(EnumWorldBlockLayer.CUTOUT, this.partialTicks, 2, viewer);
+        mc.renderGlobal.renderBlockLayer(EnumWorldBlockLayer.TRANSLUCENT, this.partialTicks, 2, viewer);
+
+        // Entities, in flat colours - onRenderLivingPre sets the colour for each living entity:
+        GL20.glUniform1i(this.useFlatColourLoc, 1);
+        setFlatColour(OTHER_ENTITY_NAME);
+        this.frustum.setPosition(x, y, z);
+        this.renderingEntities = true;
+        mc.renderGlobal.renderEntities(viewer, this.frustum, this.partialTicks);
+        this.renderingEntities = false;
+        GL20.glUseProgram(0);
+        GlStateManager.setActiveTexture(OpenGlHelper.defaultTexUnit + VOLUME_TEXTURE_UNIT);
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, 0);
+        GlStateManager.setActiveTexture(OpenGlHelper.defaultTexUnit);
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPopMatrix();
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        ClippingHelperImpl.getInstance();	// Back to the main view's clipping planes.
+
+        // Read the pixels out:
+        this.fbo.bindFramebuffer(false);
+        boolean ready = true;
+        if (this.ring != null)
+            ready = this.ring.readPixels(width, height, GL11.GL_RGB, GL11.GL_UNSIGNED_BYTE, buffer);
+        else
+            GL11.glReadPixels(0, 0, width, height, GL11.GL_RGB, GL11.GL_UNSIGNED_BYTE, buffer);
+
+        // And put things back the way Minecraft expects them:
+        mc.getFramebuffer().bindFramebuffer(true);
+        mc.getTextureManager().bindTexture(TextureMap.locationBlocksTexture);
+        return ready;
+    }
+
+    /** Record the partial ticks for this frame, so that we draw the entities where the world render drew them.<br>
+     * Runs before the VideoHook asks us for a frame.
+     */
+    @SubscribeEvent(priority = EventPriority.HIGHEST)
+    public void onRenderWorldLast(RenderWorldLastEvent event)
+    {
+        this.partialTicks = event.partialTicks;
+    }
+
+    @SubscribeEvent
+    public void onRenderLivingPre(RenderLivingEvent.Pre event)
+    {
+        if (!this.renderingEntities)
+            return;
+        String name = EntityList.getEntityString(event.entity);
+        if (name == null)
+            name = (event.entity instanceof EntityPlayer) ? "Player" : OTHER_ENTITY_NAME;
+        setFlatColour(name);
+    }
+
+    @SubscribeEvent
+    public void onRenderLivingPost(RenderLivingEvent.Post event)
+    {
+        if (this.renderingEntities)
+            setFlatColour(OTHER_ENTITY_NAME);
+    }
+
+    private void setFlatColour(String name)
+    {
+        int colour = getColourForName(name);
+        addToLegend(colour, name);
+        GL20.glUniform3f(this.flatColourLoc, ((colour >> 16) & 0xFF) / 255.0f, ((colour >> 8) & 0xFF) / 255.0f, (colour & 0xFF) / 255.0f);
+    }
+
+	@Override
+	public int getWidth(MissionInit missionInit)
+	{
+		return this.cmParams.getWidth();
+	}
+
+	@Override
+	public int getHeight(MissionInit missionInit)
+	{
+		return this.cmParams.getHeight();
+	}
+
+	@Override
+	public VideoEncoding getEncoding()
+	{
+		return this.cmParams.getEncoding();
+	}
+
+	@Override
+	public CaptureSchedule getCaptureSchedule()
+	{
+		return this.cmParams.getCaptureSchedule();
+	}
+
+	@Override
+	public int getCapturePeriod()
+	{
+		return this.cmParams.getCapturePeriod();
+	}
+
+	@Override
+	public boolean rendersOffscreen()
+	{
+		return false;
+	}
+
+    public int getRequiredBufferSize()
+    {
+    	return this.cmParams.getWidth() * this.cmParams.getHeight() * 3;
+    }
+
+    @Override
+    public int getFrameLatency()
+    {
+        return this.ring != null ? PIXEL_BUFFER_RING_SIZE - 1 : 0;
+    }
+
+	@Override
+	public void prepare(MissionInit missionInit)
+	{
+		if (!OpenGlHelper.isFramebufferEnabled())
+		{
+			System.out.println("ColourMapProducer needs framebuffer objects, which aren't available - no colour maps will be sent.");
+			return;
+		}
+		this.program = ShaderHelper.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+		if (this.program == 0)
+		{
+			System.out.println("Failed to create colour map shaders - no colour maps will be sent.");
+			return;
+		}
+		this.useFlatColourLoc = GL20.glGetUniformLocation(this.program, "useFlatColour");
+		this.flatColourLoc = GL20.glGetUniformLocation(this.program, "flatColour");
+		this.eyeToVolumeLoc = GL20.glGetUniformLocation(this.program, "eyeToVolume");
+		this.volumeWrapLoc = GL20.glGetUniformLocation(this.program, "volumeWrap");
+		int unknownColour = getColourForName(BlockGridSampler.getBlockName(BlockGridSampler.UNKNOWN_BLOCK_ID));
+		GL20.glUseProgram(this.program);
+		GL20.glUniform1i(GL20.glGetUniformLocation(this.program, "tex"), 0);
+		GL20.glUniform1i(GL20.glGetUniformLocation(this.program, "blockColours"), VOLUME_TEXTURE_UNIT);
+		GL20.glUniform3f(GL20.glGetUniformLocation(this.program, "unknownColour"), ((unknownColour >> 16) & 0xFF) / 255.0f, ((unknownColour >> 8) & 0xFF) / 255.0f, (unknownColour & 0xFF) / 255.0f);
+		GL20.glUseProgram(0);
+
+		this.fbo = new Framebuffer(this.cmParams.getWidth(), this.cmParams.getHeight(), true);
+		this.fbo.setFramebufferColor(0, 0, 0, 0);	// Black for anything we don't draw.
+		this.frustum = new Frustum();
+		this.legend.clear();
+		this.legendJson = null;
+		this.volume = new BlockColourVolume(getBlockColours());
+		// Asynchronous readback only makes sense if we capture every frame - otherwise each capture would return the previous one:
+		if (this.cmParams.isAsyncReadback() && getCaptureSchedule() == CaptureSchedule.EVERY_FRAME)
+			this.ring = new PixelBufferRing(PIXEL_BUFFER_RING_SIZE, getRequiredBufferSize());
+		MinecraftForge.EVENT_BUS.register(this);
+	}
+
+	@Override
+	public void cleanup()
+	{
+		if (this.program == 0)
+			return;
+		MinecraftForge.EVENT_BUS.unregister(this);
+		GL20.glDeleteProgram(this.program);
+		this.fbo.deleteFramebuffer();	// Must do this or we leak resources.
+		this.volume.release();
+		if (this.ring != null)
+			this.ring.delete();
+		this.program = 0;
+		this.fbo = null;
+		this.frustum = null;
+		this.volume = null;
+		this.ring = null;
+	}
+
+	/** Work out the colour of each block id, from its name, and add the blocks to the legend.
+	 * @return the colours, as 0xRRGGBB, indexed by the ids BlockGridSampler returns.
+	 */
+	private int[] getBlockColours()
+	{
+		int[] colours = new int[BlockGridSampler.NUM_IDS];
+		int unknownColour = getColourForName(BlockGridSampler.getBlockName(BlockGridSampler.UNKNOWN_BLOCK_ID));
+		for (int id = 0; id < BlockGridSampler.NUM_IDS; id++)
+		{
+			String name = BlockGridSampler.getBlockName(id);
+			if (name.isEmpty())
+			{
+				colours[id] = unknownColour;	// Not registered - nothing in the world will have this id.
+				continue;
+			}
+			colours[id] = getColourForName(name);
+			addToLegend(colours[id], name);
+		}
+		return colours;
+	}
+}
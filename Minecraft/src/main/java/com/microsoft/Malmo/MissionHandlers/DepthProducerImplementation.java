@@ -0,0 +1,168 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import java.nio.ByteBuffer;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.OpenGlHelper;
+import net.minecraft.client.shader.Framebuffer;
+
+import org.lwjgl.opengl.GL11;
+
+import com.microsoft.Malmo.MissionHandlerInterfaces.IVideoProducer;
+import com.microsoft.Malmo.Schemas.CaptureSchedule;
+import com.microsoft.Malmo.Schemas.DepthProducer;
+import com.microsoft.Malmo.Schemas.DepthScaling;
+import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
+import com.microsoft.Malmo.Utils.DepthPacker;
+import com.microsoft.Malmo.Utils.PixelBufferRing;
+
+/** Video producer that returns just the depth map, scaled to one byte per pixel.<br>
+ * The depth is packed into the alpha channel on the GPU, and only that channel is read back.
+ */
+public class DepthProducerImplementation extends HandlerBase implements IVideoProducer
+{
+	/** Number of pixel buffer objects used for asynchronous readback - frames are delivered one frame late.*/
+	private static final int PIXEL_BUFFER_RING_SIZE = 2;
+
+	private DepthProducer depthParams;
+	private DepthPacker depthPacker;
+	private PixelBufferRing ring;
+
+    @Override
+    public boolean parseParameters(Object params)
+    {
+        if (params == null || !(params instanceof DepthProducer))
+            return false;
+        this.depthParams = (DepthProducer)params;
+        return true;
+    }
+
+    @Override
+    public boolean getFrame(MissionInit missionInit, ByteBuffer buffer)
+    {
+        if (this.depthPacker == null)
+            return false;   // Nothing we can do without the shaders.
+
+        final int width = this.depthParams.getWidth();
+        final int height = this.depthParams.getHeight();
+        Framebuffer mcfb = Minecraft.getMinecraft().getFramebuffer();
+
+        // The scaling section is optional - if there is no depthScaling object, go with the default of autoscale.
+        DepthScaling scaling = this.depthParams.getDepthScaling();
+        if (scaling == null || scaling.isAutoscale())
+            this.depthPacker.pack(mcfb, true, 0, 1);
+        else
+            this.depthPacker.pack(mcfb, false, scaling.getMin().floatValue(), scaling.getMax().floatValue());
+
+        // Read back just the alpha channel. Rows of single bytes needn't be word aligned, so turn off the padding:
+        GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 1);
+        boolean ready = true;
+        if (this.ring != null)
+            ready = this.ring.readPixels(width, height, GL11.GL_ALPHA, GL11.GL_UNSIGNED_BYTE, buffer);
+        else
+            GL11.glReadPixels(0, 0, width, height, GL11.GL_ALPHA, GL11.GL_UNSIGNED_BYTE, buffer);
+        GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 4);
+
+        mcfb.bindFramebuffer(false);    // Minecraft is still rendering into this.
+        return ready;
+    }
+
+	@Override
+	public int getWidth(MissionInit missionInit)
+	{
+		return this.depthParams.getWidth();
+	}
+
+	@Override
+	public int getHeight(MissionInit missionInit)
+	{
+		return this.depthParams.getHeight();
+	}
+
+	@Override
+	public VideoEncoding getEncoding()
+	{
+		return this.depthParams.getEncoding();
+	}
+
+	@Override
+	public CaptureSchedule getCaptureSchedule()
+	{
+		return this.depthParams.getCaptureSchedule();
+	}
+
+	@Override
+	public int getCapturePeriod()
+	{
+		return this.depthParams.getCapturePeriod();
+	}
+
+	@Override
+	public boolean rendersOffscreen()
+	{
+		return false;
+	}
+
+    public int getRequiredBufferSize()
+    {
+    	return this.depthParams.getWidth() * this.depthParams.getHeight();
+    }
+
+    @Override
+    public int getFrameLatency()
+    {
+        return this.ring != null ? PIXEL_BUFFER_RING_SIZE - 1 : 0;
+    }
+
+	@Override
+	public void prepare(MissionInit missionInit)
+	{
+		if (!OpenGlHelper.isFramebufferEnabled())
+		{
+			System.out.println("DepthProducer needs framebuffer objects, which aren't available - no depth maps will be sent.");
+			return;
+		}
+		this.depthPacker = new DepthPacker(this.depthParams.getWidth(), this.depthParams.getHeight());
+		if (!this.depthPacker.isValid())
+		{
+			System.out.println("Failed to create depth packing shaders - no depth maps will be sent.");
+			this.depthPacker.delete();
+			this.depthPacker = null;
+			return;
+		}
+		// Asynchronous readback only makes sense if we capture every frame - otherwise each capture would return the previous one:
+		if (this.depthParams.isAsyncReadback() && getCaptureSchedule() == CaptureSchedule.EVERY_FRAME)
+			this.ring = new PixelBufferRing(PIXEL_BUFFER_RING_SIZE, getRequiredBufferSize());
+	}
+
+	@Override
+	public void cleanup()
+	{
+		if (this.depthPacker != null)
+			this.depthPacker.delete();	// Must do this or we leak resources.
+		if (this.ring != null)
+			this.ring.delete();
+		this.depthPacker = null;
+		this.ring = null;
+	}
+}
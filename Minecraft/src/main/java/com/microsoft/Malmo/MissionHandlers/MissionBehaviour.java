@@ -19,6 +19,9 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.microsoft.Malmo.MissionHandlerInterfaces.IAudioProducer;
 import com.microsoft.Malmo.MissionHandlerInterfaces.ICommandHandler;
 import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
@@ -29,13 +32,14 @@ import com.microsoft.Malmo.MissionHandlerInterfaces.IWorldDecorator;
 import com.microsoft.Malmo.MissionHandlerInterfaces.IWorldGenerator;
 import com.microsoft.Malmo.Schemas.AgentHandlers;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.ObservationAttributes;
 import com.microsoft.Malmo.Schemas.ServerHandlers;
 
 /** Holder class for the various MissionHandler interfaces that together define the behaviour of the mission.<br>
  */
 public class MissionBehaviour
 {
-    public IVideoProducer videoProducer = null;
+    public List<IVideoProducer> videoProducers = new ArrayList<IVideoProducer>();
     public IAudioProducer audioProducer = null;
     public ICommandHandler commandHandler = null;
     public IObservationProducer observationProducer = null;
@@ -82,7 +86,7 @@ public class MissionBehaviour
 
     private void reset()
     {
-        this.videoProducer = null;
+        this.videoProducers.clear();
         this.audioProducer = null;
         this.commandHandler = null;
         this.observationProducer = null;
@@ -131,10 +135,28 @@ public class MissionBehaviour
         {
         	if (handler instanceof HandlerBase)
         		((HandlerBase)(handler)).setParentBehaviour(this);
+        	if (handler instanceof IObservationProducer)
+        		handler = applyObservationCadence((IObservationProducer)handler, xmlObj);
             addHandler(handler);
         }
     }
 
+    /** Wrap an observation producer in an ObservationFromCadence, if its XML asks for anything other than an observation every tick.<br>
+     * The period and onChangeOnly attributes come from the ObservationAttributes type, which the observation producers' XML extends.
+     */
+    private IObservationProducer applyObservationCadence(IObservationProducer producer, Object xmlObj)
+    {
+        if (!(xmlObj instanceof ObservationAttributes))
+            return producer;    // No cadence attributes for this producer.
+        int period = ((ObservationAttributes)xmlObj).getPeriod();
+        boolean onChangeOnly = ((ObservationAttributes)xmlObj).isOnChangeOnly();
+        if (period <= 1 && !onChangeOnly)
+            return producer;
+        ObservationFromCadence wrapper = new ObservationFromCadence(producer, period, onChangeOnly);
+        wrapper.setParentBehaviour(this);
+        return wrapper;
+    }
+
     /** Add this handler to our set, creating containers as needs be.
      * @param handler The handler to add.
      */
@@ -169,10 +191,11 @@ public class MissionBehaviour
     
     private void addVideoProducer(IVideoProducer handler)
     {
-        if (this.videoProducer != null)
-            this.failedHandlers += "Too many video producers specified - only one allowed at present.\n";
-        else
-            this.videoProducer = handler;
+        // Any number allowed - they all share the same rendering of the world.
+        this.videoProducers.add(handler);
+        // The colour map's legend goes out with the observations:
+        if (handler instanceof ColourMapProducerImplementation)
+            addObservationProducer(((ColourMapProducerImplementation)handler).getLegendProducer());
     }
     
     private void addAudioProducer(IAudioProducer handler)
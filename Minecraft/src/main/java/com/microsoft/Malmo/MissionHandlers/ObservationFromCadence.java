@@ -0,0 +1,129 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
+import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Utils.BinaryJsonHelper;
+import com.microsoft.Malmo.Utils.JSONFrameWriter;
+
+/** Wrapper around an observation producer that only lets its observations through every N ticks, and/or only when they have changed.<br>
+ * Created by MissionBehaviour for any producer whose period and onChangeOnly attributes aren't the defaults.
+ */
+public class ObservationFromCadence extends HandlerBase implements IStreamingObservationProducer
+{
+    private IObservationProducer producer;
+    private int period;
+    private boolean onChangeOnly;
+    private int ticksSinceObservation = 0;
+    private byte[] lastSent = null;
+
+    /** @param producer the producer to wrap.
+     * @param period only include the observations every this many ticks.
+     * @param onChangeOnly if true, leave the observations out if they are the same as the last ones sent.
+     */
+    public ObservationFromCadence(IObservationProducer producer, int period, boolean onChangeOnly)
+    {
+        this.producer = producer;
+        this.period = Math.max(1, period);
+        this.onChangeOnly = onChangeOnly;
+    }
+
+    /** @return true if the wrapped producer is due to be asked for its observations this tick.*/
+    private boolean isDue()
+    {
+        this.ticksSinceObservation++;
+        if (this.ticksSinceObservation < this.period)
+            return false;
+        this.ticksSinceObservation = 0;
+        return true;
+    }
+
+    /** Compare the observations with the last ones we sent, in their binary encoding (see BinaryJsonHelper) - comparing the bytes is cheaper than comparing trees.
+     * @return true if they have changed (and should be sent).
+     */
+    private boolean hasChanged(JsonObject json)
+    {
+        byte[] encoded = BinaryJsonHelper.toBytes(json);
+        if (Arrays.equals(encoded, this.lastSent))
+            return false;
+        this.lastSent = encoded;
+        return true;
+    }
+
+    @Override
+    public void writeObservationsToJSON(JsonObject json, MissionInit missionInit)
+    {
+        if (!isDue())
+            return;
+        if (!this.onChangeOnly)
+        {
+            this.producer.writeObservationsToJSON(json, missionInit);
+            return;
+        }
+        JsonObject observations = new JsonObject();
+        this.producer.writeObservationsToJSON(observations, missionInit);
+        if (hasChanged(observations))
+        {
+            for (Map.Entry<String, JsonElement> entry : observations.entrySet())
+                json.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+    {
+        if (!isDue())
+            return;
+        if (!this.onChangeOnly)
+        {
+            JSONFrameWriter.writeObservations(this.producer, writer, missionInit);
+            return;
+        }
+        // Need the tree in order to compare it:
+        JsonObject observations = new JsonObject();
+        this.producer.writeObservationsToJSON(observations, missionInit);
+        if (hasChanged(observations))
+            JSONFrameWriter.writeMembers(observations, writer);
+    }
+
+    @Override
+    public void prepare(MissionInit missionInit)
+    {
+        this.ticksSinceObservation = this.period - 1;  // So that the first tick produces observations.
+        this.lastSent = null;
+        this.producer.prepare(missionInit);
+    }
+
+    @Override
+    public void cleanup()
+    {
+        this.producer.cleanup();
+        this.lastSent = null;
+    }
+}
@@ -19,15 +19,19 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Utils.JSONFrameWriter;
 
 /** Composite class that concatenates the results from multiple ObservationProducer objects.<br>
  */
-public class ObservationFromComposite extends HandlerBase implements IObservationProducer
+public class ObservationFromComposite extends HandlerBase implements IStreamingObservationProducer
 {
     private ArrayList<IObservationProducer> producers;
 	
@@ -55,6 +59,18 @@ public class ObservationFromComposite extends HandlerBase implements IObservatio
         }
     }
 
+    @Override
+    public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+    {
+        if (this.producers == null)
+            return;
+
+        for (IObservationProducer producer : this.producers)
+        {
+            JSONFrameWriter.writeObservations(producer, writer, missionInit);
+        }
+    }
+
 	@Override
 	public void prepare(MissionInit missionInit)
 	{
@@ -19,14 +19,17 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.io.IOException;
+
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 
 import com.google.gson.JsonObject;
-import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
 
-public class ObservationFromDiscreteCellImplementation extends HandlerBase implements IObservationProducer
+public class ObservationFromDiscreteCellImplementation extends HandlerBase implements IStreamingObservationProducer
 {
 	@Override
 	public void writeObservationsToJSON(JsonObject json, MissionInit missionInit)
@@ -39,6 +42,15 @@ public class ObservationFromDiscreteCellImplementation extends HandlerBase imple
 		json.addProperty("cell", "(" + x + "," + z + ")");
 	}
 
+	@Override
+	public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+	{
+		EntityPlayerSP player = Minecraft.getMinecraft().thePlayer;
+		int x = player.getPosition().getX();
+		int z = player.getPosition().getZ();
+		writer.name("cell").value("(" + x + "," + z + ")");
+	}
+
 	@Override
 	public void prepare(MissionInit missionInit) {}
 
@@ -19,20 +19,23 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.io.IOException;
+
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 
 import com.google.gson.JsonObject;
-import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
 import com.microsoft.Malmo.Schemas.NamedPoint;
 import com.microsoft.Malmo.Schemas.ObservationFromDistance;
 import com.microsoft.Malmo.Utils.PositionHelper;
 
-/** Simple IObservationProducer class that creates a single "distanceFromTarget" observation, using the target specified in the MissionInit XML.<br>
+/** Simple IStreamingObservationProducer class that creates a single "distanceFromTarget" observation, using the target specified in the MissionInit XML.<br>
  * (Yes, we know this is cheating for RL, but it's a useful test example.)
  */
-public class ObservationFromDistanceImplementation extends HandlerBase implements IObservationProducer
+public class ObservationFromDistanceImplementation extends HandlerBase implements IStreamingObservationProducer
 {
 	private ObservationFromDistance odparams;
 	
@@ -56,6 +59,15 @@ public class ObservationFromDistanceImplementation extends HandlerBase implement
     	}
 	}
 
+	@Override
+	public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+	{
+		// Written as a Float, not widened to a double, so that the value reads the same as it does in the JSON tree:
+		EntityPlayerSP player = Minecraft.getMinecraft().thePlayer;
+		for (NamedPoint marker : odparams.getMarker())
+			writer.name("distanceFrom" + makeSafe(marker.getName())).value(Float.valueOf(PositionHelper.calcDistanceFromPlayerToPosition(player, marker)));
+	}
+
 	private String makeSafe(String raw)
 	{
 		// Hopefully the string won't be too crazy, since the XSD:Name type will disallow bonkers characters.
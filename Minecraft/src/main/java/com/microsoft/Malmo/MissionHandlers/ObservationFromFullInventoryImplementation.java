@@ -19,17 +19,20 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.io.IOException;
+
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.item.ItemStack;
 
 import com.google.gson.JsonObject;
-import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
 
-/** Simple IObservationProducer class that returns a list of the full inventory, including the armour.
+/** Simple IStreamingObservationProducer class that returns a list of the full inventory, including the armour.
  */
-public class ObservationFromFullInventoryImplementation extends HandlerBase implements IObservationProducer
+public class ObservationFromFullInventoryImplementation extends HandlerBase implements IStreamingObservationProducer
 {
     @Override
     public void writeObservationsToJSON(JsonObject json, MissionInit missionInit)
@@ -46,6 +49,22 @@ public class ObservationFromFullInventoryImplementation extends HandlerBase impl
             }
         }
     }
+
+    @Override
+    public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+    {
+    	EntityPlayerSP player = Minecraft.getMinecraft().thePlayer;
+        int nSlots = player.inventory.getSizeInventory();
+        for (int i = 0; i < nSlots; i++)
+        {
+            ItemStack is = player.inventory.getStackInSlot(i);
+            if (is != null)
+            {
+                writer.name("InventorySlot_" + i + "_size").value(is.stackSize);
+                writer.name("InventorySlot_" + i + "_item").value(is.getItem().getUnlocalizedName());
+            }
+        }
+    }
     
 	@Override
 	public void prepare(MissionInit missionInit) {}
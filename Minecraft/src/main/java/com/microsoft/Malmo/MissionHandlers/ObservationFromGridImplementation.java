@@ -22,17 +22,29 @@ package com.microsoft.Malmo.MissionHandlers;
 import io.netty.buffer.ByteBuf;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.IThreadListener;
+import net.minecraft.world.WorldServer;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.microsoft.Malmo.MalmoMod;
 import com.microsoft.Malmo.Schemas.GridDefinition;
+import com.microsoft.Malmo.Schemas.GridEncoding;
+import com.microsoft.Malmo.Schemas.MissionInit;
 import com.microsoft.Malmo.Schemas.ObservationFromGrid;
+import com.microsoft.Malmo.Utils.BlockGridSampler;
+import com.microsoft.Malmo.Utils.BlockGridTracker;
 import com.microsoft.Malmo.Utils.JSONWorldDataHelper;
 import com.microsoft.Malmo.Utils.JSONWorldDataHelper.ImmediateEnvironmentDimensions;
 
@@ -51,7 +63,10 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 		int yMax;
 		int zMax;
 		String name;
-		SimpleGridDef(int xmin, int ymin, int zmin, int xmax, int ymax, int zmax, String name)
+		GridEncoding encoding;
+		boolean delta;
+		int keyframePeriod = 1;
+		SimpleGridDef(int xmin, int ymin, int zmin, int xmax, int ymax, int zmax, String name, GridEncoding encoding, boolean delta)
 		{
 			this.xMin = xmin;
 			this.yMin = ymin;
@@ -60,6 +75,8 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 			this.yMax = ymax;
 			this.zMax = zmax;
 			this.name = name;
+			this.encoding = encoding;
+			this.delta = delta;
 		}
 		ImmediateEnvironmentDimensions getEnvirons()
 		{
@@ -74,7 +91,25 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 		}
 	}
 	
+    /** Server side state of a grid in delta mode - the grid as it is now, and as it was at the last keyframe.*/
+    private static class DeltaState
+    {
+    	BlockGridTracker tracker;
+    	int[] keyframe = null;
+    	int[] keyframeOrigin;
+    	long seq = 0;
+    	long keyframeSeq = 0;
+    	int observationsSinceKeyframe = 0;
+    	boolean keyframeRequested = false;
+    	boolean lastWasKeyframe = false;
+    	/** The last delta we built - sent again, unchanged, for as long as nothing in the grid changes.*/
+    	JsonObject lastDelta = null;
+    }
+
     private List<SimpleGridDef> environs = null;
+    /** Client side - the keyframe seq of each delta grid that has been sent to the agent, and of each keyframe we have asked the server for.*/
+    private Map<String, Long> keyframesSent = new HashMap<String, Long>();
+    private Map<String, Long> keyframesRequested = new HashMap<String, Long>();
 
 	@Override
 	public boolean parseParameters(Object params)
@@ -93,7 +128,10 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 				gd.getMax().getX().intValue(),
 				gd.getMax().getY().intValue(),
 				gd.getMax().getZ().intValue(),
-				gd.getName());
+				gd.getName(),
+				gd.getEncoding(),
+				gd.isDelta() && (gd.getEncoding() == GridEncoding.BLOCK_NAMES || gd.getEncoding() == GridEncoding.PALETTE));	// Bitsets can't be sent as deltas.
+        	sgd.keyframePeriod = gd.getKeyframePeriod();
         	this.environs.add(sgd);
         }
 		return true;
@@ -102,6 +140,8 @@ public class ObservationFromGridImplementation extends ObservationFromServer
     public static class GridRequestMessage extends ObservationFromServer.ObservationRequestMessage
     {
         private List<SimpleGridDef> environs = null;
+        /** Server side only - the state of each grid in delta mode, kept for the life of the subscription.*/
+        private Map<String, DeltaState> deltaStates = new HashMap<String, DeltaState>();
 
 	    public GridRequestMessage()	// Needed so FML can instantiate our class using reflection.
 	    {
@@ -119,7 +159,8 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 	        this.environs = new ArrayList<SimpleGridDef>();
 	        for (int i = 0; i < numGrids; i++)
 	        {
-	        	SimpleGridDef sgd = new SimpleGridDef(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), ByteBufUtils.readUTF8String(buf));
+	        	SimpleGridDef sgd = new SimpleGridDef(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), ByteBufUtils.readUTF8String(buf), GridEncoding.fromValue(ByteBufUtils.readUTF8String(buf)), buf.readBoolean());
+	        	sgd.keyframePeriod = buf.readInt();
 	        	this.environs.add(sgd);
 	        }
 		}
@@ -137,10 +178,82 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 				buf.writeInt(sgd.yMax);
 				buf.writeInt(sgd.zMax);
 				ByteBufUtils.writeUTF8String(buf, sgd.name);
+				ByteBufUtils.writeUTF8String(buf, sgd.encoding.value());
+				buf.writeBoolean(sgd.delta);
+				buf.writeInt(sgd.keyframePeriod);
 			}
 		}
 		
 		List<SimpleGridDef>getEnvirons() { return this.environs; }
+
+		@Override
+		public void addReturnData(Map<String, String> returnData)
+		{
+			// Tell the client which keyframe each delta is built on, so it can tell whether the agent has it:
+			for (Map.Entry<String, DeltaState> entry : this.deltaStates.entrySet())
+			{
+				returnData.put(entry.getKey() + "_base", String.valueOf(entry.getValue().keyframeSeq));
+				if (entry.getValue().lastWasKeyframe)
+					returnData.put(entry.getKey() + "_keyframe", "true");
+			}
+		}
+
+		@Override
+		public void onUnsubscribed()
+		{
+			for (DeltaState state : this.deltaStates.values())
+				state.tracker.release();
+			this.deltaStates.clear();
+		}
+    }
+
+    /** Message from the client asking for fresh keyframes of all its delta grids - sent when the agent can't have the keyframe that the latest delta is built on.*/
+    public static class KeyframeRequestMessage implements IMessage
+    {
+    	private int id = 0;
+
+    	public KeyframeRequestMessage()	// Needed so FML can instantiate our class using reflection.
+    	{
+    	}
+
+    	public KeyframeRequestMessage(int id)
+    	{
+    		this.id = id;
+    	}
+
+    	@Override
+    	public void fromBytes(ByteBuf buf)
+    	{
+    		this.id = buf.readInt();
+    	}
+
+    	@Override
+    	public void toBytes(ByteBuf buf)
+    	{
+    		buf.writeInt(this.id);
+    	}
+    }
+
+    public static class KeyframeRequestMessageHandler implements IMessageHandler<KeyframeRequestMessage, IMessage>
+    {
+    	@Override
+    	public IMessage onMessage(final KeyframeRequestMessage message, MessageContext ctx)
+    	{
+    		final EntityPlayerMP player = ctx.getServerHandler().playerEntity;
+    		IThreadListener mainThread = (WorldServer)player.worldObj;
+    		mainThread.addScheduledTask(new Runnable() {
+    			@Override
+    			public void run() {
+    				ObservationRequestMessage request = ObservationFromServer.SubscriptionMessageHandler.getSubscribedRequest(message.id, player);
+    				if (request instanceof GridRequestMessage)
+    				{
+    					for (DeltaState state : ((GridRequestMessage)request).deltaStates.values())
+    						state.keyframeRequested = true;
+    				}
+    			}
+    		});
+    		return null; // no response in this case
+    	}
     }
     
     public static class GridRequestMessageHandler extends ObservationFromServer.ObservationRequestMessageHandler implements IMessageHandler<GridRequestMessage, IMessage>
@@ -155,12 +268,146 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 			    {
 			    	for (SimpleGridDef sgd : environs)
 			    	{
-						JSONWorldDataHelper.buildGridData(json, sgd.getEnvirons(), player, sgd.name);
+			    		if (sgd.delta)
+			    			buildDelta(json, player, (GridRequestMessage)message, sgd);
+			    		else if (sgd.encoding == GridEncoding.PALETTE)
+			    			JSONWorldDataHelper.buildPaletteGridData(json, sgd.getEnvirons(), player, sgd.name);
+			    		else if (sgd.encoding == GridEncoding.OCCUPANCY)
+			    			JSONWorldDataHelper.buildOccupancyGridData(json, sgd.getEnvirons(), player, sgd.name, 1);
+			    		else if (sgd.encoding == GridEncoding.MATERIAL)
+			    			JSONWorldDataHelper.buildOccupancyGridData(json, sgd.getEnvirons(), player, sgd.name, 2);
+			    		else
+			    			JSONWorldDataHelper.buildGridData(json, sgd.getEnvirons(), player, sgd.name);
 			    	}
 			    }
 			}
 		}
 
+		/** Add either a keyframe - the whole grid - or the changes since the last keyframe, for a grid in delta mode.<br>
+		 * The grid itself is kept up to date by a BlockGridTracker, so only the cells that have changed or come into view are read from the world.
+		 */
+		private void buildDelta(JsonObject json, EntityPlayerMP player, GridRequestMessage message, SimpleGridDef sgd)
+		{
+			DeltaState state = message.deltaStates.get(sgd.name);
+			if (state == null || state.tracker.getWorld() != player.worldObj)
+			{
+				if (state != null)
+					state.tracker.release();
+				state = new DeltaState();
+				state.tracker = new BlockGridTracker(player.worldObj, sgd.getEnvirons());
+				message.deltaStates.put(sgd.name, state);
+			}
+
+			BlockPos pos = player.getPosition();
+			state.observationsSinceKeyframe++;
+			boolean keyframe = (state.keyframe == null || state.keyframeRequested || state.observationsSinceKeyframe >= sgd.keyframePeriod);
+			if (keyframe)
+				state.tracker.invalidate();	// Sample it afresh - this picks up anything the tracker can't hear about, such as chunks loading.
+			boolean changed = state.tracker.update(pos);
+			state.lastWasKeyframe = false;
+			if (!changed && !keyframe)
+			{
+				json.add(sgd.name + "_delta", state.lastDelta);
+				return;
+			}
+
+			int[] cells = state.tracker.getCells();
+			int numCells = state.tracker.getNumCells();
+			JsonArray indices = new JsonArray();
+			JsonArray blocks = new JsonArray();
+			if (!keyframe)
+			{
+				// Compare with the keyframe, allowing for the player's movement since then - cell r of the new grid is cell r + shift of the keyframe:
+				int xSize = state.tracker.getXSize();
+				int ySize = state.tracker.getYSize();
+				int zSize = state.tracker.getZSize();
+				int dx = pos.getX() - state.keyframeOrigin[0];
+				int dy = pos.getY() - state.keyframeOrigin[1];
+				int dz = pos.getZ() - state.keyframeOrigin[2];
+				int maxChanges = numCells / 2;	// Beyond this, a keyframe is cheaper.
+				int numChanges = 0;
+				int i = 0;
+				for (int y = 0; y < ySize && !keyframe; y++)
+				{
+					for (int z = 0; z < zSize && !keyframe; z++)
+					{
+						for (int x = 0; x < xSize; x++, i++)
+						{
+							int px = x + dx;
+							int py = y + dy;
+							int pz = z + dz;
+							boolean wasInView = (px >= 0 && px < xSize && py >= 0 && py < ySize && pz >= 0 && pz < zSize);
+							if (wasInView && cells[i] == state.keyframe[(py * zSize + pz) * xSize + px])
+								continue;
+							if (++numChanges > maxChanges)
+							{
+								keyframe = true;
+								break;
+							}
+							indices.add(new JsonPrimitive(i));
+							blocks.add(BlockGridSampler.getBlockNamePrimitive(cells[i]));
+						}
+					}
+				}
+			}
+
+			state.seq++;
+			JsonArray origin = new JsonArray();
+			origin.add(new JsonPrimitive(pos.getX()));
+			origin.add(new JsonPrimitive(pos.getY()));
+			origin.add(new JsonPrimitive(pos.getZ()));
+			JsonObject delta = new JsonObject();
+			delta.addProperty("seq", state.seq);
+			if (keyframe)
+			{
+				if (state.keyframe == null)
+					state.keyframe = new int[numCells];
+				System.arraycopy(cells, 0, state.keyframe, 0, numCells);
+				state.keyframeOrigin = new int[] { pos.getX(), pos.getY(), pos.getZ() };
+				state.keyframeSeq = state.seq;
+				state.observationsSinceKeyframe = 0;
+				state.keyframeRequested = false;
+				state.lastWasKeyframe = true;
+				if (sgd.encoding == GridEncoding.PALETTE)
+					JSONWorldDataHelper.addPaletteGridData(json, cells, numCells, sgd.name);
+				else
+					JSONWorldDataHelper.addGridData(json, cells, numCells, sgd.name);
+				delta.addProperty("base", state.seq);
+				delta.addProperty("keyframe", true);
+				delta.add("origin", origin);
+				json.add(sgd.name + "_delta", delta);
+
+				// Until something changes, the observations are the keyframe with no changes:
+				JsonObject empty = new JsonObject();
+				empty.addProperty("seq", state.seq);
+				empty.addProperty("base", state.seq);
+				empty.addProperty("keyframe", false);
+				empty.add("origin", origin);
+				JsonArray noShift = new JsonArray();
+				for (int c = 0; c < 3; c++)
+					noShift.add(new JsonPrimitive(0));
+				empty.add("shift", noShift);
+				empty.add("indices", new JsonArray());
+				empty.add("blocks", new JsonArray());
+				state.lastDelta = empty;
+			}
+			else
+			{
+				JsonArray shift = new JsonArray();
+				shift.add(new JsonPrimitive(pos.getX() - state.keyframeOrigin[0]));
+				shift.add(new JsonPrimitive(pos.getY() - state.keyframeOrigin[1]));
+				shift.add(new JsonPrimitive(pos.getZ() - state.keyframeOrigin[2]));
+				delta.addProperty("base", state.keyframeSeq);
+				delta.addProperty("keyframe", false);
+				delta.add("origin", origin);
+				delta.add("shift", shift);
+				delta.add("indices", indices);
+				delta.add("blocks", blocks);
+				json.add(sgd.name + "_delta", delta);
+				state.lastDelta = delta;
+			}
+		}
+
 		@Override
 		public IMessage onMessage(GridRequestMessage message, MessageContext ctx)
 		{
@@ -168,6 +415,41 @@ public class ObservationFromGridImplementation extends ObservationFromServer
 		}
     }
 
+	@Override
+	public void prepare(MissionInit missionInit)
+	{
+		super.prepare(missionInit);
+		this.keyframesSent.clear();
+		this.keyframesRequested.clear();
+	}
+
+	/** Check that the agent has the keyframe that each delta it has just been sent is built on - it won't if the keyframe was replaced
+	 * by a later observation before we got to send it. If not, ask the server for a fresh one rather than wait for the next periodic keyframe.
+	 */
+	@Override
+	protected void onObservationsSent(Map<String, String> data)
+	{
+		if (this.environs == null || data == null)
+			return;
+		boolean wantKeyframe = false;
+		for (SimpleGridDef sgd : this.environs)
+		{
+			String base = sgd.delta ? data.get(sgd.name + "_base") : null;
+			if (base == null)
+				continue;
+			Long baseSeq = Long.valueOf(base);
+			if (data.containsKey(sgd.name + "_keyframe"))
+				this.keyframesSent.put(sgd.name, baseSeq);
+			else if (!baseSeq.equals(this.keyframesSent.get(sgd.name)) && !baseSeq.equals(this.keyframesRequested.get(sgd.name)))
+			{
+				this.keyframesRequested.put(sgd.name, baseSeq);
+				wantKeyframe = true;
+			}
+		}
+		if (wantKeyframe)
+			MalmoMod.network.sendToServer(new KeyframeRequestMessage(System.identityHashCode(this)));
+	}
+
 	@Override
 	public ObservationRequestMessage createObservationRequestMessage()
 	{
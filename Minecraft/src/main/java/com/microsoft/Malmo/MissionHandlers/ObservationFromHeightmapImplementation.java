@@ -0,0 +1,172 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.microsoft.Malmo.Schemas.ObservationFromHeightmap;
+import com.microsoft.Malmo.Utils.BlockGridSampler;
+import com.microsoft.Malmo.Utils.HeightmapCache;
+
+/** IObservationProducer that returns the height and surface block of every column in a square around the player.<br>
+ * The columns come from HeightmapCache, which fills each chunk from Minecraft's own height map and holds on to it until a block in the chunk changes,
+ * so the cost of a wide view is mostly copying cached arrays.
+ */
+public class ObservationFromHeightmapImplementation extends ObservationFromServer
+{
+	private String name;
+	private int radius;
+
+	@Override
+	public boolean parseParameters(Object params)
+	{
+		if (params == null || !(params instanceof ObservationFromHeightmap))
+			return false;
+
+		ObservationFromHeightmap hparams = (ObservationFromHeightmap)params;
+		this.name = hparams.getName();
+		this.radius = hparams.getRadius();
+		return true;
+	}
+
+	public static class HeightmapRequestMessage extends ObservationFromServer.ObservationRequestMessage
+	{
+		private String name;
+		private int radius;
+
+		public HeightmapRequestMessage()	// Needed so FML can instantiate our class using reflection.
+		{
+		}
+
+		public HeightmapRequestMessage(String name, int radius)
+		{
+			this.name = name;
+			this.radius = radius;
+		}
+
+		@Override
+		void restoreState(ByteBuf buf)
+		{
+			this.name = ByteBufUtils.readUTF8String(buf);
+			this.radius = buf.readInt();
+		}
+
+		@Override
+		void persistState(ByteBuf buf)
+		{
+			ByteBufUtils.writeUTF8String(buf, this.name);
+			buf.writeInt(this.radius);
+		}
+	}
+
+	public static class HeightmapRequestMessageHandler extends ObservationFromServer.ObservationRequestMessageHandler implements IMessageHandler<HeightmapRequestMessage, IMessage>
+	{
+		@Override
+		void buildJson(JsonObject json, EntityPlayerMP player, ObservationRequestMessage message, MessageContext ctx)
+		{
+			if (!(message instanceof HeightmapRequestMessage))
+				return;
+			HeightmapRequestMessage hmessage = (HeightmapRequestMessage)message;
+			World world = player.worldObj;
+			HeightmapCache cache = HeightmapCache.forWorld(world);
+			BlockPos pos = player.getPosition();
+			int size = 2 * hmessage.radius + 1;
+			int x0 = pos.getX() - hmessage.radius;
+			int z0 = pos.getZ() - hmessage.radius;
+			int x1 = x0 + size - 1;
+			int z1 = z0 + size - 1;
+
+			byte[] heights = new byte[size * size * 2];
+			byte[] surface = new byte[size * size * 2];
+			int[] paletteIndices = new int[BlockGridSampler.NUM_IDS];
+			Arrays.fill(paletteIndices, -1);
+			JsonArray palette = new JsonArray();
+
+			// Visit a chunk at a time, copying its cached columns into place:
+			for (int cx = x0 >> 4; cx <= x1 >> 4; cx++)
+			{
+				int xStart = Math.max(x0, cx << 4);
+				int xEnd = Math.min(x1, (cx << 4) + 15);
+				for (int cz = z0 >> 4; cz <= z1 >> 4; cz++)
+				{
+					int zStart = Math.max(z0, cz << 4);
+					int zEnd = Math.min(z1, (cz << 4) + 15);
+					HeightmapCache.ChunkColumns columns = cache.getColumns(world, cx, cz);
+					for (int z = zStart; z <= zEnd; z++)
+					{
+						int cell = (z - z0) * size + (xStart - x0);
+						for (int x = xStart; x <= xEnd; x++, cell++)
+						{
+							int column = ((z & 15) << 4) | (x & 15);
+							int height = columns.heights[column];
+							int blockId = columns.blockIds[column];
+							int index = paletteIndices[blockId];
+							if (index == -1)
+							{
+								index = palette.size();
+								paletteIndices[blockId] = index;
+								palette.add(BlockGridSampler.getBlockNamePrimitive(blockId));
+							}
+							heights[2 * cell] = (byte)(height & 0xff);
+							heights[2 * cell + 1] = (byte)((height >> 8) & 0xff);
+							surface[2 * cell] = (byte)(index & 0xff);
+							surface[2 * cell + 1] = (byte)((index >> 8) & 0xff);
+						}
+					}
+				}
+			}
+
+			JsonArray origin = new JsonArray();
+			origin.add(new JsonPrimitive(x0));
+			origin.add(new JsonPrimitive(z0));
+			json.add(hmessage.name + "_origin", origin);
+			json.addProperty(hmessage.name + "_heights", DatatypeConverter.printBase64Binary(heights));
+			json.addProperty(hmessage.name + "_surface", DatatypeConverter.printBase64Binary(surface));
+			json.add(hmessage.name + "_palette", palette);
+		}
+
+		@Override
+		public IMessage onMessage(HeightmapRequestMessage message, MessageContext ctx)
+		{
+			return processMessage(message, ctx);
+		}
+	}
+
+	@Override
+	public ObservationRequestMessage createObservationRequestMessage()
+	{
+		return new HeightmapRequestMessage(this.name, this.radius);
+	}
+}
@@ -19,17 +19,20 @@
 
 package com.microsoft.Malmo.MissionHandlers;
 
+import java.io.IOException;
+
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.item.ItemStack;
 
 import com.google.gson.JsonObject;
-import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
 
-/** Simple IObservationProducer class that returns a list of what is in the "hotbar".
+/** Simple IStreamingObservationProducer class that returns a list of what is in the "hotbar".
  */
-public class ObservationFromHotBarImplementation extends HandlerBase implements IObservationProducer
+public class ObservationFromHotBarImplementation extends HandlerBase implements IStreamingObservationProducer
 {
 	@Override
 	public void prepare(MissionInit missionInit) {}
@@ -52,4 +55,19 @@ public class ObservationFromHotBarImplementation extends HandlerBase implements
         }
         System.out.println(json.toString());
     }
+
+	@Override
+    public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
+    {
+    	EntityPlayerSP player = Minecraft.getMinecraft().thePlayer;
+        for (int i = 0; i < 9; i++)
+        {
+            ItemStack is = player.inventory.getStackInSlot(i);
+            if (is != null)
+            {
+                writer.name("Hotbar_" + i + "_size").value(is.stackSize);
+                writer.name("Hotbar_" + i + "_item").value(is.getItem().getUnlocalizedName());
+            }
+        }
+    }
 }
\ No newline at end of file
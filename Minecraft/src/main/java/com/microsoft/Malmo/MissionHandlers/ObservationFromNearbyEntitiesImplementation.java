@@ -0,0 +1,200 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.microsoft.Malmo.Schemas.ObservationFromNearbyEntities;
+
+/** IObservationProducer that returns the entities within a given distance of the player, nearest first.<br>
+ * The search is done on the server, using World.getEntitiesWithinAABBExcludingEntity(), which only looks in the entity lists
+ * of the chunk sections that overlap the search box - so the cost depends on the number of entities nearby, not the number in the world.
+ */
+public class ObservationFromNearbyEntitiesImplementation extends ObservationFromServer
+{
+	private String name;
+	private double radius;
+	private int maxEntities;
+
+	@Override
+	public boolean parseParameters(Object params)
+	{
+		if (params == null || !(params instanceof ObservationFromNearbyEntities))
+			return false;
+
+		ObservationFromNearbyEntities neparams = (ObservationFromNearbyEntities)params;
+		this.name = neparams.getName();
+		this.radius = neparams.getRadius().doubleValue();
+		this.maxEntities = neparams.getMaxEntities();
+		return true;
+	}
+
+	public static class NearbyEntitiesRequestMessage extends ObservationFromServer.ObservationRequestMessage
+	{
+		private String name;
+		private double radius;
+		private int maxEntities;
+
+		public NearbyEntitiesRequestMessage()	// Needed so FML can instantiate our class using reflection.
+		{
+		}
+
+		public NearbyEntitiesRequestMessage(String name, double radius, int maxEntities)
+		{
+			this.name = name;
+			this.radius = radius;
+			this.maxEntities = maxEntities;
+		}
+
+		@Override
+		void restoreState(ByteBuf buf)
+		{
+			this.name = ByteBufUtils.readUTF8String(buf);
+			this.radius = buf.readDouble();
+			this.maxEntities = buf.readInt();
+		}
+
+		@Override
+		void persistState(ByteBuf buf)
+		{
+			ByteBufUtils.writeUTF8String(buf, this.name);
+			buf.writeDouble(this.radius);
+			buf.writeInt(this.maxEntities);
+		}
+	}
+
+	public static class NearbyEntitiesRequestMessageHandler extends ObservationFromServer.ObservationRequestMessageHandler implements IMessageHandler<NearbyEntitiesRequestMessage, IMessage>
+	{
+		@Override
+		void buildJson(JsonObject json, final EntityPlayerMP player, ObservationRequestMessage message, MessageContext ctx)
+		{
+			if (!(message instanceof NearbyEntitiesRequestMessage))
+				return;
+			NearbyEntitiesRequestMessage nemessage = (NearbyEntitiesRequestMessage)message;
+			double radius = nemessage.radius;
+
+			// Gather the candidates from the chunks that overlap the box around the player...
+			AxisAlignedBB box = player.getEntityBoundingBox().expand(radius, radius, radius);
+			List<?> candidates = player.worldObj.getEntitiesWithinAABBExcludingEntity(player, box);
+			// ...and keep the ones that are actually within range:
+			List<Entity> entities = new ArrayList<Entity>();
+			double radiusSq = radius * radius;
+			for (Object obj : candidates)
+			{
+				Entity entity = (Entity)obj;
+				if (!entity.isDead && entity.getDistanceSqToEntity(player) <= radiusSq)
+					entities.add(entity);
+			}
+			Collections.sort(entities, new Comparator<Entity>()
+			{
+				@Override
+				public int compare(Entity a, Entity b)
+				{
+					return Double.compare(a.getDistanceSqToEntity(player), b.getDistanceSqToEntity(player));
+				}
+			});
+
+			int count = entities.size();
+			if (nemessage.maxEntities > 0 && count > nemessage.maxEntities)
+				count = nemessage.maxEntities;
+			JsonArray arr = new JsonArray();
+			for (int i = 0; i < count; i++)
+				arr.add(buildEntityJson(entities.get(i)));
+			json.add(nemessage.name, arr);
+		}
+
+		private static JsonObject buildEntityJson(Entity entity)
+		{
+			JsonObject json = new JsonObject();
+			json.addProperty("name", getEntityName(entity));
+			json.addProperty("id", entity.getEntityId());
+			json.addProperty("x", entity.posX);
+			json.addProperty("y", entity.posY);
+			json.addProperty("z", entity.posZ);
+			json.addProperty("yaw", entity.rotationYaw);
+			json.addProperty("pitch", entity.rotationPitch);
+			// Use the distance moved in the last tick, rather than the motion fields - players' motion isn't tracked on the server.
+			json.addProperty("vx", entity.posX - entity.lastTickPosX);
+			json.addProperty("vy", entity.posY - entity.lastTickPosY);
+			json.addProperty("vz", entity.posZ - entity.lastTickPosZ);
+			if (entity instanceof EntityLivingBase)
+				json.addProperty("life", ((EntityLivingBase)entity).getHealth());
+			if (entity instanceof EntityItem)
+			{
+				ItemStack is = ((EntityItem)entity).getEntityItem();
+				if (is != null)
+					json.addProperty("quantity", is.stackSize);
+			}
+			return json;
+		}
+
+		private static String getEntityName(Entity entity)
+		{
+			if (entity instanceof EntityPlayer)
+				return ((EntityPlayer)entity).getGameProfile().getName();
+			if (entity instanceof EntityItem)
+			{
+				ItemStack is = ((EntityItem)entity).getEntityItem();
+				if (is != null)
+				{
+					Object itemName = Item.itemRegistry.getNameForObject(is.getItem());
+					if (itemName instanceof ResourceLocation)
+						return ((ResourceLocation)itemName).getResourcePath();
+				}
+			}
+			String name = EntityList.getEntityString(entity);
+			return (name != null) ? name : entity.getClass().getSimpleName();
+		}
+
+		@Override
+		public IMessage onMessage(NearbyEntitiesRequestMessage message, MessageContext ctx)
+		{
+			return processMessage(message, ctx);
+		}
+	}
+
+	@Override
+	public ObservationRequestMessage createObservationRequestMessage()
+	{
+		return new NearbyEntitiesRequestMessage(this.name, this.radius, this.maxEntities);
+	}
+}
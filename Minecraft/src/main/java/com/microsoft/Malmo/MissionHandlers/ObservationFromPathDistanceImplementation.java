@@ -0,0 +1,159 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.BlockPos;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import com.google.gson.JsonObject;
+import com.microsoft.Malmo.Schemas.NamedPoint;
+import com.microsoft.Malmo.Schemas.ObservationFromPathDistance;
+import com.microsoft.Malmo.Schemas.Pos;
+import com.microsoft.Malmo.Utils.DistanceField;
+
+/** IObservationProducer that returns the walking distance from the player to the nearest of a set of markers, and which way to go to get there.<br>
+ * Unlike ObservationFromDistance, which gives the straight-line distance, this respects walls.
+ * The server keeps a DistanceField over the mission's area for as long as the subscription lasts, repairing it as blocks change,
+ * so each observation is just a lookup.
+ */
+public class ObservationFromPathDistanceImplementation extends ObservationFromServer
+{
+	private String name;
+	private BlockPos min;
+	private BlockPos max;
+	private List<BlockPos> goals;
+
+	@Override
+	public boolean parseParameters(Object params)
+	{
+		if (params == null || !(params instanceof ObservationFromPathDistance))
+			return false;
+
+		ObservationFromPathDistance pdparams = (ObservationFromPathDistance)params;
+		this.name = pdparams.getName();
+		this.min = toBlockPos(pdparams.getMin());
+		this.max = toBlockPos(pdparams.getMax());
+		this.goals = new ArrayList<BlockPos>();
+		for (NamedPoint marker : pdparams.getMarker())
+			this.goals.add(toBlockPos(marker));
+		return true;
+	}
+
+	private static BlockPos toBlockPos(Pos pos)
+	{
+		return new BlockPos(pos.getX().doubleValue(), pos.getY().doubleValue(), pos.getZ().doubleValue());
+	}
+
+	public static class PathDistanceRequestMessage extends ObservationFromServer.ObservationRequestMessage
+	{
+		private String name;
+		private BlockPos min;
+		private BlockPos max;
+		private List<BlockPos> goals;
+		/** Server side only - built on the first request, and kept for the life of the subscription.*/
+		private DistanceField field = null;
+
+		public PathDistanceRequestMessage()	// Needed so FML can instantiate our class using reflection.
+		{
+		}
+
+		public PathDistanceRequestMessage(String name, BlockPos min, BlockPos max, List<BlockPos> goals)
+		{
+			this.name = name;
+			this.min = min;
+			this.max = max;
+			this.goals = goals;
+		}
+
+		@Override
+		void restoreState(ByteBuf buf)
+		{
+			this.name = ByteBufUtils.readUTF8String(buf);
+			this.min = BlockPos.fromLong(buf.readLong());
+			this.max = BlockPos.fromLong(buf.readLong());
+			int numGoals = buf.readInt();
+			this.goals = new ArrayList<BlockPos>();
+			for (int i = 0; i < numGoals; i++)
+				this.goals.add(BlockPos.fromLong(buf.readLong()));
+		}
+
+		@Override
+		void persistState(ByteBuf buf)
+		{
+			ByteBufUtils.writeUTF8String(buf, this.name);
+			buf.writeLong(this.min.toLong());
+			buf.writeLong(this.max.toLong());
+			buf.writeInt(this.goals.size());
+			for (BlockPos goal : this.goals)
+				buf.writeLong(goal.toLong());
+		}
+
+		@Override
+		public void onUnsubscribed()
+		{
+			if (this.field != null)
+				this.field.release();
+			this.field = null;
+		}
+	}
+
+	public static class PathDistanceRequestMessageHandler extends ObservationFromServer.ObservationRequestMessageHandler implements IMessageHandler<PathDistanceRequestMessage, IMessage>
+	{
+		@Override
+		void buildJson(JsonObject json, EntityPlayerMP player, ObservationRequestMessage message, MessageContext ctx)
+		{
+			if (!(message instanceof PathDistanceRequestMessage))
+				return;
+			PathDistanceRequestMessage pdmessage = (PathDistanceRequestMessage)message;
+			if (pdmessage.field == null || pdmessage.field.getWorld() != player.worldObj)
+			{
+				pdmessage.onUnsubscribed();
+				pdmessage.field = new DistanceField(player.worldObj, pdmessage.min, pdmessage.max, pdmessage.goals.toArray(new BlockPos[pdmessage.goals.size()]));
+			}
+			pdmessage.field.update();
+
+			BlockPos pos = player.getPosition();
+			int distance = pdmessage.field.getDistance(pos.getX(), pos.getY(), pos.getZ());
+			json.addProperty(pdmessage.name, distance == DistanceField.UNREACHABLE ? -1 : distance);
+			json.addProperty(pdmessage.name + "_direction", pdmessage.field.getBestDirection(pos.getX(), pos.getY(), pos.getZ()));
+		}
+
+		@Override
+		public IMessage onMessage(PathDistanceRequestMessage message, MessageContext ctx)
+		{
+			return processMessage(message, ctx);
+		}
+	}
+
+	@Override
+	public ObservationRequestMessage createObservationRequestMessage()
+	{
+		return new PathDistanceRequestMessage(this.name, this.min, this.max, this.goals);
+	}
+}
@@ -0,0 +1,326 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.MissionHandlers;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.microsoft.Malmo.Schemas.ObservationFromRays;
+import com.microsoft.Malmo.Utils.BlockGridSampler;
+
+/** IObservationProducer that casts a fan of rays from the player's eye and returns the distance to, and type of, the first thing each one hits.<br>
+ * All the rays are cast on the server in one batch per tick. Blocks are found by stepping each ray from cell to cell (Amanatides and Woo)
+ * and reading the block ids straight out of chunk storage; entities are gathered once per batch from the box the rays can reach,
+ * and tested against each ray with a slab test on their bounding boxes.
+ */
+public class ObservationFromRaysImplementation extends ObservationFromServer
+{
+	private String name;
+	private int horizontalRays;
+	private int verticalRays;
+	private double horizontalFov;
+	private double verticalFov;
+	private double maxDistance;
+	private boolean includeEntities;
+
+	@Override
+	public boolean parseParameters(Object params)
+	{
+		if (params == null || !(params instanceof ObservationFromRays))
+			return false;
+
+		ObservationFromRays rparams = (ObservationFromRays)params;
+		this.name = rparams.getName();
+		this.horizontalRays = rparams.getHorizontalRays();
+		this.verticalRays = rparams.getVerticalRays();
+		this.horizontalFov = rparams.getHorizontalFov().doubleValue();
+		this.verticalFov = rparams.getVerticalFov().doubleValue();
+		this.maxDistance = rparams.getMaxDistance().doubleValue();
+		this.includeEntities = rparams.isIncludeEntities();
+		return true;
+	}
+
+	public static class RaysRequestMessage extends ObservationFromServer.ObservationRequestMessage
+	{
+		private String name;
+		private int horizontalRays;
+		private int verticalRays;
+		private double horizontalFov;
+		private double verticalFov;
+		private double maxDistance;
+		private boolean includeEntities;
+
+		public RaysRequestMessage()	// Needed so FML can instantiate our class using reflection.
+		{
+		}
+
+		public RaysRequestMessage(String name, int horizontalRays, int verticalRays, double horizontalFov, double verticalFov, double maxDistance, boolean includeEntities)
+		{
+			this.name = name;
+			this.horizontalRays = horizontalRays;
+			this.verticalRays = verticalRays;
+			this.horizontalFov = horizontalFov;
+			this.verticalFov = verticalFov;
+			this.maxDistance = maxDistance;
+			this.includeEntities = includeEntities;
+		}
+
+		@Override
+		void restoreState(ByteBuf buf)
+		{
+			this.name = ByteBufUtils.readUTF8String(buf);
+			this.horizontalRays = buf.readInt();
+			this.verticalRays = buf.readInt();
+			this.horizontalFov = buf.readDouble();
+			this.verticalFov = buf.readDouble();
+			this.maxDistance = buf.readDouble();
+			this.includeEntities = buf.readBoolean();
+		}
+
+		@Override
+		void persistState(ByteBuf buf)
+		{
+			ByteBufUtils.writeUTF8String(buf, this.name);
+			buf.writeInt(this.horizontalRays);
+			buf.writeInt(this.verticalRays);
+			buf.writeDouble(this.horizontalFov);
+			buf.writeDouble(this.verticalFov);
+			buf.writeDouble(this.maxDistance);
+			buf.writeBoolean(this.includeEntities);
+		}
+	}
+
+	public static class RaysRequestMessageHandler extends ObservationFromServer.ObservationRequestMessageHandler implements IMessageHandler<RaysRequestMessage, IMessage>
+	{
+		@Override
+		void buildJson(JsonObject json, EntityPlayerMP player, ObservationRequestMessage message, MessageContext ctx)
+		{
+			if (!(message instanceof RaysRequestMessage))
+				return;
+			RaysRequestMessage rmessage = (RaysRequestMessage)message;
+			int numRays = rmessage.horizontalRays * rmessage.verticalRays;
+			double maxDistance = rmessage.maxDistance;
+			double eyeX = player.posX;
+			double eyeY = player.posY + player.getEyeHeight();
+			double eyeZ = player.posZ;
+
+			// Gather the entities once for the whole batch, and keep their bounding boxes:
+			List<Entity> entities = new ArrayList<Entity>();
+			List<AxisAlignedBB> boxes = new ArrayList<AxisAlignedBB>();
+			if (rmessage.includeEntities)
+			{
+				AxisAlignedBB reach = player.getEntityBoundingBox().expand(maxDistance, maxDistance, maxDistance);
+				for (Object obj : player.worldObj.getEntitiesWithinAABBExcludingEntity(player, reach))
+				{
+					Entity entity = (Entity)obj;
+					if (!entity.isDead)
+					{
+						entities.add(entity);
+						boxes.add(entity.getEntityBoundingBox());
+					}
+				}
+			}
+
+			ByteBuffer distances = ByteBuffer.allocate(numRays * 4).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer hits = ByteBuffer.allocate(numRays * 2).order(ByteOrder.LITTLE_ENDIAN);
+			JsonArray palette = new JsonArray();
+			Map<String, Integer> paletteIndices = new HashMap<String, Integer>();
+			addToPalette("", palette, paletteIndices);
+
+			BlockGridSampler.BlockLookup lookup = new BlockGridSampler.BlockLookup(player.worldObj);
+			for (int v = 0; v < rmessage.verticalRays; v++)
+			{
+				double pitch = Math.toRadians(player.rotationPitch + getOffset(v, rmessage.verticalRays, rmessage.verticalFov));
+				for (int h = 0; h < rmessage.horizontalRays; h++)
+				{
+					double yaw = Math.toRadians(player.rotationYaw + getOffset(h, rmessage.horizontalRays, rmessage.horizontalFov));
+					// Same convention as Entity.getLook():
+					double dirX = -Math.sin(yaw) * Math.cos(pitch);
+					double dirY = -Math.sin(pitch);
+					double dirZ = Math.cos(yaw) * Math.cos(pitch);
+
+					double distance = maxDistance;
+					String hitName = "";
+					double[] blockHit = castThroughBlocks(lookup, eyeX, eyeY, eyeZ, dirX, dirY, dirZ, maxDistance);
+					if (blockHit != null)
+					{
+						distance = blockHit[0];
+						hitName = BlockGridSampler.getBlockName((int)blockHit[1]);
+					}
+					for (int e = 0; e < boxes.size(); e++)
+					{
+						double t = intersect(boxes.get(e), eyeX, eyeY, eyeZ, dirX, dirY, dirZ);
+						if (t >= 0 && t < distance)
+						{
+							distance = t;
+							hitName = getEntityTypeName(entities.get(e));
+						}
+					}
+					distances.putFloat((float)distance);
+					hits.putShort((short)addToPalette(hitName, palette, paletteIndices));
+				}
+			}
+			json.addProperty(rmessage.name + "_distances", DatatypeConverter.printBase64Binary(distances.array()));
+			json.addProperty(rmessage.name + "_hits", DatatypeConverter.printBase64Binary(hits.array()));
+			json.add(rmessage.name + "_palette", palette);
+		}
+
+		/** Angle, in degrees, of the index'th of count rays spread across fov, relative to the centre.*/
+		private static double getOffset(int index, int count, double fov)
+		{
+			if (count == 1)
+				return 0;
+			if (fov >= 360)
+				return -180 + index * 360.0 / count;	// All the way round - don't put a ray at both ends.
+			return -fov / 2 + index * fov / (count - 1);
+		}
+
+		/** Step through the cells along the ray until one holds something other than air, or is in a chunk that isn't loaded.<br>
+		 * The cell the ray starts in is skipped - it's the one the player's head is in.
+		 * @return {distance, block id} of the first hit, or null if nothing was hit within maxDistance.
+		 */
+		private static double[] castThroughBlocks(BlockGridSampler.BlockLookup lookup, double x, double y, double z, double dirX, double dirY, double dirZ, double maxDistance)
+		{
+			int cellX = (int)Math.floor(x);
+			int cellY = (int)Math.floor(y);
+			int cellZ = (int)Math.floor(z);
+			int stepX = dirX > 0 ? 1 : -1;
+			int stepY = dirY > 0 ? 1 : -1;
+			int stepZ = dirZ > 0 ? 1 : -1;
+			// Distance along the ray to the next cell boundary on each axis, and between boundaries:
+			double tMaxX = (dirX != 0) ? ((dirX > 0 ? cellX + 1 - x : x - cellX) / Math.abs(dirX)) : Double.POSITIVE_INFINITY;
+			double tMaxY = (dirY != 0) ? ((dirY > 0 ? cellY + 1 - y : y - cellY) / Math.abs(dirY)) : Double.POSITIVE_INFINITY;
+			double tMaxZ = (dirZ != 0) ? ((dirZ > 0 ? cellZ + 1 - z : z - cellZ) / Math.abs(dirZ)) : Double.POSITIVE_INFINITY;
+			double tDeltaX = (dirX != 0) ? 1 / Math.abs(dirX) : Double.POSITIVE_INFINITY;
+			double tDeltaY = (dirY != 0) ? 1 / Math.abs(dirY) : Double.POSITIVE_INFINITY;
+			double tDeltaZ = (dirZ != 0) ? 1 / Math.abs(dirZ) : Double.POSITIVE_INFINITY;
+
+			while (true)
+			{
+				double t;
+				if (tMaxX <= tMaxY && tMaxX <= tMaxZ)
+				{
+					t = tMaxX;
+					cellX += stepX;
+					tMaxX += tDeltaX;
+				}
+				else if (tMaxY <= tMaxZ)
+				{
+					t = tMaxY;
+					cellY += stepY;
+					tMaxY += tDeltaY;
+				}
+				else
+				{
+					t = tMaxZ;
+					cellZ += stepZ;
+					tMaxZ += tDeltaZ;
+				}
+				if (t > maxDistance)
+					return null;
+				int id = lookup.getBlockId(cellX, cellY, cellZ);
+				if (id != 0)
+					return new double[] { t, id };	// Including UNKNOWN_BLOCK_ID - we can't see into chunks that aren't loaded.
+			}
+		}
+
+		/** Slab test of the ray against a bounding box.
+		 * @return the distance along the ray at which it enters the box, 0 if it starts inside it, or -1 if it misses.
+		 */
+		private static double intersect(AxisAlignedBB box, double x, double y, double z, double dirX, double dirY, double dirZ)
+		{
+			double tNear = 0;
+			double tFar = Double.POSITIVE_INFINITY;
+			double[] origin = { x, y, z };
+			double[] dir = { dirX, dirY, dirZ };
+			double[] min = { box.minX, box.minY, box.minZ };
+			double[] max = { box.maxX, box.maxY, box.maxZ };
+			for (int axis = 0; axis < 3; axis++)
+			{
+				if (dir[axis] == 0)
+				{
+					if (origin[axis] < min[axis] || origin[axis] > max[axis])
+						return -1;
+					continue;
+				}
+				double t1 = (min[axis] - origin[axis]) / dir[axis];
+				double t2 = (max[axis] - origin[axis]) / dir[axis];
+				tNear = Math.max(tNear, Math.min(t1, t2));
+				tFar = Math.min(tFar, Math.max(t1, t2));
+				if (tNear > tFar)
+					return -1;
+			}
+			return tNear;
+		}
+
+		private static String getEntityTypeName(Entity entity)
+		{
+			if (entity instanceof EntityPlayer)
+				return "Player";
+			String name = EntityList.getEntityString(entity);
+			return (name != null) ? name : entity.getClass().getSimpleName();
+		}
+
+		private static int addToPalette(String name, JsonArray palette, Map<String, Integer> paletteIndices)
+		{
+			Integer index = paletteIndices.get(name);
+			if (index == null)
+			{
+				index = palette.size();
+				paletteIndices.put(name, index);
+				palette.add(new JsonPrimitive(name));
+			}
+			return index;
+		}
+
+		@Override
+		public IMessage onMessage(RaysRequestMessage message, MessageContext ctx)
+		{
+			return processMessage(message, ctx);
+		}
+	}
+
+	@Override
+	public ObservationRequestMessage createObservationRequestMessage()
+	{
+		return new RaysRequestMessage(this.name, this.horizontalRays, this.verticalRays, this.horizontalFov, this.verticalFov, this.maxDistance, this.includeEntities);
+	}
+}
@@ -20,27 +20,38 @@
 package com.microsoft.Malmo.MissionHandlers;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.IThreadListener;
 import net.minecraft.world.WorldServer;
 import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.microsoft.Malmo.MalmoMod;
-import com.microsoft.Malmo.MalmoMod.MalmoMessageType;
-import com.microsoft.Malmo.MalmoMod.IMalmoMessageListener;
-import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.ModSettings;
+import com.microsoft.Malmo.Utils.BinaryJsonHelper;
 
 /** Starting-point for observation producers that need to deal with extracting information from the server.<br>
  * It's hard to wrap this stuff cleanly, since the code which actually creates the JSON needs to be executed on the server, and may not
@@ -55,89 +66,122 @@ import com.microsoft.Malmo.Schemas.MissionInit;
  *       - Put your actual JSON production code in the buildJson() method
  * d) Add a call to register the message in MalmoMod.preInit()
  *       eg: network.registerMessage(yourClass.yourMessageHandler.class, yourClass.yourMessage.class, 1, Side.SERVER);
+ *       and register it for subscriptions too:
+ *       eg: ObservationFromServer.registerRequestType(yourClass.yourMessage.class, new yourClass.yourMessageHandler());
  * e) Make sure prepare() and cleanup() call super.prepare() and super.cleanup()
+ *
+ * The JSON comes back to the client in an ObservationReplyMessage, which carries the tree in binary form (see BinaryJsonHelper).
+ * The server encodes each tree once - the same bytes are used to spot unchanged observations and are copied into the packet - and the
+ * client keeps the bytes as they arrived, streaming them straight out as text when the observation is sent to the agent, so no tree
+ * is rebuilt on the network thread.
+ *
+ * The client doesn't poll for observations: in prepare() it sends its request to the server once, in a SubscriptionMessage, and the server then
+ * builds the observations on its own tick, every ServerObservationPeriod ticks, and pushes them back only when they have changed.
+ * All the observations for one player on one tick go back in a single reply.
+ * This means the request must describe everything the server needs for the whole mission.
  */
 
 
-public abstract class ObservationFromServer extends HandlerBase implements IMalmoMessageListener, IObservationProducer
+public abstract class ObservationFromServer extends HandlerBase implements IStreamingObservationProducer
 {
-	private String latestJsonStats = "";
-	private boolean missionIsRunning = false;
-	
+	/** The producers waiting for observations from the server, keyed by the id used in their request messages.*/
+	private static Map<Integer, ObservationFromServer> activeProducers = new ConcurrentHashMap<Integer, ObservationFromServer>();
+
+	/** Request message types that can be subscribed to, indexed by the type id that is sent over the wire.*/
+	private static List<Class<? extends ObservationRequestMessage>> requestTypes = new ArrayList<Class<? extends ObservationRequestMessage>>();
+	private static List<ObservationRequestMessageHandler> requestHandlers = new ArrayList<ObservationRequestMessageHandler>();
+
+	/** Observations as they arrived from the server - still in binary form - along with the data returned with them.*/
+	private static class Observations
+	{
+		final byte[] json;
+		final Map<String, String> data;
+
+		Observations(byte[] json, Map<String, String> data)
+		{
+			this.json = json;
+			this.data = data;
+		}
+	}
+
+	private volatile Observations latestObservations = null;
+
 	ObservationFromServer()
 	{
-		// Register for client ticks so we can keep requesting stats.
-		FMLCommonHandler.instance().bus().register(this);
     }
 
-    @SubscribeEvent
-    public void onClientTick(TickEvent.ClientTickEvent ev)
-    {
-    	if (this.missionIsRunning)
-    	{
-	    	// Use the client tick to fire messages to the server to request up-to-date stats.
-	    	// We can then use those stats to fire back to the agent in writeObservationsToJSON.
-    		ObservationRequestMessage message = createObservationRequestMessage();
-    		// To make sure only the intended listener receives this message, set the id now:
-    		message.id = System.identityHashCode(this);
-	    	MalmoMod.network.sendToServer(message);
-    	}
-    }
+	/** Register a request message type, and the handler for it, so that it can be used for subscriptions.<br>
+	 * Call this from MalmoMod.preInit(), on both sides, so that the type ids match.
+	 */
+	public static void registerRequestType(Class<? extends ObservationRequestMessage> messageClass, ObservationRequestMessageHandler handler)
+	{
+		requestTypes.add(messageClass);
+		requestHandlers.add(handler);
+	}
 
 	@Override
 	public void prepare(MissionInit missionInit)
 	{
-		this.missionIsRunning = true;	// Will start us asking the server for stats.
-		MalmoMod.MalmoMessageHandler.registerForMessage(this, MalmoMessageType.SERVER_OBSERVATIONSREADY);
+		this.latestObservations = null;
+		int period = 1;
+		ModSettings modsettings = missionInit.getMission().getModSettings();
+		if (modsettings != null && modsettings.getServerObservationPeriod() != null)
+			period = modsettings.getServerObservationPeriod();
+		activeProducers.put(System.identityHashCode(this), this);
+
+		// Ask the server to start sending us observations:
+		ObservationRequestMessage request = createObservationRequestMessage();
+		// To make sure only the intended listener receives the observations, set the id now:
+		request.id = System.identityHashCode(this);
+		MalmoMod.network.sendToServer(new SubscriptionMessage(request, period));
 	}
 
 	@Override
 	public void cleanup()
 	{
-		this.missionIsRunning = false;	// Stop asking for stats.
-		MalmoMod.MalmoMessageHandler.deregisterForMessage(this, MalmoMessageType.SERVER_OBSERVATIONSREADY);
+		activeProducers.remove(System.identityHashCode(this));
+		// Tell the server to stop sending:
+		MalmoMod.network.sendToServer(new SubscriptionMessage(System.identityHashCode(this)));
 	}
 
     @Override
 	public void writeObservationsToJSON(JsonObject json, MissionInit missionInit)
 	{
-    	String jsonstring = "";
-    	synchronized (this.latestJsonStats)
+    	Observations observations = this.latestObservations;
+    	if (observations != null)
     	{
-    		jsonstring = this.latestJsonStats;
-		}
-    	if (jsonstring.length() > 2)	// "{}" is the empty JSON string.
-    	{
-    		// Parse the string into json:
-    		JsonParser parser = new JsonParser();
-    		JsonElement root = parser.parse(jsonstring);
-    		// Now copy the children of root into the provided json object:
-    		if (root.isJsonObject())
+    		// Someone wants a tree - decode one, and copy the children across:
+    		JsonElement element = BinaryJsonHelper.read(Unpooled.wrappedBuffer(observations.json));
+    		if (element.isJsonObject())
     		{
-    			JsonObject rootObj = root.getAsJsonObject();
-				for (Map.Entry<String, JsonElement> entry : rootObj.entrySet())
-				{
-					json.add(entry.getKey(), entry.getValue());
-				}
+    			for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet())
+    			{
+    				json.add(entry.getKey(), entry.getValue());
+    			}
     		}
+    		onObservationsSent(observations.data);
     	}
 	}
 
     @Override
-	public void onMessage(MalmoMessageType messageType, Map<String, String> data)
+	public void writeObservations(JsonWriter writer, MissionInit missionInit) throws IOException
 	{
-    	if (data != null)
+    	Observations observations = this.latestObservations;
+    	if (observations != null)
     	{
-	    	synchronized (this.latestJsonStats)
-	    	{
-	    		this.latestJsonStats = data.get("json");
-                if (this.latestJsonStats == null)   // Shouldn't happen, but if it does
-                    this.latestJsonStats = "";      // we don't want to allow a null value.
-	    		onReturnedData(data);
-			}
+    		BinaryJsonHelper.writeMembers(Unpooled.wrappedBuffer(observations.json), writer);
+    		onObservationsSent(observations.data);
     	}
 	}
 
+	/** Called (on the network thread) when the server has sent us new observations.*/
+	private void onObservations(byte[] observations, Map<String, String> data)
+	{
+		this.latestObservations = new Observations(observations, data);
+		if (data != null && !data.isEmpty())
+			onReturnedData(data);
+	}
+
     /** Override this to act on any extra data returned by the server.<br>
      * @param data
      */
@@ -145,6 +189,14 @@ public abstract class ObservationFromServer extends HandlerBase implements IMalm
     {
 	}
 
+    /** Override this to act on exactly which observations were written out for the agent.<br>
+     * Called on the client thread, after the observations have been written, with the extra data the server returned alongside them.
+     * @param data
+     */
+    protected void onObservationsSent(Map<String, String> data)
+    {
+    }
+
 	public abstract ObservationRequestMessage createObservationRequestMessage();
 	
     /** Tiny message class for requesting observational data from the server.<br>
@@ -190,6 +242,13 @@ public abstract class ObservationFromServer extends HandlerBase implements IMalm
 		public void addReturnData(Map<String, String> returnData)
 		{
 		}
+
+		/** Called on the server thread when a subscription to this request ends, or once a one-off request has been answered.<br>
+		 * Override this to release anything that was built up on the server to answer the request.
+		 */
+		public void onUnsubscribed()
+		{
+		}
     }
 	
     /** Simple handler to process the request message.<br>
@@ -210,20 +269,325 @@ public abstract class ObservationFromServer extends HandlerBase implements IMalm
 				@Override
 				public void run() {
 					EntityPlayerMP player = ctx.getServerHandler().playerEntity;
+					ObservationReplyMessage reply = new ObservationReplyMessage();
 					JsonObject json = new JsonObject();
 					buildJson(json, player, message, ctx);
-					// Send this message back again now we've filled in the json stats.
-					Map<String, String> returnData = new HashMap<String, String>();
-					returnData.put("json", json.toString());
-					message.addReturnData(returnData);
-					MalmoMod.network.sendTo(new MalmoMod.MalmoMessage(MalmoMessageType.SERVER_OBSERVATIONSREADY, message.id, returnData), player);
+					addToReply(reply, BinaryJsonHelper.toBytes(json), message);
+					message.onUnsubscribed();	// A one-off request - nothing it built will be used again.
+					MalmoMod.network.sendTo(reply, player);
 				}
 			});
 			return null; // no response in this case
 		}
 		
-		/** Build the JSON observation that has been requested by the message.
+		/** Add the JSON observation for a request to the reply.
+		 * @param json the observation, already encoded by BinaryJsonHelper.toBytes() - it is copied into the packet as it is.
+		 */
+		void addToReply(ObservationReplyMessage reply, byte[] json, ObservationRequestMessage message)
+		{
+			Map<String, String> returnData = new HashMap<String, String>();
+			message.addReturnData(returnData);
+			reply.add(message.id, json, returnData);
+		}
+
+		/** Build the JSON observation that has been requested by the message.<br>
+		 * ctx is null when building for a subscription, on the server tick - use the player, not the context.
 		 */
 		abstract void buildJson(JsonObject json, EntityPlayerMP player, ObservationRequestMessage message, MessageContext ctx);
     }
+
+    /** Message that carries the observations back from the server to the client - one set per request it answers.<br>
+     * Each JSON tree travels in the binary form produced by BinaryJsonHelper, prefixed by its length, and is never decoded on the way.
+     */
+    public static class ObservationReplyMessage implements IMessage
+    {
+    	private List<Integer> ids = new ArrayList<Integer>();
+    	private List<byte[]> jsons = new ArrayList<byte[]>();
+    	private List<Map<String, String>> datas = new ArrayList<Map<String, String>>();
+
+    	public ObservationReplyMessage()	// Needed so FML can instantiate our class using reflection.
+    	{
+    	}
+
+    	void add(int id, byte[] json, Map<String, String> data)
+    	{
+    		this.ids.add(id);
+    		this.jsons.add(json);
+    		this.datas.add(data);
+    	}
+
+    	boolean isEmpty()
+    	{
+    		return this.ids.isEmpty();
+    	}
+
+    	@Override
+    	public void fromBytes(ByteBuf buf)
+    	{
+    		int numReplies = ByteBufUtils.readVarInt(buf, 5);
+    		for (int r = 0; r < numReplies; r++)
+    		{
+    			int id = buf.readInt();
+    			byte[] json = new byte[ByteBufUtils.readVarInt(buf, 5)];
+    			buf.readBytes(json);
+    			int numEntries = ByteBufUtils.readVarInt(buf, 5);
+    			Map<String, String> data = new HashMap<String, String>();
+    			for (int i = 0; i < numEntries; i++)
+    			{
+    				String key = BinaryJsonHelper.readString(buf);
+    				data.put(key, BinaryJsonHelper.readString(buf));
+    			}
+    			add(id, json, data);
+    		}
+    	}
+
+    	@Override
+    	public void toBytes(ByteBuf buf)
+    	{
+    		ByteBufUtils.writeVarInt(buf, this.ids.size(), 5);
+    		for (int r = 0; r < this.ids.size(); r++)
+    		{
+    			buf.writeInt(this.ids.get(r));
+    			byte[] json = this.jsons.get(r);
+    			ByteBufUtils.writeVarInt(buf, json.length, 5);
+    			buf.writeBytes(json);
+    			Map<String, String> data = this.datas.get(r);
+    			ByteBufUtils.writeVarInt(buf, data != null ? data.size() : 0, 5);
+    			if (data != null)
+    			{
+    				for (Map.Entry<String, String> entry : data.entrySet())
+    				{
+    					BinaryJsonHelper.writeString(entry.getKey(), buf);
+    					BinaryJsonHelper.writeString(entry.getValue(), buf);
+    				}
+    			}
+    		}
+    	}
+    }
+
+    /** Client-side handler that passes the returned observations to the producer that asked for them.*/
+    public static class ObservationReplyMessageHandler implements IMessageHandler<ObservationReplyMessage, IMessage>
+    {
+    	@Override
+    	public IMessage onMessage(ObservationReplyMessage message, MessageContext ctx)
+    	{
+    		// No need to wait for the client thread - the producers just swap in the new observations.
+    		for (int r = 0; r < message.ids.size(); r++)
+    		{
+    			ObservationFromServer producer = activeProducers.get(message.ids.get(r));
+    			if (producer != null)
+    				producer.onObservations(message.jsons.get(r), message.datas.get(r));
+    		}
+    		return null; // no response in this case
+    	}
+    }
+
+    /** Message from the client to start or stop the server sending the observations described by a request.*/
+    public static class SubscriptionMessage implements IMessage
+    {
+    	private boolean subscribe = false;
+    	private int id = 0;
+    	private int period = 1;
+    	private ObservationRequestMessage request = null;
+
+    	public SubscriptionMessage()	// Needed so FML can instantiate our class using reflection.
+    	{
+    	}
+
+    	/** Subscribe to the observations described by the request, to be built every period ticks.*/
+    	public SubscriptionMessage(ObservationRequestMessage request, int period)
+    	{
+    		this.subscribe = true;
+    		this.id = request.id;
+    		this.period = period;
+    		this.request = request;
+    	}
+
+    	/** Unsubscribe the listener with this id.*/
+    	public SubscriptionMessage(int id)
+    	{
+    		this.subscribe = false;
+    		this.id = id;
+    	}
+
+    	@Override
+    	public void fromBytes(ByteBuf buf)
+    	{
+    		this.subscribe = buf.readBoolean();
+    		this.id = buf.readInt();
+    		if (!this.subscribe)
+    			return;
+    		this.period = ByteBufUtils.readVarInt(buf, 5);
+    		int type = ByteBufUtils.readVarInt(buf, 5);
+    		try
+    		{
+    			this.request = requestTypes.get(type).newInstance();
+    			this.request.fromBytes(buf);
+    		}
+    		catch (Exception e)
+    		{
+    			System.out.println("Warning - failed to read observation request of type " + type + ": " + e);
+    			this.request = null;
+    		}
+    	}
+
+    	@Override
+    	public void toBytes(ByteBuf buf)
+    	{
+    		buf.writeBoolean(this.subscribe);
+    		buf.writeInt(this.id);
+    		if (!this.subscribe)
+    			return;
+    		int type = requestTypes.indexOf(this.request.getClass());
+    		if (type == -1)
+    			throw new IllegalStateException("Observation request type " + this.request.getClass().getName() + " has not been registered.");
+    		ByteBufUtils.writeVarInt(buf, this.period, 5);
+    		ByteBufUtils.writeVarInt(buf, type, 5);
+    		this.request.toBytes(buf);
+    	}
+    }
+
+    /** Server-side handler that keeps track of the subscriptions, and pushes the observations to the clients on the server tick.*/
+    public static class SubscriptionMessageHandler implements IMessageHandler<SubscriptionMessage, IMessage>
+    {
+    	private static class Subscription
+    	{
+    		UUID playerID;
+    		ObservationRequestMessage request;
+    		ObservationRequestMessageHandler handler;
+    		int period;
+    		int ticksSinceBuilt;
+    		byte[] lastSent = null;
+    	}
+
+    	/** Listener ids are only unique on the client that made them, so a subscription is identified by the player as well.*/
+    	private static class SubscriptionKey
+    	{
+    		final UUID playerID;
+    		final int id;
+
+    		SubscriptionKey(UUID playerID, int id)
+    		{
+    			this.playerID = playerID;
+    			this.id = id;
+    		}
+
+    		@Override
+    		public boolean equals(Object obj)
+    		{
+    			if (!(obj instanceof SubscriptionKey))
+    				return false;
+    			SubscriptionKey other = (SubscriptionKey)obj;
+    			return this.id == other.id && this.playerID.equals(other.playerID);
+    		}
+
+    		@Override
+    		public int hashCode()
+    		{
+    			return 31 * this.playerID.hashCode() + this.id;
+    		}
+    	}
+
+    	/** All the subscriptions, keyed by player and listener id - only touched on the server thread.*/
+    	private static Map<SubscriptionKey, Subscription> subscriptions = new HashMap<SubscriptionKey, Subscription>();
+    	private static SubscriptionMessageHandler tickListener = null;
+
+    	@Override
+    	public IMessage onMessage(final SubscriptionMessage message, final MessageContext ctx)
+    	{
+    		final EntityPlayerMP player = ctx.getServerHandler().playerEntity;
+    		IThreadListener mainThread = (WorldServer)player.worldObj;
+    		mainThread.addScheduledTask(new Runnable() {
+    			@Override
+    			public void run() {
+    				SubscriptionKey key = new SubscriptionKey(player.getUniqueID(), message.id);
+    				if (!message.subscribe || message.request == null)
+    				{
+    					Subscription old = subscriptions.remove(key);
+    					if (old != null)
+    						old.request.onUnsubscribed();
+    					return;
+    				}
+    				Subscription sub = new Subscription();
+    				sub.playerID = player.getUniqueID();
+    				sub.request = message.request;
+    				sub.handler = requestHandlers.get(requestTypes.indexOf(message.request.getClass()));
+    				sub.period = Math.max(1, message.period);
+    				sub.ticksSinceBuilt = sub.period;	// Send the first observations straight away.
+    				Subscription old = subscriptions.put(key, sub);
+    				if (old != null)
+    					old.request.onUnsubscribed();
+    				if (tickListener == null)
+    				{
+    					tickListener = new SubscriptionMessageHandler();
+    					FMLCommonHandler.instance().bus().register(tickListener);
+    				}
+    			}
+    		});
+    		return null; // no response in this case
+    	}
+
+    	/** @return the request the player has subscribed to with the given listener id, or null if there isn't one - server thread only.*/
+    	static ObservationRequestMessage getSubscribedRequest(int id, EntityPlayerMP player)
+    	{
+    		Subscription sub = subscriptions.get(new SubscriptionKey(player.getUniqueID(), id));
+    		return (sub != null) ? sub.request : null;
+    	}
+
+    	/** Drop all the subscriptions, letting each request release what it was holding on to - call on the server thread when the server stops.*/
+    	public static void clearSubscriptions()
+    	{
+    		for (Subscription sub : subscriptions.values())
+    			sub.request.onUnsubscribed();
+    		subscriptions.clear();
+    	}
+
+    	@SubscribeEvent
+    	public void onServerTick(TickEvent.ServerTickEvent ev)
+    	{
+    		if (ev.phase != TickEvent.Phase.END || subscriptions.isEmpty())
+    			return;
+    		MinecraftServer server = MinecraftServer.getServer();
+    		Map<UUID, ObservationReplyMessage> replies = new HashMap<UUID, ObservationReplyMessage>();
+    		Map<UUID, EntityPlayerMP> players = new HashMap<UUID, EntityPlayerMP>();
+    		for (Object obj : server.getConfigurationManager().playerEntityList)
+    		{
+    			if (obj instanceof EntityPlayerMP)
+    				players.put(((EntityPlayerMP)obj).getUniqueID(), (EntityPlayerMP)obj);
+    		}
+
+    		Iterator<Map.Entry<SubscriptionKey, Subscription>> it = subscriptions.entrySet().iterator();
+    		while (it.hasNext())
+    		{
+    			Subscription sub = it.next().getValue();
+    			EntityPlayerMP player = players.get(sub.playerID);
+    			if (player == null)
+    			{
+    				it.remove();	// Player has gone - they'll subscribe again for their next mission.
+    				sub.request.onUnsubscribed();
+    				continue;
+    			}
+    			if (++sub.ticksSinceBuilt < sub.period)
+    				continue;
+    			sub.ticksSinceBuilt = 0;
+    			JsonObject json = new JsonObject();
+    			sub.handler.buildJson(json, player, sub.request, null);
+    			// Encode it now - we need the bytes for the packet anyway, and comparing them is cheaper than comparing trees:
+    			byte[] encoded = BinaryJsonHelper.toBytes(json);
+    			if (Arrays.equals(encoded, sub.lastSent))
+    				continue;	// Nothing has changed - the client still has these.
+    			sub.lastSent = encoded;
+    			ObservationReplyMessage reply = replies.get(sub.playerID);
+    			if (reply == null)
+    			{
+    				reply = new ObservationReplyMessage();
+    				replies.put(sub.playerID, reply);
+    			}
+    			sub.handler.addToReply(reply, encoded, sub.request);
+    		}
+
+    		for (Map.Entry<UUID, ObservationReplyMessage> entry : replies.entrySet())
+    			MalmoMod.network.sendTo(entry.getValue(), players.get(entry.getKey()));
+    	}
+    }
 }
@@ -30,6 +30,7 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.OpenGlHelper;
 import net.minecraft.client.shader.Framebuffer;
 
 import org.lwjgl.BufferUtils;
@@ -37,14 +38,27 @@ import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL30;
 
 import com.microsoft.Malmo.MissionHandlerInterfaces.IVideoProducer;
+import com.microsoft.Malmo.Schemas.CaptureSchedule;
+import com.microsoft.Malmo.Schemas.DepthScaling;
 import com.microsoft.Malmo.Schemas.MissionInit;
+import com.microsoft.Malmo.Schemas.VideoEncoding;
 import com.microsoft.Malmo.Schemas.VideoProducer;
+import com.microsoft.Malmo.Utils.DepthPacker;
+import com.microsoft.Malmo.Utils.PixelBufferRing;
 
 public class VideoProducerImplementation extends HandlerBase implements IVideoProducer
 {
+	/** Number of pixel buffer objects used for asynchronous readback - frames are delivered one frame late.*/
+	private static final int PIXEL_BUFFER_RING_SIZE = 2;
+
 	private VideoProducer videoParams;
 	private Framebuffer fbo;
+	private boolean renderOffscreen;
+	private DepthPacker depthPacker;
+	private ByteBuffer depthBytes;
 	private FloatBuffer depthBuffer;
+	private PixelBufferRing colourRing;
+	private PixelBufferRing depthRing;
 	
     @Override
     public boolean parseParameters(Object params)
@@ -56,31 +70,53 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
     }
 
     @Override
-    public void getFrame(MissionInit missionInit, ByteBuffer buffer)
+    public boolean getFrame(MissionInit missionInit, ByteBuffer buffer)
     {
-    	if (!this.videoParams.isWantDepth())
-    	{
-    		getRGBFrame(buffer);	// Just return the simple RGB, 3bpp image.
-    		return;
-    	}
+        if (this.depthPacker != null)
+            return getPackedFrame(buffer);
 
-    	// Otherwise, do the work of extracting the depth map:
         final int width = this.videoParams.getWidth();
         final int height = this.videoParams.getHeight();
 
-        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, Minecraft.getMinecraft().getFramebuffer().framebufferObject);
-        GL30.glBindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, this.fbo.framebufferObject );
-        GL30.glBlitFramebuffer(
-                0, 0,
-                Minecraft.getMinecraft().getFramebuffer().framebufferWidth,
-                Minecraft.getMinecraft().getFramebuffer().framebufferHeight,
-                0, 0, width, height,
-                GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT, GL11.GL_NEAREST );
+        if (this.renderOffscreen)
+        {
+            // Minecraft has rendered the world straight into its own framebuffer, at exactly our size,
+            // so we can read from that directly - no blit required.
+            Framebuffer mcfb = Minecraft.getMinecraft().getFramebuffer();
+            if (mcfb.framebufferWidth != width || mcfb.framebufferHeight != height)
+                return false;   // Resize hasn't taken effect yet.
+            mcfb.bindFramebuffer(false);
+        }
+        else if (!this.videoParams.isWantDepth())
+        {
+            // Render the Minecraft frame into our own FBO, at the desired size:
+            this.fbo.bindFramebuffer(true);
+            Minecraft.getMinecraft().getFramebuffer().framebufferRenderExt(width, height, true);
+        }
+        else
+        {
+            // Need depth too, so blit both buffers across:
+            GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, Minecraft.getMinecraft().getFramebuffer().framebufferObject);
+            GL30.glBindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, this.fbo.framebufferObject );
+            GL30.glBlitFramebuffer(
+                    0, 0,
+                    Minecraft.getMinecraft().getFramebuffer().framebufferWidth,
+                    Minecraft.getMinecraft().getFramebuffer().framebufferHeight,
+                    0, 0, width, height,
+                    GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT, GL11.GL_NEAREST );
+            this.fbo.bindFramebuffer(true);
+        }
 
-        this.fbo.bindFramebuffer(true);
-        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
-        glReadPixels(0, 0, width, height, GL_DEPTH_COMPONENT, GL_FLOAT, this.depthBuffer);
-        this.fbo.unbindFramebuffer();
+        // Now read the pixels out:
+        // glReadPixels appears to be faster than doing:
+        //  GlStateManager.bindTexture(this.fbo.framebufferTexture);
+        //  GL11.glGetTexImage(GL11.GL_TEXTURE_2D, 0, format, GL_UNSIGNED_BYTE, buffer);
+        boolean ready = readPixels(width, height, buffer);
+        // (If we read from Minecraft's framebuffer, leave it bound - Minecraft is still rendering into it.)
+        if (!this.renderOffscreen)
+            this.fbo.unbindFramebuffer();
+        if (!ready || !this.videoParams.isWantDepth())
+            return ready;
 
         // Now convert the depth buffer into values from 0-255 and copy it over the alpha channel.
         // We either use the min and max values supplied in order to scale it, or we scale it according
@@ -128,6 +164,7 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
         }
         // Reset depth buffer ready for next read:
         this.depthBuffer.clear();
+        return true;
     }
 
 	@Override
@@ -141,37 +178,131 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
 	{
 		return this.videoParams.getHeight();
 	}
+
+	@Override
+	public VideoEncoding getEncoding()
+	{
+		return this.videoParams.getEncoding();
+	}
+
+	@Override
+	public CaptureSchedule getCaptureSchedule()
+	{
+		return this.videoParams.getCaptureSchedule();
+	}
+
+	@Override
+	public int getCapturePeriod()
+	{
+		return this.videoParams.getCapturePeriod();
+	}
+
+	@Override
+	public boolean rendersOffscreen()
+	{
+		return this.renderOffscreen;
+	}
 	
     public int getRequiredBufferSize()
     {
     	return this.videoParams.getWidth() * this.videoParams.getHeight() * (this.videoParams.isWantDepth() ? 4 : 3);
     }
 
-	private void getRGBFrame(ByteBuffer buffer)
-	{
-		final int format = GL_RGB;
+    @Override
+    public int getFrameLatency()
+    {
+        return this.colourRing != null ? PIXEL_BUFFER_RING_SIZE - 1 : 0;
+    }
+
+    /** Get an RGBD frame, with the depth scaled and packed into the alpha channel on the GPU, so that only one readback is needed.
+     */
+    private boolean getPackedFrame(ByteBuffer buffer)
+    {
         final int width = this.videoParams.getWidth();
         final int height = this.videoParams.getHeight();
+        Framebuffer mcfb = Minecraft.getMinecraft().getFramebuffer();
+        if (this.renderOffscreen && (mcfb.framebufferWidth != width || mcfb.framebufferHeight != height))
+            return false;   // Resize hasn't taken effect yet.
 
-        // Render the Minecraft frame into our own FBO, at the desired size:
-        this.fbo.bindFramebuffer(true);
-		Minecraft.getMinecraft().getFramebuffer().framebufferRenderExt(width, height, true);
-		// Now read the pixels out from that:
-		// glReadPixels appears to be faster than doing:
-			// 	GlStateManager.bindTexture(this.fbo.framebufferTexture);
-        	//	GL11.glGetTexImage(GL11.GL_TEXTURE_2D, 0, format, GL_UNSIGNED_BYTE, buffer);
+        // The scaling section is optional (since the depthmap is optional) - so if there is no depthScaling object,
+        // go with the default of autoscale.
+        DepthScaling scaling = this.videoParams.getDepthScaling();
+        if (scaling == null || scaling.isAutoscale())
+            this.depthPacker.pack(mcfb, true, 0, 1);
+        else
+            this.depthPacker.pack(mcfb, false, scaling.getMin().floatValue(), scaling.getMax().floatValue());
 
-        glReadPixels(0, 0, width, height, format, GL_UNSIGNED_BYTE, buffer);
-        this.fbo.unbindFramebuffer();
-	}
+        boolean ready = true;
+        if (this.colourRing != null)
+            ready = this.colourRing.readPixels(width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+        else
+            glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+
+        if (this.renderOffscreen)
+            mcfb.bindFramebuffer(false);    // Minecraft is still rendering into this.
+        else
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        return ready;
+    }
+
+    /** Read the frame, and the depth map if requested, from the currently bound framebuffer.
+     * @return true if the frame is ready; false if an asynchronous readback is still in flight.
+     */
+    private boolean readPixels(int width, int height, ByteBuffer buffer)
+    {
+        if (!this.videoParams.isWantDepth())
+        {
+            if (this.colourRing != null)
+                return this.colourRing.readPixels(width, height, GL_RGB, GL_UNSIGNED_BYTE, buffer);
+            glReadPixels(0, 0, width, height, GL_RGB, GL_UNSIGNED_BYTE, buffer);
+            return true;
+        }
+
+        if (this.colourRing != null)
+        {
+            // Both rings advance in step, so the colour and depth we get back belong to the same frame.
+            boolean ready = this.colourRing.readPixels(width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+            ready &= this.depthRing.readPixels(width, height, GL_DEPTH_COMPONENT, GL_FLOAT, this.depthBytes);
+            return ready;
+        }
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+        glReadPixels(0, 0, width, height, GL_DEPTH_COMPONENT, GL_FLOAT, this.depthBuffer);
+        return true;
+    }
 
 	@Override
 	public void prepare(MissionInit missionInit)
 	{
-        this.fbo = new Framebuffer(this.videoParams.getWidth(), this.videoParams.getHeight(), true);
-        // Create a buffer for retrieving the depth map, if requested:
-        if (this.videoParams.isWantDepth())
-        	this.depthBuffer = BufferUtils.createFloatBuffer(this.videoParams.getWidth() * this.videoParams.getHeight());
+        // Render offscreen if we can - otherwise we'll need our own FBO to scale the window-sized frame down into:
+        this.renderOffscreen = this.videoParams.isRenderOffscreen() && OpenGlHelper.isFramebufferEnabled();
+        // If depth is wanted, pack it on the GPU if we can:
+        if (this.videoParams.isWantDepth() && OpenGlHelper.isFramebufferEnabled())
+        {
+            this.depthPacker = new DepthPacker(this.videoParams.getWidth(), this.videoParams.getHeight());
+            if (!this.depthPacker.isValid())
+            {
+                System.out.println("Failed to create depth packing shaders - depth will be packed on the CPU instead.");
+                this.depthPacker.delete();
+                this.depthPacker = null;
+            }
+        }
+        if (!this.renderOffscreen && this.depthPacker == null)
+            this.fbo = new Framebuffer(this.videoParams.getWidth(), this.videoParams.getHeight(), true);
+        // Create a buffer for retrieving the depth map, if requested and we have to pack it ourselves:
+        int pixels = this.videoParams.getWidth() * this.videoParams.getHeight();
+        if (this.videoParams.isWantDepth() && this.depthPacker == null)
+        {
+        	this.depthBytes = BufferUtils.createByteBuffer(pixels * 4);
+        	this.depthBuffer = this.depthBytes.asFloatBuffer();
+        }
+        // And the pixel buffer objects for asynchronous readback - only worth it if we capture every frame, since otherwise
+        // each capture would hand back the pixels of the previous one:
+        if (this.videoParams.isAsyncReadback() && getCaptureSchedule() == CaptureSchedule.EVERY_FRAME)
+        {
+            this.colourRing = new PixelBufferRing(PIXEL_BUFFER_RING_SIZE, getRequiredBufferSize());
+            if (this.videoParams.isWantDepth() && this.depthPacker == null)
+                this.depthRing = new PixelBufferRing(PIXEL_BUFFER_RING_SIZE, pixels * 4);
+        }
         // Set the requested camera position
         Minecraft.getMinecraft().gameSettings.thirdPersonView = this.videoParams.getViewpoint();
 	}
@@ -179,6 +310,17 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
 	@Override
 	public void cleanup()
 	{
-		this.fbo.deleteFramebuffer();	// Must do this or we leak resources.
+		if (this.fbo != null)
+			this.fbo.deleteFramebuffer();	// Must do this or we leak resources.
+		this.fbo = null;
+		if (this.depthPacker != null)
+			this.depthPacker.delete();
+		this.depthPacker = null;
+		if (this.colourRing != null)
+			this.colourRing.delete();
+		if (this.depthRing != null)
+			this.depthRing.delete();
+		this.colourRing = null;
+		this.depthRing = null;
 	}
 }
@@ -0,0 +1,286 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes JSON trees to, and reads them from, a ByteBuf in a simple tagged binary form.<br>
+ * Used to pass observations from the server to the client without turning them into text and parsing them back again.
+ * Ints, longs, floats and doubles keep their type, so the tree that is read back serialises to the same text as the one that was written.<br>
+ * The encoded form can also be streamed straight out as JSON text (see writeMembers()), without building a tree at all.
+ */
+public class BinaryJsonHelper
+{
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_STRING = 7;
+    private static final byte TAG_ARRAY = 8;
+    private static final byte TAG_OBJECT = 9;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Write a JSON tree into the buffer.
+     * @param element the tree to write - may be null, which is treated as JSON null.
+     * @param buf the buffer to write into.
+     */
+    public static void write(JsonElement element, ByteBuf buf)
+    {
+        if (element == null || element.isJsonNull())
+        {
+            buf.writeByte(TAG_NULL);
+        }
+        else if (element.isJsonObject())
+        {
+            buf.writeByte(TAG_OBJECT);
+            JsonObject obj = element.getAsJsonObject();
+            ByteBufUtils.writeVarInt(buf, obj.entrySet().size(), 5);
+            for (Map.Entry<String, JsonElement> entry : obj.entrySet())
+            {
+                writeString(entry.getKey(), buf);
+                write(entry.getValue(), buf);
+            }
+        }
+        else if (element.isJsonArray())
+        {
+            buf.writeByte(TAG_ARRAY);
+            JsonArray arr = element.getAsJsonArray();
+            ByteBufUtils.writeVarInt(buf, arr.size(), 5);
+            for (int i = 0; i < arr.size(); i++)
+                write(arr.get(i), buf);
+        }
+        else
+        {
+            JsonPrimitive prim = element.getAsJsonPrimitive();
+            if (prim.isBoolean())
+            {
+                buf.writeByte(prim.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            }
+            else if (prim.isString())
+            {
+                buf.writeByte(TAG_STRING);
+                writeString(prim.getAsString(), buf);
+            }
+            else
+            {
+                Number n = prim.getAsNumber();
+                if (n instanceof Integer || n instanceof Short || n instanceof Byte)
+                {
+                    buf.writeByte(TAG_INT);
+                    buf.writeInt(n.intValue());
+                }
+                else if (n instanceof Long)
+                {
+                    buf.writeByte(TAG_LONG);
+                    buf.writeLong(n.longValue());
+                }
+                else if (n instanceof Float)
+                {
+                    buf.writeByte(TAG_FLOAT);
+                    buf.writeFloat(n.floatValue());
+                }
+                else if (n instanceof Double)
+                {
+                    buf.writeByte(TAG_DOUBLE);
+                    buf.writeDouble(n.doubleValue());
+                }
+                else
+                {
+                    // BigInteger, BigDecimal, or a number gson has parsed lazily - the nearest double will do.
+                    buf.writeByte(TAG_DOUBLE);
+                    buf.writeDouble(n.doubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a JSON tree that was written by write().
+     * @param buf the buffer to read from.
+     * @return the tree.
+     */
+    public static JsonElement read(ByteBuf buf)
+    {
+        byte tag = buf.readByte();
+        switch (tag)
+        {
+        case TAG_NULL:
+            return JsonNull.INSTANCE;
+        case TAG_TRUE:
+            return new JsonPrimitive(true);
+        case TAG_FALSE:
+            return new JsonPrimitive(false);
+        case TAG_INT:
+            return new JsonPrimitive(buf.readInt());
+        case TAG_LONG:
+            return new JsonPrimitive(buf.readLong());
+        case TAG_FLOAT:
+            return new JsonPrimitive(buf.readFloat());
+        case TAG_DOUBLE:
+            return new JsonPrimitive(buf.readDouble());
+        case TAG_STRING:
+            return new JsonPrimitive(readString(buf));
+        case TAG_ARRAY:
+        {
+            int size = ByteBufUtils.readVarInt(buf, 5);
+            JsonArray arr = new JsonArray();
+            for (int i = 0; i < size; i++)
+                arr.add(read(buf));
+            return arr;
+        }
+        case TAG_OBJECT:
+        {
+            int size = ByteBufUtils.readVarInt(buf, 5);
+            JsonObject obj = new JsonObject();
+            for (int i = 0; i < size; i++)
+            {
+                String key = readString(buf);
+                obj.add(key, read(buf));
+            }
+            return obj;
+        }
+        default:
+            throw new IllegalArgumentException("Unrecognised tag in binary JSON: " + tag);
+        }
+    }
+
+    /**
+     * Encode a JSON tree into a byte array, eg to hold on to it, compare it with a previous one, or copy it into a packet later.
+     */
+    public static byte[] toBytes(JsonElement element)
+    {
+        ByteBuf buf = Unpooled.buffer(256);
+        write(element, buf);
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Stream the members of an encoded JSON object into an object that the writer already has open - producing the same text as
+     * JSONFrameWriter.writeMembers() would for the decoded tree, but without decoding it.
+     * @param buf the buffer holding an object written by write(); anything else writes nothing.
+     * @param writer the writer to stream into.
+     */
+    public static void writeMembers(ByteBuf buf, JsonWriter writer) throws IOException
+    {
+        if (buf.readByte() != TAG_OBJECT)
+            return;
+        int size = ByteBufUtils.readVarInt(buf, 5);
+        for (int i = 0; i < size; i++)
+        {
+            writer.name(readString(buf));
+            writeValue(buf, writer);
+        }
+    }
+
+    private static void writeValue(ByteBuf buf, JsonWriter writer) throws IOException
+    {
+        byte tag = buf.readByte();
+        switch (tag)
+        {
+        case TAG_NULL:
+            writer.nullValue();
+            break;
+        case TAG_TRUE:
+            writer.value(true);
+            break;
+        case TAG_FALSE:
+            writer.value(false);
+            break;
+        // Numbers go through value(Number), as they do when gson writes a tree, so the text is identical:
+        case TAG_INT:
+            writer.value(Integer.valueOf(buf.readInt()));
+            break;
+        case TAG_LONG:
+            writer.value(Long.valueOf(buf.readLong()));
+            break;
+        case TAG_FLOAT:
+            writer.value(Float.valueOf(buf.readFloat()));
+            break;
+        case TAG_DOUBLE:
+            writer.value(Double.valueOf(buf.readDouble()));
+            break;
+        case TAG_STRING:
+            writer.value(readString(buf));
+            break;
+        case TAG_ARRAY:
+        {
+            int size = ByteBufUtils.readVarInt(buf, 5);
+            writer.beginArray();
+            for (int i = 0; i < size; i++)
+                writeValue(buf, writer);
+            writer.endArray();
+            break;
+        }
+        case TAG_OBJECT:
+        {
+            int size = ByteBufUtils.readVarInt(buf, 5);
+            writer.beginObject();
+            for (int i = 0; i < size; i++)
+            {
+                writer.name(readString(buf));
+                writeValue(buf, writer);
+            }
+            writer.endObject();
+            break;
+        }
+        default:
+            throw new IllegalArgumentException("Unrecognised tag in binary JSON: " + tag);
+        }
+    }
+
+    /** Write a string of any length as a varint byte count followed by UTF-8.*/
+    public static void writeString(String s, ByteBuf buf)
+    {
+        byte[] bytes = s.getBytes(UTF8);
+        ByteBufUtils.writeVarInt(buf, bytes.length, 5);
+        buf.writeBytes(bytes);
+    }
+
+    /** Read a string written by writeString().*/
+    public static String readString(ByteBuf buf)
+    {
+        int length = ByteBufUtils.readVarInt(buf, 5);
+        String s = buf.toString(buf.readerIndex(), length, UTF8);
+        buf.skipBytes(length);
+        return s;
+    }
+}
@@ -0,0 +1,283 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.nio.ByteBuffer;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+
+/** 3D texture holding a colour for every block in a cube around the viewer, so that a shader can colour a fragment by the block it belongs to.<br>
+ * The texture wraps: the block at world position (x, y, z) is held in texel (x, y, z) mod SIZE, so when the viewer moves, only the slices of
+ * blocks that have come into the cube are read and uploaded. A copy of the texels is kept for building those uploads.<br>
+ * Blocks that change are picked up by listening to the world (see WorldAccessAdapter); chunks that load don't announce their blocks, so the
+ * whole cube is read again when one under it loads (see BlockGridSampler.MissingChunks). Until then, their blocks have the colour of
+ * BlockGridSampler.UNKNOWN_BLOCK_ID.<br>
+ * All methods must be called on the render thread.
+ */
+public class BlockColourVolume
+{
+    /** Size of the cube, in blocks - a power of two, so that world positions can be wrapped with a mask.*/
+    public static final int SIZE = 128;
+
+    /** Above this many changed blocks in one update, upload the whole texture rather than each block on its own.*/
+    private static final int MAX_SINGLE_UPLOADS = 256;
+
+    private int[] colours;
+    private ByteBuffer texels = BufferUtils.createByteBuffer(SIZE * SIZE * SIZE * 3);
+    private int tex;
+    private World world = null;
+    private WorldAccessAdapter listener;
+    private BlockGridSampler.MissingChunks missingChunks = new BlockGridSampler.MissingChunks();
+    private boolean refreshNeeded = true;
+    private int xMin;
+    private int yMin;
+    private int zMin;
+    /** World positions of changed blocks, three ints per block - duplicates don't matter.*/
+    private int[] changes = new int[3 * 64];
+    private int numChanges = 0;
+
+    /** Create the texture.
+     * @param colours the colour of each block id, as 0xRRGGBB - indexed by the ids BlockGridSampler returns, so it needs BlockGridSampler.NUM_IDS entries.
+     */
+    public BlockColourVolume(int[] colours)
+    {
+        this.colours = colours;
+        this.tex = GL11.glGenTextures();
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, this.tex);
+        GL11.glTexParameteri(GL12.GL_TEXTURE_3D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL12.GL_TEXTURE_3D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL12.GL_TEXTURE_3D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_REPEAT);
+        GL11.glTexParameteri(GL12.GL_TEXTURE_3D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_REPEAT);
+        GL11.glTexParameteri(GL12.GL_TEXTURE_3D, GL12.GL_TEXTURE_WRAP_R, GL11.GL_REPEAT);
+        GL12.glTexImage3D(GL12.GL_TEXTURE_3D, 0, GL11.GL_RGB8, SIZE, SIZE, SIZE, 0, GL11.GL_RGB, GL11.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, 0);
+        this.listener = new WorldAccessAdapter()
+        {
+            @Override
+            public void markBlockForUpdate(BlockPos pos)
+            {
+                onBlocksChanged(pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ());
+            }
+
+            @Override
+            public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2)
+            {
+                onBlocksChanged(x1, y1, z1, x2, y2, z2);
+            }
+        };
+    }
+
+    /** Stop listening to the world, and delete the texture.*/
+    public void release()
+    {
+        if (this.world != null)
+            this.world.removeWorldAccess(this.listener);
+        this.world = null;
+        GL11.glDeleteTextures(this.tex);
+        this.tex = 0;
+    }
+
+    /** @return the GL id of the texture - a GL_TEXTURE_3D, to be sampled with GL_REPEAT at (world position + 0.5) / SIZE.*/
+    public int getTexture() { return this.tex; }
+
+    /** @return the world position of the lowest corner of the cube, as of the last update() - the cube covers SIZE blocks from here in each direction.*/
+    public int getXMin() { return this.xMin; }
+
+    public int getYMin() { return this.yMin; }
+
+    public int getZMin() { return this.zMin; }
+
+    /** Bring the texture up to date - cheap if neither the viewer nor any blocks in the cube have moved.
+     * @param world the world being viewed.
+     * @param x x position of the block the viewer is in - the cube is centred on this block.
+     * @param y y position of the block the viewer is in.
+     * @param z z position of the block the viewer is in.
+     */
+    public void update(World world, int x, int y, int z)
+    {
+        if (world != this.world)
+        {
+            if (this.world != null)
+                this.world.removeWorldAccess(this.listener);
+            this.world = world;
+            world.addWorldAccess(this.listener);
+            this.refreshNeeded = true;
+        }
+        int newXMin = x - SIZE / 2;
+        int newYMin = y - SIZE / 2;
+        int newZMin = z - SIZE / 2;
+        int dx = newXMin - this.xMin;
+        int dy = newYMin - this.yMin;
+        int dz = newZMin - this.zMin;
+        if (Math.abs(dx) >= SIZE || Math.abs(dy) >= SIZE || Math.abs(dz) >= SIZE || this.missingChunks.anyLoaded(world))
+            this.refreshNeeded = true;
+        if (this.refreshNeeded)
+        {
+            this.xMin = newXMin;
+            this.yMin = newYMin;
+            this.zMin = newZMin;
+            fill(this.xMin, this.yMin, this.zMin, this.xMin + SIZE - 1, this.yMin + SIZE - 1, this.zMin + SIZE - 1);
+            upload(0, 0, 0, SIZE, SIZE, SIZE);
+            this.refreshNeeded = false;
+            this.numChanges = 0;
+            findMissingChunks();
+            return;
+        }
+
+        if (dx != 0 || dy != 0 || dz != 0)
+        {
+            this.xMin = newXMin;
+            this.yMin = newYMin;
+            this.zMin = newZMin;
+            // Read and upload the slices that have come into the cube - each slice covers the whole texture in its other two directions:
+            int xMax = this.xMin + SIZE - 1;
+            int yMax = this.yMin + SIZE - 1;
+            int zMax = this.zMin + SIZE - 1;
+            int x1 = dx > 0 ? xMax - dx + 1 : this.xMin;
+            int x2 = dx > 0 ? xMax : this.xMin - dx - 1;
+            for (int sx = x1; sx <= x2; sx++)
+            {
+                fill(sx, this.yMin, this.zMin, sx, yMax, zMax);
+                upload(sx & (SIZE - 1), 0, 0, 1, SIZE, SIZE);
+            }
+            int y1 = dy > 0 ? yMax - dy + 1 : this.yMin;
+            int y2 = dy > 0 ? yMax : this.yMin - dy - 1;
+            for (int sy = y1; sy <= y2; sy++)
+            {
+                fill(this.xMin, sy, this.zMin, xMax, sy, zMax);
+                upload(0, sy & (SIZE - 1), 0, SIZE, 1, SIZE);
+            }
+            int z1 = dz > 0 ? zMax - dz + 1 : this.zMin;
+            int z2 = dz > 0 ? zMax : this.zMin - dz - 1;
+            for (int sz = z1; sz <= z2; sz++)
+            {
+                fill(this.xMin, this.yMin, sz, xMax, yMax, sz);
+                upload(0, 0, sz & (SIZE - 1), SIZE, SIZE, 1);
+            }
+            findMissingChunks();
+        }
+
+        // Now re-read the blocks that have changed:
+        boolean uploadAll = this.numChanges > MAX_SINGLE_UPLOADS;
+        for (int c = 0; c < 3 * this.numChanges; c += 3)
+        {
+            int cx = this.changes[c];
+            int cy = this.changes[c + 1];
+            int cz = this.changes[c + 2];
+            if (cx < this.xMin || cx >= this.xMin + SIZE || cy < this.yMin || cy >= this.yMin + SIZE || cz < this.zMin || cz >= this.zMin + SIZE)
+                continue;   // No longer in the cube.
+            fill(cx, cy, cz, cx, cy, cz);
+            if (!uploadAll)
+                upload(cx & (SIZE - 1), cy & (SIZE - 1), cz & (SIZE - 1), 1, 1, 1);
+        }
+        if (uploadAll)
+            upload(0, 0, 0, SIZE, SIZE, SIZE);
+        this.numChanges = 0;
+    }
+
+    private void findMissingChunks()
+    {
+        this.missingChunks.find(this.world, this.xMin, this.zMin, this.xMin + SIZE - 1, this.zMin + SIZE - 1);
+    }
+
+    /** Read the colours of a box of blocks (inclusive) into our copy of the texels.*/
+    private void fill(int x1, int y1, int z1, int x2, int y2, int z2)
+    {
+        BlockGridSampler.BlockLookup lookup = new BlockGridSampler.BlockLookup(this.world);
+        for (int x = x1; x <= x2; x++)
+        {
+            for (int z = z1; z <= z2; z++)
+            {
+                for (int y = y1; y <= y2; y++)
+                {
+                    int colour = this.colours[lookup.getBlockId(x, y, z)];
+                    int i = (((z & (SIZE - 1)) * SIZE + (y & (SIZE - 1))) * SIZE + (x & (SIZE - 1))) * 3;
+                    this.texels.put(i, (byte)((colour >> 16) & 0xFF));
+                    this.texels.put(i + 1, (byte)((colour >> 8) & 0xFF));
+                    this.texels.put(i + 2, (byte)(colour & 0xFF));
+                }
+            }
+        }
+    }
+
+    /** Upload a box of texels from our copy - the box mustn't wrap.*/
+    private void upload(int tx, int ty, int tz, int width, int height, int depth)
+    {
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, this.tex);
+        GL11.glPushClientAttrib(GL11.GL_CLIENT_PIXEL_STORE_BIT);
+        GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 1);
+        GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, SIZE);
+        GL11.glPixelStorei(GL12.GL_UNPACK_IMAGE_HEIGHT, SIZE);
+        GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_PIXELS, tx);
+        GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_ROWS, ty);
+        GL11.glPixelStorei(GL12.GL_UNPACK_SKIP_IMAGES, tz);
+        this.texels.position(0);
+        GL12.glTexSubImage3D(GL12.GL_TEXTURE_3D, 0, tx, ty, tz, width, height, depth, GL11.GL_RGB, GL11.GL_UNSIGNED_BYTE, this.texels);
+        GL11.glPopClientAttrib();
+        GL11.glBindTexture(GL12.GL_TEXTURE_3D, 0);
+    }
+
+    private void onBlocksChanged(int x1, int y1, int z1, int x2, int y2, int z2)
+    {
+        if (this.refreshNeeded)
+            return;
+        // Clip to the cube as it was last read - anything else will be read fresh when it comes into the cube:
+        x1 = Math.max(x1, this.xMin);
+        y1 = Math.max(y1, this.yMin);
+        z1 = Math.max(z1, this.zMin);
+        x2 = Math.min(x2, this.xMin + SIZE - 1);
+        y2 = Math.min(y2, this.yMin + SIZE - 1);
+        z2 = Math.min(z2, this.zMin + SIZE - 1);
+        if (x1 > x2 || y1 > y2 || z1 > z2)
+            return;
+        long volume = (long)(x2 - x1 + 1) * (y2 - y1 + 1) * (z2 - z1 + 1);
+        if (this.numChanges + volume > SIZE * SIZE * SIZE / 8)
+        {
+            // Cheaper to read the whole cube again:
+            this.refreshNeeded = true;
+            this.numChanges = 0;
+            return;
+        }
+        if (3 * (this.numChanges + (int)volume) > this.changes.length)
+        {
+            int[] grown = new int[Math.max(2 * this.changes.length, 3 * (this.numChanges + (int)volume))];
+            System.arraycopy(this.changes, 0, grown, 0, 3 * this.numChanges);
+            this.changes = grown;
+        }
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int z = z1; z <= z2; z++)
+            {
+                for (int x = x1; x <= x2; x++)
+                {
+                    int c = 3 * this.numChanges++;
+                    this.changes[c] = x;
+                    this.changes[c + 1] = y;
+                    this.changes[c + 2] = z;
+                }
+            }
+        }
+    }
+}
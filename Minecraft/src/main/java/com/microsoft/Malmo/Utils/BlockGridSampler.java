@@ -0,0 +1,307 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.util.Arrays;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.material.Material;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import com.google.gson.JsonPrimitive;
+import com.microsoft.Malmo.Utils.JSONWorldDataHelper.ImmediateEnvironmentDimensions;
+
+/**
+ * Reads the block types in a box of the world straight out of the chunk storage arrays.<br>
+ * Going through World.getBlockState() costs a BlockPos, a chunk lookup and a registry lookup per cell; here we visit the box
+ * one chunk section at a time, and copy the block ids out of each section's data array, so the cost per cell is a couple of array reads.<br>
+ * Block names are looked up once per block id and cached.<br>
+ * Call this on the Server side only - it shares scratch space between calls, and isn't thread safe.
+ */
+public class BlockGridSampler
+{
+    /** Number of block ids - block state ids in the storage arrays are (block id << 4) | metadata, held in a char.*/
+    public static final int NUM_BLOCK_IDS = 4096;
+
+    /** Returned for blocks in chunks that aren't loaded - we can't tell what's there. Its name is "unknown" and its class CLASS_UNKNOWN.*/
+    public static final int UNKNOWN_BLOCK_ID = NUM_BLOCK_IDS;
+
+    /** Number of different ids that sample() and BlockLookup can return - the block ids, plus UNKNOWN_BLOCK_ID. Size lookup tables by this.*/
+    public static final int NUM_IDS = NUM_BLOCK_IDS + 1;
+
+    private static final String UNKNOWN_BLOCK_NAME = "unknown";
+
+    private static String[] blockNames = new String[NUM_IDS];
+    private static JsonPrimitive[] blockNamePrimitives = new JsonPrimitive[NUM_IDS];
+    private static int[] scratch = new int[0];
+
+    /** Block classes, as returned by getBlockClass() - the values are what ObservationFromGrid's "material" encoding sends.*/
+    public static final int CLASS_PASSABLE = 0;
+    public static final int CLASS_SOLID = 1;
+    public static final int CLASS_LIQUID = 2;
+    public static final int CLASS_HAZARD = 3;
+    /** Class of UNKNOWN_BLOCK_ID - callers must decide for themselves what to make of it; it is never safe to assume it's passable.*/
+    public static final int CLASS_UNKNOWN = 4;
+    private static byte[] blockClasses = null;
+
+    /**
+     * @return true if the chunk is already loaded - only then is it safe to ask the world for it without stalling the tick.
+     */
+    public static boolean chunkExists(World world, int chunkX, int chunkZ)
+    {
+        return world.getChunkProvider().chunkExists(chunkX, chunkZ);
+    }
+
+    /**
+     * Fill a buffer with the ids of the blocks in the box around the given position.<br>
+     * Cells are ordered along the x, then z, then y axes - the same order as JSONWorldDataHelper.buildGridData().<br>
+     * Cells outside the world's vertical range are air (id 0). Cells in chunks that aren't loaded are UNKNOWN_BLOCK_ID - we never load or generate
+     * chunks to fill the box.
+     * @param world the world to sample.
+     * @param pos the position that the box is relative to.
+     * @param env the box to sample, relative to pos (inclusive).
+     * @return a buffer of block ids, one per cell, valid until the next call. May be longer than the number of cells.
+     */
+    public static int[] sample(World world, BlockPos pos, ImmediateEnvironmentDimensions env)
+    {
+        int numCells = env.getNumCells();
+        if (numCells == 0)
+            return scratch;
+        int xSize = env.xMax - env.xMin + 1;
+        int ySize = env.yMax - env.yMin + 1;
+        int zSize = env.zMax - env.zMin + 1;
+        if (scratch.length < numCells)
+            scratch = new int[numCells];
+        int[] cells = scratch;
+
+        int x0 = pos.getX() + env.xMin;
+        int y0 = pos.getY() + env.yMin;
+        int z0 = pos.getZ() + env.zMin;
+        int x1 = x0 + xSize - 1;
+        int y1 = y0 + ySize - 1;
+        int z1 = z0 + zSize - 1;
+
+        // Anything above or below the world is air:
+        if (y0 < 0 || y1 > 255)
+            Arrays.fill(cells, 0, numCells, 0);
+
+        int yStart = Math.max(y0, 0);
+        int yEnd = Math.min(y1, 255);
+        for (int cx = x0 >> 4; cx <= x1 >> 4; cx++)
+        {
+            int xStart = Math.max(x0, cx << 4);
+            int xEnd = Math.min(x1, (cx << 4) + 15);
+            for (int cz = z0 >> 4; cz <= z1 >> 4; cz++)
+            {
+                int zStart = Math.max(z0, cz << 4);
+                int zEnd = Math.min(z1, (cz << 4) + 15);
+                // Asking for a chunk that isn't loaded would load (or even generate) it right here on the server tick:
+                ExtendedBlockStorage[] storageArray = chunkExists(world, cx, cz) ? world.getChunkFromChunkCoords(cx, cz).getBlockStorageArray() : null;
+                for (int sy = yStart >> 4; sy <= yEnd >> 4; sy++)
+                {
+                    int syStart = Math.max(yStart, sy << 4);
+                    int syEnd = Math.min(yEnd, (sy << 4) + 15);
+                    ExtendedBlockStorage storage = (storageArray != null) ? storageArray[sy] : null;
+                    char[] data = (storage != null) ? storage.getData() : null;
+                    // An empty section is all air; a missing chunk is unknown:
+                    int emptyId = (storageArray != null) ? 0 : UNKNOWN_BLOCK_ID;
+                    for (int y = syStart; y <= syEnd; y++)
+                    {
+                        for (int z = zStart; z <= zEnd; z++)
+                        {
+                            int cell = ((y - y0) * zSize + (z - z0)) * xSize + (xStart - x0);
+                            if (data == null)
+                            {
+                                for (int x = xStart; x <= xEnd; x++)
+                                    cells[cell++] = emptyId;
+                            }
+                            else
+                            {
+                                int index = ((y & 15) << 8) | ((z & 15) << 4);
+                                for (int x = xStart; x <= xEnd; x++)
+                                    cells[cell++] = data[index | (x & 15)] >> 4;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Looks up single blocks straight from chunk storage, holding on to the last chunk it used - for walks through the world, such as ray casts,
+     * where consecutive lookups are nearly always in the same chunk.<br>
+     * Only use one for the duration of a single server tick - it doesn't notice if its chunk is unloaded.
+     */
+    public static class BlockLookup
+    {
+        private World world;
+        private int chunkX;
+        private int chunkZ;
+        private boolean haveChunk = false;
+        private ExtendedBlockStorage[] storageArray = null;
+
+        public BlockLookup(World world)
+        {
+            this.world = world;
+        }
+
+        /**
+         * @return the id of the block at the given position - 0 (air) if it's outside the world's vertical range,
+         * or UNKNOWN_BLOCK_ID if its chunk isn't loaded.
+         */
+        public int getBlockId(int x, int y, int z)
+        {
+            if (y < 0 || y > 255)
+                return 0;
+            int cx = x >> 4;
+            int cz = z >> 4;
+            if (!this.haveChunk || cx != this.chunkX || cz != this.chunkZ)
+            {
+                this.storageArray = chunkExists(this.world, cx, cz) ? this.world.getChunkFromChunkCoords(cx, cz).getBlockStorageArray() : null;
+                this.chunkX = cx;
+                this.chunkZ = cz;
+                this.haveChunk = true;
+            }
+            if (this.storageArray == null)
+                return UNKNOWN_BLOCK_ID;
+            ExtendedBlockStorage storage = this.storageArray[y >> 4];
+            if (storage == null)
+                return 0;
+            return storage.getData()[((y & 15) << 8) | ((z & 15) << 4) | (x & 15)] >> 4;
+        }
+    }
+
+    /**
+     * Remembers which chunks under a box weren't loaded when it was read, so that whatever holds on to the blocks (read as UNKNOWN_BLOCK_ID)
+     * can tell when to read them again - loading a chunk doesn't announce its blocks to world listeners.
+     */
+    public static class MissingChunks
+    {
+        /** Chunk coordinates, x then z.*/
+        private int[] chunks = new int[0];
+        private int numChunks = 0;
+
+        /**
+         * Note the chunks under the given range of blocks that aren't loaded, forgetting any noted before.
+         */
+        public void find(World world, int x1, int z1, int x2, int z2)
+        {
+            this.numChunks = 0;
+            for (int cx = x1 >> 4; cx <= x2 >> 4; cx++)
+            {
+                for (int cz = z1 >> 4; cz <= z2 >> 4; cz++)
+                {
+                    if (chunkExists(world, cx, cz))
+                        continue;
+                    if (2 * this.numChunks + 2 > this.chunks.length)
+                        this.chunks = Arrays.copyOf(this.chunks, Math.max(8, 2 * this.chunks.length));
+                    this.chunks[2 * this.numChunks] = cx;
+                    this.chunks[2 * this.numChunks + 1] = cz;
+                    this.numChunks++;
+                }
+            }
+        }
+
+        /**
+         * @return true if any of the chunks noted by the last call to find() has since been loaded.
+         */
+        public boolean anyLoaded(World world)
+        {
+            for (int i = 0; i < this.numChunks; i++)
+            {
+                if (chunkExists(world, this.chunks[2 * i], this.chunks[2 * i + 1]))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param blockId a block id, as returned by sample().
+     * @return CLASS_HAZARD for blocks that hurt (lava, fire, cactus, cobweb), CLASS_LIQUID for other liquids,
+     * CLASS_SOLID for blocks that stop the player moving, CLASS_UNKNOWN for UNKNOWN_BLOCK_ID, and CLASS_PASSABLE for everything else - air, plants, torches etc.
+     */
+    public static int getBlockClass(int blockId)
+    {
+        if (blockClasses == null)
+        {
+            // Classify every block id up front, so the per-cell cost is a single array read:
+            byte[] classes = new byte[NUM_IDS];
+            classes[UNKNOWN_BLOCK_ID] = CLASS_UNKNOWN;
+            for (int id = 0; id < NUM_BLOCK_IDS; id++)
+            {
+                Material material = Block.getBlockById(id).getMaterial();
+                if (material == Material.lava || material == Material.fire || material == Material.cactus || material == Material.web)
+                    classes[id] = CLASS_HAZARD;
+                else if (material.isLiquid())
+                    classes[id] = CLASS_LIQUID;
+                else if (material.blocksMovement())
+                    classes[id] = CLASS_SOLID;
+                else
+                    classes[id] = CLASS_PASSABLE;
+            }
+            blockClasses = classes;
+        }
+        return blockClasses[blockId];
+    }
+
+    /**
+     * @param blockId a block id, as returned by sample().
+     * @return the resource path of the block (eg "stone"), "unknown" for UNKNOWN_BLOCK_ID, or "" if the id isn't registered.
+     */
+    public static String getBlockName(int blockId)
+    {
+        String name = blockNames[blockId];
+        if (name == null && blockId == UNKNOWN_BLOCK_ID)
+        {
+            name = UNKNOWN_BLOCK_NAME;
+            blockNames[blockId] = name;
+        }
+        else if (name == null)
+        {
+            name = "";
+            Object blockName = Block.blockRegistry.getNameForObject(Block.getBlockById(blockId));
+            if (blockName instanceof ResourceLocation)
+                name = ((ResourceLocation)blockName).getResourcePath();
+            blockNames[blockId] = name;
+        }
+        return name;
+    }
+
+    /**
+     * @param blockId a block id, as returned by sample().
+     * @return a shared JSON primitive holding the block's name - callers must not modify it.
+     */
+    public static JsonPrimitive getBlockNamePrimitive(int blockId)
+    {
+        JsonPrimitive prim = blockNamePrimitives[blockId];
+        if (prim == null)
+        {
+            prim = new JsonPrimitive(getBlockName(blockId));
+            blockNamePrimitives[blockId] = prim;
+        }
+        return prim;
+    }
+}
@@ -0,0 +1,248 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+
+import com.microsoft.Malmo.Utils.JSONWorldDataHelper.ImmediateEnvironmentDimensions;
+
+/**
+ * Keeps a copy of the block ids in a grid around the player, kept up to date as the player moves and as blocks change.<br>
+ * The grid is sampled in full once; after that, the tracker listens to the world (as an IWorldAccess - see WorldAccessAdapter) and notes
+ * which of its cells have changed, so bringing it up to date only reads the changed cells, and the cells that have come into view
+ * as the player moved, from the world.<br>
+ * Cells are in the same order as BlockGridSampler.sample(), and cells in chunks that aren't loaded are BlockGridSampler.UNKNOWN_BLOCK_ID;
+ * the whole grid is sampled again once any of those chunks loads. Call release() when the tracker is no longer needed.<br>
+ * Call this on the Server side only - it isn't thread safe.
+ */
+public class BlockGridTracker
+{
+    private World world;
+    private ImmediateEnvironmentDimensions env;
+    private int xSize;
+    private int ySize;
+    private int zSize;
+    private int numCells;
+    private int[] cells;
+    private int[] spare;
+    private int xOrg;
+    private int yOrg;
+    private int zOrg;
+    private boolean resampleNeeded = true;
+    /** World positions of changed blocks, three ints per block - duplicates don't matter.*/
+    private int[] changes = new int[3 * 64];
+    private int numChanges = 0;
+    private WorldAccessAdapter listener;
+    private BlockGridSampler.MissingChunks missingChunks = new BlockGridSampler.MissingChunks();
+
+    /**
+     * Create the tracker, and start listening for changes to the world.
+     * @param world the world to track.
+     * @param env the grid to track, relative to the player's position (inclusive).
+     */
+    public BlockGridTracker(World world, ImmediateEnvironmentDimensions env)
+    {
+        this.world = world;
+        this.env = env;
+        this.xSize = env.xMax - env.xMin + 1;
+        this.ySize = env.yMax - env.yMin + 1;
+        this.zSize = env.zMax - env.zMin + 1;
+        this.numCells = env.getNumCells();
+        this.cells = new int[this.numCells];
+        this.spare = new int[this.numCells];
+        this.listener = new WorldAccessAdapter()
+        {
+            @Override
+            public void markBlockForUpdate(BlockPos pos)
+            {
+                onBlocksChanged(pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ());
+            }
+
+            @Override
+            public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2)
+            {
+                onBlocksChanged(x1, y1, z1, x2, y2, z2);
+            }
+        };
+        world.addWorldAccess(this.listener);
+    }
+
+    /** Stop listening to the world.*/
+    public void release()
+    {
+        this.world.removeWorldAccess(this.listener);
+    }
+
+    public World getWorld() { return this.world; }
+
+    /** @return the block ids of the grid, as of the last call to update() - callers must not modify them.*/
+    public int[] getCells() { return this.cells; }
+
+    public int getNumCells() { return this.numCells; }
+
+    public int getXSize() { return this.xSize; }
+
+    public int getYSize() { return this.ySize; }
+
+    public int getZSize() { return this.zSize; }
+
+    /**
+     * Make the next update() sample the whole grid again - eg to pick up chunks that have loaded since, which don't announce their blocks.
+     */
+    public void invalidate()
+    {
+        this.resampleNeeded = true;
+        this.numChanges = 0;
+    }
+
+    /**
+     * Bring the grid up to date - cheap if neither the player nor any blocks in view have moved.
+     * @param pos the player's position - the grid is relative to this.
+     * @return true if any cell may have changed (including by the grid moving).
+     */
+    public boolean update(BlockPos pos)
+    {
+        if (this.numCells == 0)
+            return false;
+        if (this.missingChunks.anyLoaded(this.world))
+            this.resampleNeeded = true;     // Nothing tells us what's in a chunk when it loads.
+        if (this.resampleNeeded)
+        {
+            System.arraycopy(BlockGridSampler.sample(this.world, pos, this.env), 0, this.cells, 0, this.numCells);
+            this.xOrg = pos.getX();
+            this.yOrg = pos.getY();
+            this.zOrg = pos.getZ();
+            this.resampleNeeded = false;
+            this.numChanges = 0;
+            findMissingChunks();
+            return true;
+        }
+
+        boolean changed = false;
+        BlockGridSampler.BlockLookup lookup = new BlockGridSampler.BlockLookup(this.world);
+        int dx = pos.getX() - this.xOrg;
+        int dy = pos.getY() - this.yOrg;
+        int dz = pos.getZ() - this.zOrg;
+        if (dx != 0 || dy != 0 || dz != 0)
+        {
+            // Move the grid, keeping the cells that are still in view, and reading the ones that have come into view:
+            int[] moved = this.spare;
+            int i = 0;
+            for (int y = 0; y < this.ySize; y++)
+            {
+                for (int z = 0; z < this.zSize; z++)
+                {
+                    for (int x = 0; x < this.xSize; x++, i++)
+                    {
+                        int px = x + dx;
+                        int py = y + dy;
+                        int pz = z + dz;
+                        if (px >= 0 && px < this.xSize && py >= 0 && py < this.ySize && pz >= 0 && pz < this.zSize)
+                            moved[i] = this.cells[(py * this.zSize + pz) * this.xSize + px];
+                        else
+                            moved[i] = lookup.getBlockId(pos.getX() + this.env.xMin + x, pos.getY() + this.env.yMin + y, pos.getZ() + this.env.zMin + z);
+                    }
+                }
+            }
+            this.spare = this.cells;
+            this.cells = moved;
+            this.xOrg = pos.getX();
+            this.yOrg = pos.getY();
+            this.zOrg = pos.getZ();
+            findMissingChunks();
+            changed = true;
+        }
+
+        // Now re-read the blocks that have changed:
+        for (int c = 0; c < 3 * this.numChanges; c += 3)
+        {
+            int index = getCellIndex(this.changes[c], this.changes[c + 1], this.changes[c + 2]);
+            if (index == -1)
+                continue;   // No longer in view.
+            int id = lookup.getBlockId(this.changes[c], this.changes[c + 1], this.changes[c + 2]);
+            if (this.cells[index] != id)
+            {
+                this.cells[index] = id;
+                changed = true;
+            }
+        }
+        this.numChanges = 0;
+        return changed;
+    }
+
+    private void findMissingChunks()
+    {
+        this.missingChunks.find(this.world, this.xOrg + this.env.xMin, this.zOrg + this.env.zMin, this.xOrg + this.env.xMax, this.zOrg + this.env.zMax);
+    }
+
+    /** @return the index of the cell at the given world position, or -1 if it's not in the grid.*/
+    private int getCellIndex(int x, int y, int z)
+    {
+        int cx = x - this.xOrg - this.env.xMin;
+        int cy = y - this.yOrg - this.env.yMin;
+        int cz = z - this.zOrg - this.env.zMin;
+        if (cx < 0 || cx >= this.xSize || cy < 0 || cy >= this.ySize || cz < 0 || cz >= this.zSize)
+            return -1;
+        return (cy * this.zSize + cz) * this.xSize + cx;
+    }
+
+    private void onBlocksChanged(int x1, int y1, int z1, int x2, int y2, int z2)
+    {
+        if (this.resampleNeeded)
+            return;
+        // Clip to the grid as it was last sampled - anything else will be read fresh when it comes into view:
+        x1 = Math.max(x1, this.xOrg + this.env.xMin);
+        y1 = Math.max(y1, this.yOrg + this.env.yMin);
+        z1 = Math.max(z1, this.zOrg + this.env.zMin);
+        x2 = Math.min(x2, this.xOrg + this.env.xMax);
+        y2 = Math.min(y2, this.yOrg + this.env.yMax);
+        z2 = Math.min(z2, this.zOrg + this.env.zMax);
+        if (x1 > x2 || y1 > y2 || z1 > z2)
+            return;
+        long volume = (long)(x2 - x1 + 1) * (y2 - y1 + 1) * (z2 - z1 + 1);
+        if (this.numChanges + volume > this.numCells / 2)
+        {
+            // Cheaper to sample the whole grid again:
+            this.resampleNeeded = true;
+            this.numChanges = 0;
+            return;
+        }
+        if (3 * (this.numChanges + (int)volume) > this.changes.length)
+        {
+            int[] grown = new int[Math.max(2 * this.changes.length, 3 * (this.numChanges + (int)volume))];
+            System.arraycopy(this.changes, 0, grown, 0, 3 * this.numChanges);
+            this.changes = grown;
+        }
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int z = z1; z <= z2; z++)
+            {
+                for (int x = x1; x <= x2; x++)
+                {
+                    int c = 3 * this.numChanges++;
+                    this.changes[c] = x;
+                    this.changes[c + 1] = y;
+                    this.changes[c + 2] = z;
+                }
+            }
+        }
+    }
+}
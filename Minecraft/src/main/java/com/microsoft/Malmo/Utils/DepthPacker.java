@@ -0,0 +1,313 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.nio.ByteBuffer;
+
+import net.minecraft.client.shader.Framebuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+/** Packs a normalised depth map into the alpha channel of a frame on the GPU, so that an RGBD frame can be read back in one go.<br>
+ * The source framebuffer's colour and depth are blitted into textures at the output size; if autoscaling, the depth range is found
+ * by repeatedly halving a min/max texture down to a single texel; then a final pass scales the depth into the range and writes it
+ * out as alpha, alongside the colour, in an RGBA8 framebuffer.<br>
+ * All methods must be called on the render thread.
+ */
+public class DepthPacker
+{
+    private static final String VERTEX_SHADER =
+        "#version 130\n" +
+        "void main()\n" +
+        "{\n" +
+        "    gl_Position = gl_Vertex;\n" +
+        "}\n";
+
+    /** Each output texel holds the (min, max) of a 2x2 block of the source - which is either the depth texture, or a previous reduction.*/
+    private static final String REDUCE_SHADER =
+        "#version 130\n" +
+        "uniform sampler2D source;\n" +
+        "uniform ivec2 sourceSize;\n" +
+        "uniform bool sourceIsDepth;\n" +
+        "void main()\n" +
+        "{\n" +
+        "    ivec2 p = ivec2(gl_FragCoord.xy) * 2;\n" +
+        "    vec2 range = vec2(1.0, 0.0);\n" +
+        "    for (int y = 0; y < 2; y++)\n" +
+        "    {\n" +
+        "        for (int x = 0; x < 2; x++)\n" +
+        "        {\n" +
+        "            vec4 t = texelFetch(source, min(p + ivec2(x, y), sourceSize - 1), 0);\n" +
+        "            vec2 v = sourceIsDepth ? t.rr : t.rg;\n" +
+        "            range = vec2(min(range.x, v.x), max(range.y, v.y));\n" +
+        "        }\n" +
+        "    }\n" +
+        "    gl_FragColor = vec4(range, 0.0, 1.0);\n" +
+        "}\n";
+
+    /** Copies the colour, and writes the scaled depth to alpha - truncated, rather than rounded, to match the original CPU conversion.*/
+    private static final String PACK_SHADER =
+        "#version 130\n" +
+        "uniform sampler2D colourTex;\n" +
+        "uniform sampler2D depthTex;\n" +
+        "uniform sampler2D rangeTex;\n" +
+        "uniform bool autoscale;\n" +
+        "uniform vec2 fixedRange;\n" +
+        "void main()\n" +
+        "{\n" +
+        "    ivec2 p = ivec2(gl_FragCoord.xy);\n" +
+        "    vec2 range = autoscale ? texelFetch(rangeTex, ivec2(0, 0), 0).rg : fixedRange;\n" +
+        "    float depth = clamp(texelFetch(depthTex, p, 0).r, range.x, range.y);\n" +
+        "    float scaled = (depth - range.x) / max(range.y - range.x, 0.000001);\n" +
+        "    gl_FragColor = vec4(texelFetch(colourTex, p, 0).rgb, floor(scaled * 255.0) / 255.0);\n" +
+        "}\n";
+
+    private int width;
+    private int height;
+    private boolean valid = false;
+
+    private int captureFbo;
+    private int colourTex;
+    private int depthTex;
+    private int[] rangeFbos;
+    private int[] rangeTexs;
+    private int[] rangeWidths;
+    private int[] rangeHeights;
+    private int outputFbo;
+    private int outputTex;
+
+    private int reduceProgram;
+    private int reduceSourceSize;
+    private int reduceSourceIsDepth;
+    private int packProgram;
+    private int packAutoscale;
+    private int packFixedRange;
+
+    /** Create the shaders and framebuffers.
+     * @param width width of the packed frame.
+     * @param height height of the packed frame.
+     */
+    public DepthPacker(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+
+        GL11.glPushAttrib(GL11.GL_TEXTURE_BIT);
+        boolean ok = true;
+        this.colourTex = createTexture(GL11.GL_RGBA8, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, width, height);
+        this.depthTex = createTexture(GL14.GL_DEPTH_COMPONENT24, GL11.GL_DEPTH_COMPONENT, GL11.GL_FLOAT, width, height);
+        this.captureFbo = GL30.glGenFramebuffers();
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.captureFbo);
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, this.colourTex, 0);
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL11.GL_TEXTURE_2D, this.depthTex, 0);
+        ok &= isComplete("capture");
+
+        // The reduction chain - each level half the size of the last, down to 1x1:
+        int levels = 0;
+        for (int w = width, h = height; levels == 0 || w > 1 || h > 1; levels++)
+        {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+        this.rangeFbos = new int[levels];
+        this.rangeTexs = new int[levels];
+        this.rangeWidths = new int[levels];
+        this.rangeHeights = new int[levels];
+        for (int i = 0, w = width, h = height; i < levels; i++)
+        {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            this.rangeWidths[i] = w;
+            this.rangeHeights[i] = h;
+            this.rangeTexs[i] = createTexture(GL30.GL_RG32F, GL30.GL_RG, GL11.GL_FLOAT, w, h);
+            this.rangeFbos[i] = createFramebuffer(this.rangeTexs[i]);
+            ok &= isComplete("range");
+        }
+
+        this.outputTex = createTexture(GL11.GL_RGBA8, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, width, height);
+        this.outputFbo = createFramebuffer(this.outputTex);
+        ok &= isComplete("output");
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GL11.glPopAttrib();
+
+        this.reduceProgram = ShaderHelper.createProgram(VERTEX_SHADER, REDUCE_SHADER);
+        this.packProgram = ShaderHelper.createProgram(VERTEX_SHADER, PACK_SHADER);
+        ok &= (this.reduceProgram != 0 && this.packProgram != 0);
+        if (ok)
+        {
+            this.reduceSourceSize = GL20.glGetUniformLocation(this.reduceProgram, "sourceSize");
+            this.reduceSourceIsDepth = GL20.glGetUniformLocation(this.reduceProgram, "sourceIsDepth");
+            this.packAutoscale = GL20.glGetUniformLocation(this.packProgram, "autoscale");
+            this.packFixedRange = GL20.glGetUniformLocation(this.packProgram, "fixedRange");
+            // Samplers never change, so set them up now:
+            GL20.glUseProgram(this.reduceProgram);
+            GL20.glUniform1i(GL20.glGetUniformLocation(this.reduceProgram, "source"), 0);
+            GL20.glUseProgram(this.packProgram);
+            GL20.glUniform1i(GL20.glGetUniformLocation(this.packProgram, "colourTex"), 0);
+            GL20.glUniform1i(GL20.glGetUniformLocation(this.packProgram, "depthTex"), 1);
+            GL20.glUniform1i(GL20.glGetUniformLocation(this.packProgram, "rangeTex"), 2);
+            GL20.glUseProgram(0);
+        }
+        this.valid = ok;
+    }
+
+    /** @return false if the shaders or framebuffers couldn't be created - in which case the caller should fall back to packing on the CPU.*/
+    public boolean isValid()
+    {
+        return this.valid;
+    }
+
+    /** Pack the colour and depth of the source framebuffer, scaled to our size, into our output framebuffer.<br>
+     * On return, the output framebuffer is left bound, ready for reading RGBA, GL_UNSIGNED_BYTE pixels from; the caller must rebind whatever it needs.
+     * @param source the framebuffer to pack - must have a depth buffer.
+     * @param autoscale if true, scale the depth between the minimum and maximum depths in the frame.
+     * @param min the depth to map to zero, if not autoscaling.
+     * @param max the depth to map to 255, if not autoscaling.
+     */
+    public void pack(Framebuffer source, boolean autoscale, float min, float max)
+    {
+        GL11.glPushAttrib(GL11.GL_VIEWPORT_BIT | GL11.GL_ENABLE_BIT | GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT | GL11.GL_TEXTURE_BIT);
+
+        // The source depth is a renderbuffer, which can't be sampled, so blit it (and the colour) into our textures:
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, source.framebufferObject);
+        GL30.glBindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, this.captureFbo);
+        GL30.glBlitFramebuffer(
+                0, 0, source.framebufferWidth, source.framebufferHeight,
+                0, 0, this.width, this.height,
+                GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT, GL11.GL_NEAREST);
+
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+        GL11.glDisable(GL11.GL_BLEND);
+        GL11.glDisable(GL11.GL_ALPHA_TEST);
+        GL11.glDisable(GL11.GL_CULL_FACE);
+        GL11.glColorMask(true, true, true, true);
+        GL13.glActiveTexture(GL13.GL_TEXTURE0);
+
+        if (autoscale)
+        {
+            GL20.glUseProgram(this.reduceProgram);
+            int sourceTex = this.depthTex;
+            int sourceWidth = this.width;
+            int sourceHeight = this.height;
+            for (int i = 0; i < this.rangeFbos.length; i++)
+            {
+                GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.rangeFbos[i]);
+                GL11.glViewport(0, 0, this.rangeWidths[i], this.rangeHeights[i]);
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, sourceTex);
+                GL20.glUniform2i(this.reduceSourceSize, sourceWidth, sourceHeight);
+                GL20.glUniform1i(this.reduceSourceIsDepth, i == 0 ? 1 : 0);
+                drawQuad();
+                sourceTex = this.rangeTexs[i];
+                sourceWidth = this.rangeWidths[i];
+                sourceHeight = this.rangeHeights[i];
+            }
+        }
+        else if (min > max)
+        {
+            // You can't trust users.
+            float t = min;
+            min = max;
+            max = t;
+        }
+
+        GL20.glUseProgram(this.packProgram);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.outputFbo);
+        GL11.glViewport(0, 0, this.width, this.height);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.colourTex);
+        GL13.glActiveTexture(GL13.GL_TEXTURE1);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.depthTex);
+        GL13.glActiveTexture(GL13.GL_TEXTURE2);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.rangeTexs[this.rangeTexs.length - 1]);
+        GL20.glUniform1i(this.packAutoscale, autoscale ? 1 : 0);
+        GL20.glUniform2f(this.packFixedRange, min, max);
+        drawQuad();
+
+        GL20.glUseProgram(0);
+        GL11.glPopAttrib();
+    }
+
+    /** Release all the GL resources - must be called, or we leak them.*/
+    public void delete()
+    {
+        GL30.glDeleteFramebuffers(this.captureFbo);
+        GL30.glDeleteFramebuffers(this.outputFbo);
+        GL11.glDeleteTextures(this.colourTex);
+        GL11.glDeleteTextures(this.depthTex);
+        GL11.glDeleteTextures(this.outputTex);
+        for (int i = 0; i < this.rangeFbos.length; i++)
+        {
+            GL30.glDeleteFramebuffers(this.rangeFbos[i]);
+            GL11.glDeleteTextures(this.rangeTexs[i]);
+        }
+        if (this.reduceProgram != 0)
+            GL20.glDeleteProgram(this.reduceProgram);
+        if (this.packProgram != 0)
+            GL20.glDeleteProgram(this.packProgram);
+        this.valid = false;
+    }
+
+    private static void drawQuad()
+    {
+        GL11.glBegin(GL11.GL_QUADS);
+        GL11.glVertex2f(-1, -1);
+        GL11.glVertex2f(1, -1);
+        GL11.glVertex2f(1, 1);
+        GL11.glVertex2f(-1, 1);
+        GL11.glEnd();
+    }
+
+    private static int createTexture(int internalFormat, int format, int type, int width, int height)
+    {
+        int tex = GL11.glGenTextures();
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, tex);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+        if (format == GL11.GL_DEPTH_COMPONENT)
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL14.GL_TEXTURE_COMPARE_MODE, GL11.GL_NONE);   // We want the raw depth values.
+        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, (ByteBuffer)null);
+        return tex;
+    }
+
+    private static int createFramebuffer(int colourTex)
+    {
+        int fbo = GL30.glGenFramebuffers();
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, fbo);
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, colourTex, 0);
+        return fbo;
+    }
+
+    private static boolean isComplete(String name)
+    {
+        int status = GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER);
+        if (status != GL30.GL_FRAMEBUFFER_COMPLETE)
+        {
+            System.out.println("DepthPacker: " + name + " framebuffer incomplete: " + status);
+            return false;
+        }
+        return true;
+    }
+}
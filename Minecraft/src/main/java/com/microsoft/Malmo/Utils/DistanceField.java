@@ -0,0 +1,379 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+
+/**
+ * Walking distance from every cell in a box of the world to the nearest of a set of goal cells, kept up to date as blocks change.<br>
+ * A cell is walkable if the player can stand in it - its block and the one above are passable, and the one below is solid
+ * (see BlockGridSampler.getBlockClass()) - so cells in chunks that aren't loaded are never walkable, until the chunks load and the field is rebuilt.
+ * The player can step to any of the four horizontally adjacent walkable cells,
+ * or up or down one block, if there is headroom to jump or fall. Goal cells always count as walkable.<br>
+ * The field is built by breadth-first search from the goals. After that, the field listens to the world, and when blocks change
+ * it only repairs the cells whose distances could have been affected: those whose shortest paths ran through a changed cell lose their distances,
+ * and then they, along with any cells that have become walkable, are filled back in from their neighbours, Dijkstra style.
+ * Looking up the distance and the best direction for a cell costs the same however big the box is.<br>
+ * Call this on the Server side only - it isn't thread safe.
+ */
+public class DistanceField
+{
+    /** Distance of cells that can't reach a goal.*/
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /** If a single change touches more cells than this, just rebuild the whole field.*/
+    private static final int MAX_CHANGED_CELLS = 4096;
+
+    /** Horizontal steps, in the same order as DIRECTION_NAMES.*/
+    private static final int[] STEP_X = { 0, 0, 1, -1 };
+    private static final int[] STEP_Z = { -1, 1, 0, 0 };
+    private static final String[] DIRECTION_NAMES = { "north", "south", "east", "west" };
+
+    private World world;
+    private int xOrg;
+    private int yOrg;
+    private int zOrg;
+    private int xSize;
+    private int ySize;
+    private int zSize;
+    private int[] goals;
+    private int[] distances;
+    private boolean[] walkable;
+    private BitSet isGoal;
+    private BitSet changed;
+    private boolean rebuildNeeded = true;
+    private int[] neighbours = new int[12];
+    private WorldAccessAdapter listener;
+    private BlockGridSampler.MissingChunks missingChunks = new BlockGridSampler.MissingChunks();
+
+    /**
+     * Create the field, and start listening for changes to the world. Call release() when it's no longer needed.
+     * @param world the world to search.
+     * @param min one corner of the box to search (inclusive).
+     * @param max the opposite corner (inclusive).
+     * @param goalPositions the positions of the goals - any outside the box are ignored.
+     */
+    public DistanceField(World world, BlockPos min, BlockPos max, BlockPos[] goalPositions)
+    {
+        this.world = world;
+        this.xOrg = Math.min(min.getX(), max.getX());
+        this.yOrg = Math.min(min.getY(), max.getY());
+        this.zOrg = Math.min(min.getZ(), max.getZ());
+        this.xSize = Math.abs(max.getX() - min.getX()) + 1;
+        this.ySize = Math.abs(max.getY() - min.getY()) + 1;
+        this.zSize = Math.abs(max.getZ() - min.getZ()) + 1;
+        int numCells = this.xSize * this.ySize * this.zSize;
+        this.distances = new int[numCells];
+        this.walkable = new boolean[numCells];
+        this.isGoal = new BitSet(numCells);
+        this.changed = new BitSet(numCells);
+        int numGoals = 0;
+        int[] goals = new int[goalPositions.length];
+        for (BlockPos pos : goalPositions)
+        {
+            int cell = getCell(pos.getX(), pos.getY(), pos.getZ());
+            if (cell != -1 && !this.isGoal.get(cell))
+            {
+                this.isGoal.set(cell);
+                goals[numGoals++] = cell;
+            }
+        }
+        this.goals = Arrays.copyOf(goals, numGoals);
+
+        this.listener = new WorldAccessAdapter()
+        {
+            @Override
+            public void markBlockForUpdate(BlockPos pos)
+            {
+                onBlockChanged(pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ());
+            }
+
+            @Override
+            public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2)
+            {
+                onBlockChanged(x1, y1, z1, x2, y2, z2);
+            }
+        };
+        world.addWorldAccess(this.listener);
+    }
+
+    /** Stop listening to the world.*/
+    public void release()
+    {
+        this.world.removeWorldAccess(this.listener);
+    }
+
+    public World getWorld() { return this.world; }
+
+    /**
+     * Bring the field up to date with any blocks that have changed - cheap if nothing has.
+     */
+    public void update()
+    {
+        BlockGridSampler.BlockLookup lookup = new BlockGridSampler.BlockLookup(this.world);
+        if (this.missingChunks.anyLoaded(this.world))
+            this.rebuildNeeded = true;  // Nothing tells us what's in a chunk when it loads.
+        if (this.rebuildNeeded)
+            rebuild(lookup);
+        else if (!this.changed.isEmpty())
+            repair(lookup);
+        this.rebuildNeeded = false;
+        this.changed.clear();
+    }
+
+    /**
+     * @return the walking distance from the given cell to the nearest goal, or UNREACHABLE if there's no way there, or the cell is outside the box.
+     */
+    public int getDistance(int x, int y, int z)
+    {
+        int cell = getCell(x, y, z);
+        return (cell == -1) ? UNREACHABLE : this.distances[cell];
+    }
+
+    /**
+     * @return the direction ("north", "south", "east" or "west") of the first step on a shortest path from the given cell to a goal,
+     * or "" if the cell is a goal, can't reach one, or is outside the box.
+     */
+    public String getBestDirection(int x, int y, int z)
+    {
+        int cell = getCell(x, y, z);
+        if (cell == -1 || this.distances[cell] == UNREACHABLE || this.distances[cell] == 0)
+            return "";
+        int count = getNeighbours(new BlockGridSampler.BlockLookup(this.world), cell, true);
+        for (int i = 0; i < count; i++)
+        {
+            int n = this.neighbours[i];
+            if (this.distances[n] == this.distances[cell] - 1)
+                return DIRECTION_NAMES[directionOf(cell, n)];
+        }
+        return "";
+    }
+
+    private void onBlockChanged(int x1, int y1, int z1, int x2, int y2, int z2)
+    {
+        if (this.rebuildNeeded)
+            return;
+        // A block is the floor of the cell above it, the head of the cell below, and the headroom for jumping of the cell two below:
+        int xa = Math.max(x1, this.xOrg);
+        int xb = Math.min(x2, this.xOrg + this.xSize - 1);
+        int ya = Math.max(y1 - 2, this.yOrg);
+        int yb = Math.min(y2 + 1, this.yOrg + this.ySize - 1);
+        int za = Math.max(z1, this.zOrg);
+        int zb = Math.min(z2, this.zOrg + this.zSize - 1);
+        if (xa > xb || ya > yb || za > zb)
+            return;
+        if ((long)(xb - xa + 1) * (yb - ya + 1) * (zb - za + 1) > MAX_CHANGED_CELLS)
+        {
+            this.rebuildNeeded = true;
+            return;
+        }
+        for (int y = ya; y <= yb; y++)
+            for (int z = za; z <= zb; z++)
+                for (int x = xa; x <= xb; x++)
+                    this.changed.set(getCell(x, y, z));
+    }
+
+    private void rebuild(BlockGridSampler.BlockLookup lookup)
+    {
+        this.missingChunks.find(this.world, this.xOrg, this.zOrg, this.xOrg + this.xSize - 1, this.zOrg + this.zSize - 1);
+        for (int cell = 0; cell < this.walkable.length; cell++)
+            this.walkable[cell] = computeWalkable(lookup, cell);
+        Arrays.fill(this.distances, UNREACHABLE);
+
+        // Plain breadth-first search out from all the goals at once:
+        int[] queue = new int[this.distances.length];
+        int head = 0;
+        int tail = 0;
+        for (int goal : this.goals)
+        {
+            this.distances[goal] = 0;
+            queue[tail++] = goal;
+        }
+        while (head < tail)
+        {
+            int cell = queue[head++];
+            int count = getNeighbours(lookup, cell, true);
+            for (int i = 0; i < count; i++)
+            {
+                int n = this.neighbours[i];
+                if (this.distances[n] == UNREACHABLE)
+                {
+                    this.distances[n] = this.distances[cell] + 1;
+                    queue[tail++] = n;
+                }
+            }
+        }
+    }
+
+    private void repair(BlockGridSampler.BlockLookup lookup)
+    {
+        // Anything whose shortest path may have run through a changed cell loses its distance.
+        // Those are the changed cells' descendants - the cells reached by stepping to neighbours one further from the goals.
+        BitSet affected = new BitSet(this.distances.length);
+        ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+        for (int cell = this.changed.nextSetBit(0); cell >= 0; cell = this.changed.nextSetBit(cell + 1))
+        {
+            if (this.distances[cell] != UNREACHABLE && !this.isGoal.get(cell))
+            {
+                affected.set(cell);
+                stack.push(cell);
+            }
+        }
+        while (!stack.isEmpty())
+        {
+            int cell = stack.pop();
+            int count = getNeighbours(null, cell, false);
+            for (int i = 0; i < count; i++)
+            {
+                int n = this.neighbours[i];
+                if (!affected.get(n) && !this.isGoal.get(n) && this.distances[n] != UNREACHABLE && this.distances[n] == this.distances[cell] + 1)
+                {
+                    affected.set(n);
+                    stack.push(n);
+                }
+            }
+        }
+        for (int cell = affected.nextSetBit(0); cell >= 0; cell = affected.nextSetBit(cell + 1))
+            this.distances[cell] = UNREACHABLE;
+        for (int cell = this.changed.nextSetBit(0); cell >= 0; cell = this.changed.nextSetBit(cell + 1))
+            this.walkable[cell] = computeWalkable(lookup, cell);
+
+        // Everything else still has a valid distance, so fill the affected and changed cells back in from their neighbours,
+        // and let any improvements spread outwards:
+        affected.or(this.changed);
+        PriorityQueue<Long> queue = new PriorityQueue<Long>();
+        for (int cell = affected.nextSetBit(0); cell >= 0; cell = affected.nextSetBit(cell + 1))
+        {
+            if (!this.walkable[cell] && !this.isGoal.get(cell))
+                continue;
+            int best = this.distances[cell];
+            int count = getNeighbours(lookup, cell, true);
+            for (int i = 0; i < count; i++)
+            {
+                int d = this.distances[this.neighbours[i]];
+                if (d != UNREACHABLE && d + 1 < best)
+                    best = d + 1;
+            }
+            if (best < this.distances[cell])
+            {
+                this.distances[cell] = best;
+                queue.add(((long)best << 32) | cell);
+            }
+        }
+        while (!queue.isEmpty())
+        {
+            long entry = queue.poll();
+            int d = (int)(entry >>> 32);
+            int cell = (int)entry;
+            if (d != this.distances[cell])
+                continue;	// Stale entry - the cell has been improved since.
+            int count = getNeighbours(lookup, cell, true);
+            for (int i = 0; i < count; i++)
+            {
+                int n = this.neighbours[i];
+                if (this.distances[n] > d + 1)
+                {
+                    this.distances[n] = d + 1;
+                    queue.add(((long)(d + 1) << 32) | n);
+                }
+            }
+        }
+    }
+
+    private int getCell(int x, int y, int z)
+    {
+        x -= this.xOrg;
+        y -= this.yOrg;
+        z -= this.zOrg;
+        if (x < 0 || y < 0 || z < 0 || x >= this.xSize || y >= this.ySize || z >= this.zSize)
+            return -1;
+        return (y * this.zSize + z) * this.xSize + x;	// Same order as the grid observations.
+    }
+
+    private int cellX(int cell) { return this.xOrg + cell % this.xSize; }
+    private int cellZ(int cell) { return this.zOrg + (cell / this.xSize) % this.zSize; }
+    private int cellY(int cell) { return this.yOrg + cell / (this.xSize * this.zSize); }
+
+    /** Fill this.neighbours with the cells in the box that the given cell might connect to.
+     * @param lookup used to check for headroom - may be null if edgesOnly is false.
+     * @param edgesOnly if true, only return the cells that the player can actually step to from this one.
+     * @return the number of neighbours.
+     */
+    private int getNeighbours(BlockGridSampler.BlockLookup lookup, int cell, boolean edgesOnly)
+    {
+        int x = cellX(cell);
+        int y = cellY(cell);
+        int z = cellZ(cell);
+        int count = 0;
+        for (int dir = 0; dir < 4; dir++)
+        {
+            for (int dy = -1; dy <= 1; dy++)
+            {
+                int n = getCell(x + STEP_X[dir], y + dy, z + STEP_Z[dir]);
+                if (n == -1)
+                    continue;
+                if (edgesOnly)
+                {
+                    if (!(this.walkable[n] || this.isGoal.get(n)))
+                        continue;
+                    // Stepping up or down needs room for the player's head above the lower cell:
+                    if (dy == 1 && !isPassable(lookup, x, y + 2, z))
+                        continue;
+                    if (dy == -1 && !isPassable(lookup, x + STEP_X[dir], y + 1, z + STEP_Z[dir]))
+                        continue;
+                }
+                this.neighbours[count++] = n;
+            }
+        }
+        return count;
+    }
+
+    private int directionOf(int from, int to)
+    {
+        int dx = cellX(to) - cellX(from);
+        int dz = cellZ(to) - cellZ(from);
+        for (int dir = 0; dir < 4; dir++)
+        {
+            if (STEP_X[dir] == dx && STEP_Z[dir] == dz)
+                return dir;
+        }
+        return 0;
+    }
+
+    private boolean computeWalkable(BlockGridSampler.BlockLookup lookup, int cell)
+    {
+        int x = cellX(cell);
+        int y = cellY(cell);
+        int z = cellZ(cell);
+        return isPassable(lookup, x, y, z) && isPassable(lookup, x, y + 1, z)
+                && BlockGridSampler.getBlockClass(lookup.getBlockId(x, y - 1, z)) == BlockGridSampler.CLASS_SOLID;
+    }
+
+    private static boolean isPassable(BlockGridSampler.BlockLookup lookup, int x, int y, int z)
+    {
+        return BlockGridSampler.getBlockClass(lookup.getBlockId(x, y, z)) == BlockGridSampler.CLASS_PASSABLE;
+    }
+}
@@ -0,0 +1,194 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Encoders for video frames - fast LZ compression, and XOR delta against the previous frame plus run-length encoding.<br>
+ * All methods use absolute indexing, so buffer positions are ignored and left unchanged.
+ * Not thread safe - each sending thread should have its own encoder.
+ */
+public class FrameEncoder
+{
+    /** Encoding codes, as sent in the first byte of an encoded frame. */
+    public static final byte ENCODING_RAW = 0;
+    public static final byte ENCODING_LZ_FAST = 1;
+    public static final byte ENCODING_XOR_RLE = 2;
+    public static final byte ENCODING_UNCHANGED = 3;
+
+    private static final int HASH_BITS = 16;
+    private static final int MIN_MATCH = 4;
+    /** LZ4 block format rules - the last match must start at least this far from the end...*/
+    private static final int MATCH_FIND_LIMIT = 12;
+    /** ...and the last bytes must always be literals.*/
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+
+    private int[] hashTable = new int[1 << HASH_BITS];
+
+    /** @return the largest number of bytes any of the encodings can produce for a frame of this length.*/
+    public static int maxEncodedLength(int rawLength)
+    {
+        // XOR/RLE: each run costs two varints plus its changed bytes, and every run but the first starts with at least one unchanged byte,
+        // so there are at most n/2 + 1 runs - n + n/2 + 2 bytes at worst (changed and unchanged bytes alternating: three out for every two in).
+        // LZ4: incompressible data costs one extra length byte per 255 literals, plus the token - the standard bound is n + n/255 + 16.
+        return Math.max(rawLength + rawLength / 2 + 2, rawLength + rawLength / 255 + 16);
+    }
+
+    /** Fast 64-bit hash of a frame, used to spot frames that haven't changed. */
+    public static long hash(ByteBuffer src, int length)
+    {
+        long h = 0xcbf29ce484222325L;
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+        {
+            h ^= src.getLong(i);
+            h *= 0x100000001b3L;
+            h ^= h >>> 32;
+        }
+        for (; i < length; i++)
+        {
+            h ^= src.get(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Compress in LZ4 block format, so that agents can use any standard LZ4 decoder.
+     * @param src the frame to compress.
+     * @param length number of bytes in the frame.
+     * @param dst buffer to write to - must have at least maxEncodedLength(length) bytes after dstOffset.
+     * @param dstOffset index in dst to start writing at.
+     * @return the number of bytes written.
+     */
+    public int encodeLzFast(ByteBuffer src, int length, ByteBuffer dst, int dstOffset)
+    {
+        Arrays.fill(this.hashTable, -1);
+        int op = dstOffset;
+        int anchor = 0;
+        int ip = 0;
+        int matchFindLimit = length - MATCH_FIND_LIMIT;
+        int matchLimit = length - LAST_LITERALS;
+        while (ip < matchFindLimit)
+        {
+            int sequence = src.getInt(ip);
+            int h = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = this.hashTable[h];
+            this.hashTable[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || src.getInt(ref) != sequence)
+            {
+                // No match - skip ahead faster the longer we go without finding one:
+                ip += 1 + ((ip - anchor) >> 6);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src.get(ref + matchLength) == src.get(ip + matchLength))
+                matchLength++;
+
+            // Token, literals, offset, then match length:
+            int token = op++;
+            int literals = ip - anchor;
+            op = putLength(dst, op, literals);
+            for (int i = anchor; i < ip; i++)
+                dst.put(op++, src.get(i));
+            int offset = ip - ref;
+            dst.put(op++, (byte)offset);
+            dst.put(op++, (byte)(offset >> 8));
+            op = putLength(dst, op, matchLength - MIN_MATCH);
+            dst.put(token, (byte)((Math.min(literals, 15) << 4) | Math.min(matchLength - MIN_MATCH, 15)));
+
+            ip += matchLength;
+            anchor = ip;
+        }
+        // The rest goes as literals:
+        int literals = length - anchor;
+        int token = op++;
+        op = putLength(dst, op, literals);
+        for (int i = anchor; i < length; i++)
+            dst.put(op++, src.get(i));
+        dst.put(token, (byte)(Math.min(literals, 15) << 4));
+        return op - dstOffset;
+    }
+
+    /** XOR the frame with the previous one and run-length encode the result, as a series of
+     * (number of zero bytes, number of literal bytes, literal bytes), with the numbers as unsigned LEB128 varints.<br>
+     * The frame is then copied into previous, ready for next time.
+     * @param src the frame to encode.
+     * @param previous the previous frame - or zeros, if there isn't one.
+     * @param length number of bytes in the frame.
+     * @param dst buffer to write to - must have at least maxEncodedLength(length) bytes after dstOffset.
+     * @param dstOffset index in dst to start writing at.
+     * @return the number of bytes written.
+     */
+    public int encodeXorRle(ByteBuffer src, ByteBuffer previous, int length, ByteBuffer dst, int dstOffset)
+    {
+        int op = dstOffset;
+        int i = 0;
+        while (i < length)
+        {
+            int runStart = i;
+            while (i + 8 <= length && src.getLong(i) == previous.getLong(i))
+                i += 8;
+            while (i < length && src.get(i) == previous.get(i))
+                i++;
+            int literalStart = i;
+            while (i < length && src.get(i) != previous.get(i))
+                i++;
+            op = putVarint(dst, op, literalStart - runStart);
+            op = putVarint(dst, op, i - literalStart);
+            for (int j = literalStart; j < i; j++)
+                dst.put(op++, (byte)(src.get(j) ^ previous.get(j)));
+        }
+        ByteBuffer frame = src.duplicate();
+        frame.clear();
+        frame.limit(length);
+        previous.clear();
+        previous.put(frame);
+        previous.clear();
+        return op - dstOffset;
+    }
+
+    /** Write the extra bytes of an LZ4 length, for lengths that don't fit in the token's four bits. */
+    private static int putLength(ByteBuffer dst, int op, int length)
+    {
+        if (length < 15)
+            return op;
+        length -= 15;
+        while (length >= 255)
+        {
+            dst.put(op++, (byte)255);
+            length -= 255;
+        }
+        dst.put(op++, (byte)length);
+        return op;
+    }
+
+    private static int putVarint(ByteBuffer dst, int op, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            dst.put(op++, (byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put(op++, (byte)value);
+        return op;
+    }
+}
@@ -0,0 +1,151 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/**
+ * Per-world cache of the height and top block of every column in each chunk that has been asked for.<br>
+ * Heights come from the chunk's own height map, so filling a chunk costs one block lookup per column, rather than a walk down from the sky.
+ * The cache listens to the world (as an IWorldAccess - see WorldAccessAdapter) and throws away a chunk's entry whenever a block in it changes;
+ * entries also notice if their chunk has been unloaded and reloaded since they were filled.<br>
+ * Call this on the Server side only - it isn't thread safe.
+ */
+public class HeightmapCache extends WorldAccessAdapter
+{
+    /** The cached columns of a single chunk, indexed by (z << 4) | x.*/
+    public static class ChunkColumns
+    {
+        /** y coordinate of the top block of each column, or -1 if the column is empty.*/
+        public final int[] heights = new int[256];
+        /** Block id of the top block of each column.*/
+        public final int[] blockIds = new int[256];
+        private WeakReference<Chunk> chunk;
+    }
+
+    /** Once we hold this many chunks, sweep out the ones that have been unloaded.*/
+    private static final int SWEEP_THRESHOLD = 4096;
+
+    /** Returned for chunks that aren't loaded - every column empty, with an unknown surface. Shared, so callers mustn't modify it.*/
+    private static final ChunkColumns UNLOADED = new ChunkColumns();
+    static
+    {
+        Arrays.fill(UNLOADED.heights, -1);
+        Arrays.fill(UNLOADED.blockIds, BlockGridSampler.UNKNOWN_BLOCK_ID);
+    }
+
+    private static Map<World, HeightmapCache> caches = new WeakHashMap<World, HeightmapCache>();
+
+    private Map<Long, ChunkColumns> chunks = new HashMap<Long, ChunkColumns>();
+
+    /**
+     * @return the cache for the given world - created, and attached to the world, the first time it's asked for.
+     */
+    public static HeightmapCache forWorld(World world)
+    {
+        HeightmapCache cache = caches.get(world);
+        if (cache == null)
+        {
+            cache = new HeightmapCache();
+            world.addWorldAccess(cache);
+            caches.put(world, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the columns of the given chunk, filled from the world if they aren't cached, or are out of date.<br>
+     * If the chunk isn't loaded, every column is reported as empty (height -1), with BlockGridSampler.UNKNOWN_BLOCK_ID on top - we don't load
+     * or generate chunks on the server tick just to look at them.
+     */
+    public ChunkColumns getColumns(World world, int chunkX, int chunkZ)
+    {
+        if (!world.getChunkProvider().chunkExists(chunkX, chunkZ))
+            return UNLOADED;
+        Chunk chunk = world.getChunkFromChunkCoords(chunkX, chunkZ);
+        long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+        ChunkColumns columns = this.chunks.get(key);
+        if (columns != null && columns.chunk.get() == chunk)
+            return columns;
+
+        columns = new ChunkColumns();
+        columns.chunk = new WeakReference<Chunk>(chunk);
+        int[] heightMap = chunk.getHeightMap();
+        ExtendedBlockStorage[] storageArray = chunk.getBlockStorageArray();
+        for (int i = 0; i < 256; i++)
+        {
+            // The height map holds the y coordinate of the first block *above* the top light-stopping block:
+            int y = Math.min(heightMap[i], 256) - 1;
+            int id = 0;
+            if (y >= 0)
+            {
+                ExtendedBlockStorage storage = storageArray[y >> 4];
+                if (storage != null)
+                    id = storage.getData()[((y & 15) << 8) | i] >> 4;
+            }
+            columns.heights[i] = y;
+            columns.blockIds[i] = id;
+        }
+        if (this.chunks.size() >= SWEEP_THRESHOLD)
+            sweep();
+        this.chunks.put(key, columns);
+        return columns;
+    }
+
+    private void sweep()
+    {
+        Iterator<ChunkColumns> it = this.chunks.values().iterator();
+        while (it.hasNext())
+        {
+            if (it.next().chunk.get() == null)
+                it.remove();
+        }
+    }
+
+    private void invalidate(int x, int z)
+    {
+        this.chunks.remove(ChunkCoordIntPair.chunkXZ2Int(x >> 4, z >> 4));
+    }
+
+    @Override
+    public void markBlockForUpdate(BlockPos pos)
+    {
+        invalidate(pos.getX(), pos.getZ());
+    }
+
+    @Override
+    public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2)
+    {
+        for (int cx = x1 >> 4; cx <= x2 >> 4; cx++)
+            for (int cz = z1 >> 4; cz <= z2 >> 4; cz++)
+                this.chunks.remove(ChunkCoordIntPair.chunkXZ2Int(cx, cz));
+    }
+}
@@ -0,0 +1,43 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.nio.ByteBuffer;
+
+/** Interface for the ways video frames can be delivered to the agent - eg over TCP, or through shared memory.
+ */
+public interface IFrameTransport
+{
+    /** Deliver one frame.
+     * @param buffer the bytes to send, starting from the buffer's current position.
+     * @param length the number of bytes to send.
+     * @return true if the frame was delivered.
+     */
+    public boolean sendFrame(ByteBuffer buffer, int length);
+
+    /** @return true if delivery has failed recently and there is no point trying again yet.*/
+    public boolean isWaitingToRetry();
+
+    /** @return the number of consecutive failures - used to terminate a mission if nothing is listening.*/
+    public int getFailureCount();
+
+    /** Release any resources.*/
+    public void close();
+}
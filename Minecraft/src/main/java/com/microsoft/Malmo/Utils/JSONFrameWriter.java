@@ -0,0 +1,160 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IObservationProducer;
+import com.microsoft.Malmo.MissionHandlerInterfaces.IStreamingObservationProducer;
+import com.microsoft.Malmo.Schemas.MissionInit;
+
+/** Builds JSON messages in a direct buffer that is reused from one message to the next.<br>
+ * The JSON is streamed straight into the buffer as UTF-8, through a JsonWriter that is also reused, so writing a message allocates nothing
+ * beyond what the producers themselves do. The buffer is then handed to TCPSocketHelper.SocketChannelHelper.sendFrame(), which sends it
+ * behind its length header in a single gathered write.<br>
+ * Not thread safe - use one per sending thread.
+ */
+public class JSONFrameWriter
+{
+    /** Size of the buffer to start with - it doubles whenever a message doesn't fit, and stays at that size.*/
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** Used to write JSON trees into the stream - set up to match JsonElement.toString().*/
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+    private FrameStream stream = new FrameStream();
+    private JsonWriter writer;
+    /** True between begin() and a successful end() - if begin() finds it still set, the last message was abandoned part way through.*/
+    private boolean inMessage = false;
+
+    /** OutputStream that writes into a direct buffer, moving to one twice the size when it fills up.*/
+    private static class FrameStream extends OutputStream
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+        @Override
+        public void write(int b)
+        {
+            ensureRemaining(1);
+            this.buffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            ensureRemaining(len);
+            this.buffer.put(b, off, len);
+        }
+
+        private void ensureRemaining(int length)
+        {
+            if (this.buffer.remaining() >= length)
+                return;
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(2 * this.buffer.capacity(), this.buffer.position() + length));
+            this.buffer.flip();
+            grown.put(this.buffer);
+            this.buffer = grown;
+        }
+    }
+
+    public JSONFrameWriter()
+    {
+        createWriter();
+    }
+
+    private void createWriter()
+    {
+        Writer streamWriter = new OutputStreamWriter(this.stream, Charset.forName("UTF-8"));
+        this.writer = new JsonWriter(streamWriter);
+        // Each message is another top-level value written by the same writer, which only a lenient writer allows:
+        this.writer.setLenient(true);
+    }
+
+    /** Start a new message, discarding the previous one.
+     * @return a writer for the JSON body of the message - the same one each time.
+     */
+    public JsonWriter begin()
+    {
+        // An abandoned message (eg a producer threw) may have left the writer part way through an object, and characters buffered
+        // that would otherwise turn up at the start of this one - so start again with a fresh writer:
+        if (this.inMessage)
+            createWriter();
+        this.inMessage = true;
+        this.stream.buffer.clear();
+        return this.writer;
+    }
+
+    /** Finish the message that was started by begin().
+     * @param writer the writer returned by begin().
+     * @return the length of the message, in bytes.
+     * @throws IOException
+     */
+    public int end(JsonWriter writer) throws IOException
+    {
+        writer.flush();
+        this.inMessage = false;
+        this.stream.buffer.flip();
+        return this.stream.buffer.limit();
+    }
+
+    /** @return the buffer holding the message, from its position to its limit. Only valid until the next call to begin().*/
+    public ByteBuffer getBuffer()
+    {
+        return this.stream.buffer;
+    }
+
+    /** Write all the members of a JSON object into an object that the writer already has open.*/
+    public static void writeMembers(JsonObject json, JsonWriter writer) throws IOException
+    {
+        for (Map.Entry<String, JsonElement> entry : json.entrySet())
+        {
+            writer.name(entry.getKey());
+            gson.toJson(entry.getValue(), writer);
+        }
+    }
+
+    /** Get an observation producer to write its observations into an object that the writer already has open.<br>
+     * Streams them if the producer can; otherwise gets the producer to build a tree, and writes that.
+     */
+    public static void writeObservations(IObservationProducer producer, JsonWriter writer, MissionInit missionInit) throws IOException
+    {
+        if (producer instanceof IStreamingObservationProducer)
+        {
+            ((IStreamingObservationProducer)producer).writeObservations(writer, missionInit);
+        }
+        else
+        {
+            JsonObject json = new JsonObject();
+            producer.writeObservationsToJSON(json, missionInit);
+            writeMembers(json, writer);
+        }
+    }
+}
@@ -19,19 +19,17 @@
 
 package com.microsoft.Malmo.Utils;
 
-import net.minecraft.block.Block;
-import net.minecraft.block.state.IBlockState;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.stats.StatBase;
 import net.minecraft.stats.StatFileWriter;
 import net.minecraft.stats.StatList;
-import net.minecraft.util.BlockPos;
-import net.minecraft.util.ResourceLocation;
 
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 
 /**
  * Helper class for building the "World data" to be passed from Minecraft back to the agent.<br>
@@ -88,6 +86,16 @@ public class JSONWorldDataHelper
             this.yMin = -1; this.yMax = -1;  // Flat patch of ground at the player's feet.
             this.zMin = -zMargin; this.zMax = zMargin;
         }
+
+        /**
+         * @return the number of cells in the environment, or zero if any of the ranges are empty.
+         */
+        public int getNumCells() {
+            int xSize = this.xMax - this.xMin + 1;
+            int ySize = this.yMax - this.yMin + 1;
+            int zSize = this.zMax - this.zMin + 1;
+            return (xSize > 0 && ySize > 0 && zSize > 0) ? xSize * ySize * zSize : 0;
+        }
     };
     
     /** Builds the basic achievement world data to be used as observation signals by the listener.
@@ -151,27 +159,126 @@ public class JSONWorldDataHelper
         if (player == null || json == null)
             return;
 
+        int[] cells = BlockGridSampler.sample(player.worldObj, player.getPosition(), environmentDimensions);
+        addGridData(json, cells, environmentDimensions.getNumCells(), jsonName);
+    }
+
+    /**
+     * Add a grid of block ids to the json as an array of block type strings, as buildGridData() does.
+     * @param json a JSON object into which the grid will be added.
+     * @param blockIds the block ids, one per cell.
+     * @param numCells the number of cells to add.
+     * @param jsonName name to use for identifying the returned JSON array.
+     */
+    public static void addGridData(JsonObject json, int[] blockIds, int numCells, String jsonName)
+    {
         JsonArray arr = new JsonArray();
-        BlockPos pos = player.getPosition();
-        for (int y = environmentDimensions.yMin; y <= environmentDimensions.yMax; y++)
+        for (int i = 0; i < numCells; i++)
+            arr.add(BlockGridSampler.getBlockNamePrimitive(blockIds[i]));
+        json.add(jsonName, arr);
+    }
+
+    /**
+     * Build a signal for the cubic block grid centred on the player, in compact form.<br>
+     * Cells are visited in the same order as buildGridData(), but rather than a block type string per cell,
+     * the grid is returned as a base64 string of little-endian uint16 indices, along with an array called
+     * jsonName + "_palette" which maps each index to a block type.<br>
+     * The palette only holds the block types that occur in this grid, so each observation stands on its own.
+     * @param json a JSON object into which the grid will be added.
+     * @param environmentDimensions object which specifies the required dimensions of the grid to be returned.
+     * @param jsonName name to use for identifying the returned data.
+     */
+    public static void buildPaletteGridData(JsonObject json, ImmediateEnvironmentDimensions environmentDimensions, EntityPlayerMP player, String jsonName)
+    {
+        if (player == null || json == null)
+            return;
+
+        int numCells = environmentDimensions.getNumCells();
+        if (numCells <= 0)
+            return;
+
+        int[] blockIds = BlockGridSampler.sample(player.worldObj, player.getPosition(), environmentDimensions);
+        addPaletteGridData(json, blockIds, numCells, jsonName);
+    }
+
+    /**
+     * Add a grid of block ids to the json in palette form, as buildPaletteGridData() does.
+     * @param json a JSON object into which the grid will be added.
+     * @param blockIds the block ids, one per cell.
+     * @param numCells the number of cells to add.
+     * @param jsonName name to use for identifying the returned data.
+     */
+    public static void addPaletteGridData(JsonObject json, int[] blockIds, int numCells, String jsonName)
+    {
+        byte[] cells = new byte[numCells * 2];
+        int[] paletteIndices = new int[BlockGridSampler.NUM_IDS];
+        Arrays.fill(paletteIndices, -1);
+        JsonArray palette = new JsonArray();
+        for (int i = 0; i < numCells; i++)
         {
-            for (int z = environmentDimensions.zMin; z <= environmentDimensions.zMax; z++)
+            int blockId = blockIds[i];
+            int index = paletteIndices[blockId];
+            if (index == -1)
             {
-                for (int x = environmentDimensions.xMin; x <= environmentDimensions.xMax; x++)
-                {
-                    BlockPos p = pos.add(x, y, z);
-                    String name = "";
-                    IBlockState state = player.worldObj.getBlockState(p);
-                    Object blockName = Block.blockRegistry.getNameForObject(state.getBlock());
-                    if (blockName instanceof ResourceLocation)
-                    {
-                        name = ((ResourceLocation)blockName).getResourcePath();
-                    }
-                    JsonElement element = new JsonPrimitive(name);
-                    arr.add(element);
-                }
+                // First time we've seen this block type in the grid - add it to the palette:
+                index = palette.size();
+                paletteIndices[blockId] = index;
+                palette.add(BlockGridSampler.getBlockNamePrimitive(blockId));
             }
+            cells[2 * i] = (byte)(index & 0xff);
+            cells[2 * i + 1] = (byte)((index >> 8) & 0xff);
         }
-        json.add(jsonName, arr);
+        json.addProperty(jsonName, DatatypeConverter.printBase64Binary(cells));
+        json.add(jsonName + "_palette", palette);
+    }
+
+    /**
+     * Build a signal for the cubic block grid centred on the player, as a packed bitset of block classes.<br>
+     * Cells are visited in the same order as buildGridData(), and packed least significant bits first, so that cell i is
+     * in byte (i * bitsPerCell) / 8. The result is returned as a base64 string.<br>
+     * With one bit per cell, a cell is 1 if it is solid or hazardous (see BlockGridSampler.getBlockClass()), and 0 if the player can move through it;
+     * with two bits per cell, it holds the block class itself.<br>
+     * Cells in chunks that aren't loaded are sent as solid - it's not safe to assume they can be moved through - and, if there are any,
+     * they are also marked in a one bit per cell bitset called jsonName + "_unknown".
+     * @param json a JSON object into which the grid will be added.
+     * @param environmentDimensions object which specifies the required dimensions of the grid to be returned.
+     * @param jsonName name to use for identifying the returned data.
+     * @param bitsPerCell 1 or 2.
+     */
+    public static void buildOccupancyGridData(JsonObject json, ImmediateEnvironmentDimensions environmentDimensions, EntityPlayerMP player, String jsonName, int bitsPerCell)
+    {
+        if (player == null || json == null)
+            return;
+
+        int numCells = environmentDimensions.getNumCells();
+        if (numCells <= 0)
+            return;
+
+        int[] blockIds = BlockGridSampler.sample(player.worldObj, player.getPosition(), environmentDimensions);
+        byte[] bits = new byte[(numCells * bitsPerCell + 7) / 8];
+        byte[] unknown = null;
+        for (int i = 0; i < numCells; i++)
+        {
+            int blockClass = BlockGridSampler.getBlockClass(blockIds[i]);
+            if (blockClass == BlockGridSampler.CLASS_UNKNOWN)
+            {
+                if (unknown == null)
+                    unknown = new byte[(numCells + 7) / 8];
+                unknown[i >> 3] |= (byte)(1 << (i & 7));
+                blockClass = BlockGridSampler.CLASS_SOLID;
+            }
+            if (bitsPerCell == 1)
+            {
+                if (blockClass == BlockGridSampler.CLASS_SOLID || blockClass == BlockGridSampler.CLASS_HAZARD)
+                    bits[i >> 3] |= (byte)(1 << (i & 7));
+            }
+            else
+            {
+                bits[i >> 2] |= (byte)(blockClass << (2 * (i & 3)));
+            }
+        }
+        json.addProperty(jsonName, DatatypeConverter.printBase64Binary(bits));
+        if (unknown != null)
+            json.addProperty(jsonName + "_unknown", DatatypeConverter.printBase64Binary(unknown));
     }
 }
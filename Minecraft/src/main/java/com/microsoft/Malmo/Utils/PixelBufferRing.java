@@ -0,0 +1,104 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+
+/** Ring of OpenGL pixel buffer objects, used to read frames back from the GPU without stalling the render thread.<br>
+ * Each call to readPixels() queues a glReadPixels into the next buffer in the ring - which returns immediately -
+ * and then maps the oldest buffer, whose transfer was queued (size - 1) frames ago and has long since completed.
+ * The price is (size - 1) frames of latency.
+ */
+public class PixelBufferRing
+{
+    private int[] pbos;
+    private int sizeInBytes;
+    private int index = 0;
+    private int framesQueued = 0;
+    private ByteBuffer mapped = null;
+
+    /** Create the ring - must be called on the render thread.
+     * @param size number of buffers in the ring (minimum two).
+     * @param sizeInBytes number of bytes each read will produce.
+     */
+    public PixelBufferRing(int size, int sizeInBytes)
+    {
+        this.pbos = new int[Math.max(2, size)];
+        this.sizeInBytes = sizeInBytes;
+        for (int i = 0; i < this.pbos.length; i++)
+        {
+            this.pbos[i] = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.pbos[i]);
+            GL15.glBufferData(GL21.GL_PIXEL_PACK_BUFFER, sizeInBytes, GL15.GL_STREAM_READ);
+        }
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /** Queue a read of the currently bound read framebuffer, and copy out the oldest completed read, if there is one yet.<br>
+     * The position of dest is left unchanged.
+     * @param width width of the region to read
+     * @param height height of the region to read
+     * @param format pixel format, eg GL_RGB
+     * @param type pixel type, eg GL_UNSIGNED_BYTE
+     * @param dest buffer to copy the completed frame into - must have at least sizeInBytes remaining.
+     * @return true if dest was filled; false if the ring is still filling up (ie for the first (size - 1) calls).
+     */
+    public boolean readPixels(int width, int height, int format, int type, ByteBuffer dest)
+    {
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.pbos[this.index]);
+        GL11.glReadPixels(0, 0, width, height, format, type, 0L);
+        this.index = (this.index + 1) % this.pbos.length;
+        if (this.framesQueued < this.pbos.length)
+            this.framesQueued++;
+
+        boolean filled = false;
+        if (this.framesQueued == this.pbos.length)
+        {
+            // The buffer we have just advanced to is the oldest in the ring:
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.pbos[this.index]);
+            this.mapped = GL15.glMapBuffer(GL21.GL_PIXEL_PACK_BUFFER, GL15.GL_READ_ONLY, this.sizeInBytes, this.mapped);
+            if (this.mapped != null)
+            {
+                this.mapped.clear();
+                int pos = dest.position();
+                dest.put(this.mapped);
+                dest.position(pos);
+                filled = true;
+            }
+            GL15.glUnmapBuffer(GL21.GL_PIXEL_PACK_BUFFER);
+        }
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+        return filled;
+    }
+
+    /** Release the GL buffers - must be called on the render thread, or we leak resources.
+     */
+    public void delete()
+    {
+        for (int i = 0; i < this.pbos.length; i++)
+            GL15.glDeleteBuffers(this.pbos[i]);
+        this.framesQueued = 0;
+        this.mapped = null;
+    }
+}
@@ -0,0 +1,74 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+
+/** Helpers for building the GLSL programs used by the video producers.<br>
+ * Must be called on the render thread.
+ */
+public class ShaderHelper
+{
+    /** Compile and link a program.
+     * @param vertexSource GLSL source of the vertex shader.
+     * @param fragmentSource GLSL source of the fragment shader.
+     * @return the linked program, or 0 if it failed to compile or link (the reason is printed).
+     */
+    public static int createProgram(String vertexSource, String fragmentSource)
+    {
+        int vertexShader = createShader(GL20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = createShader(GL20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = 0;
+        if (vertexShader != 0 && fragmentShader != 0)
+        {
+            program = GL20.glCreateProgram();
+            GL20.glAttachShader(program, vertexShader);
+            GL20.glAttachShader(program, fragmentShader);
+            GL20.glLinkProgram(program);
+            if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) == GL11.GL_FALSE)
+            {
+                System.out.println("Failed to link shader program: " + GL20.glGetProgramInfoLog(program, 1024));
+                GL20.glDeleteProgram(program);
+                program = 0;
+            }
+        }
+        // Once linked (or not), the program doesn't need the shader objects:
+        if (vertexShader != 0)
+            GL20.glDeleteShader(vertexShader);
+        if (fragmentShader != 0)
+            GL20.glDeleteShader(fragmentShader);
+        return program;
+    }
+
+    private static int createShader(int type, String source)
+    {
+        int shader = GL20.glCreateShader(type);
+        GL20.glShaderSource(shader, source);
+        GL20.glCompileShader(shader);
+        if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE)
+        {
+            System.out.println("Failed to compile shader: " + GL20.glGetShaderInfoLog(shader, 1024));
+            GL20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+}
@@ -0,0 +1,193 @@
+// --------------------------------------------------------------------------------------------------
+//  Copyright (c) 2016 Microsoft Corporation
+//  
+//  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+//  associated documentation files (the "Software"), to deal in the Software without restriction,
+//  including without limitation the rights to use, copy, modify, merge, publish, distribute,
+//  sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+//  furnished to do so, subject to the following conditions:
+//  
+//  The above copyright notice and this permission notice shall be included in all copies or
+//  substantial portions of the Software.
+//  
+//  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+//  NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+//  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+//  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// --------------------------------------------------------------------------------------------------
+
+package com.microsoft.Malmo.Utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Delivers video frames through a ring of slots in a memory-mapped file (eg under /dev/shm), for agents on the same machine.<br>
+ * The agent maps the same file and reads the frames in place, with no copying and no socket. The writer never waits for the reader -
+ * a reader that falls behind simply misses frames, which it can detect from the sequence numbers.<br>
+ * Layout, all values big-endian:<br>
+ * Control header (64 bytes): int magic (0x4D4C4D4F, "MLMO"), int version, int slot count, int slot size, long sequence number of the
+ * latest complete frame (0 if none yet), int state (1 while the mission is running, 2 once it has ended), 4 bytes padding,
+ * long sequence number of the last frame the reader has read (written by the reader), then reserved space.<br>
+ * Each slot: long sequence number of the frame it holds (0 while being written), int length, 4 bytes padding, then the frame data.<br>
+ * To read, take the latest sequence number s from the control header, and find slot (s mod slot count); the frame is valid if the slot's
+ * sequence number is s both before and after reading it - then write s into the reader's field of the control header, so that we know
+ * someone is listening. A reader that stops reading (eg while it trains) only misses frames - it never counts as a failed send. We just
+ * log it, once it has missed READER_STALL_FRAMES frames, and getFramesSinceRead() says how far behind it is.
+ */
+public class SharedMemoryFrameRing implements IFrameTransport
+{
+    public static final int MAGIC = 0x4D4C4D4F;
+    public static final int VERSION = 2;
+    public static final int CONTROL_HEADER_SIZE = 64;
+    public static final int SLOT_HEADER_SIZE = 16;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_ENDED = 2;
+    /** Number of frames we will write without the reader moving on before logging that it has stalled.*/
+    public static final int READER_STALL_FRAMES = 100;
+
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int STATE_OFFSET = 24;
+    private static final int READ_SEQUENCE_OFFSET = 32;
+
+    private String path;
+    private RandomAccessFile file;
+    private MappedByteBuffer mapped;
+    private int slotCount;
+    private int slotSize;
+    private long sequence = 0;
+    private long lastReadSequence = 0;
+    private volatile int framesSinceRead = 0;
+
+    /** Written after each batch of writes to the mapping - the volatile store stops the JIT moving our earlier stores past it,
+     * so the reader never sees a sequence number before the data it refers to.*/
+    private volatile long fence;
+
+    /** Create (or reuse) and map the file.
+     * @param path the file to map - eg "/dev/shm/malmo_video_10000".
+     * @param slotCount number of frames the ring holds.
+     * @param slotSize largest frame, in bytes.
+     * @throws IOException if the file can't be created or mapped.
+     */
+    public SharedMemoryFrameRing(String path, int slotCount, int slotSize) throws IOException
+    {
+        this.path = path;
+        this.slotCount = Math.max(2, slotCount);
+        this.slotSize = slotSize;
+        long size = CONTROL_HEADER_SIZE + (long)this.slotCount * (SLOT_HEADER_SIZE + slotSize);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Shared memory ring would be too large: " + size + " bytes");
+        this.file = new RandomAccessFile(path, "rw");
+        this.file.setLength(size);
+        this.mapped = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        for (int i = 0; i < this.slotCount; i++)
+            this.mapped.putLong(slotOffset(i), 0);
+        this.mapped.putInt(0, MAGIC);
+        this.mapped.putInt(4, VERSION);
+        this.mapped.putInt(SLOT_COUNT_OFFSET, this.slotCount);
+        this.mapped.putInt(SLOT_SIZE_OFFSET, slotSize);
+        this.mapped.putLong(SEQUENCE_OFFSET, 0);
+        this.mapped.putLong(READ_SEQUENCE_OFFSET, 0);
+        this.fence++;
+        this.mapped.putInt(STATE_OFFSET, STATE_RUNNING);
+    }
+
+    /** Synchronised with close(), so the mapping can't go away in the middle of a frame.*/
+    @Override
+    public synchronized boolean sendFrame(ByteBuffer buffer, int length)
+    {
+        if (this.mapped == null || length > this.slotSize)
+        {
+            System.out.println(String.format("Can't write %d byte frame to %s", length, this.path));
+            return false;
+        }
+        long seq = this.sequence + 1;
+        int slot = slotOffset((int)(seq % this.slotCount));
+
+        // Mark the slot as being written, so a reader that is still looking at its previous frame knows it has gone:
+        this.mapped.putLong(slot, 0);
+        this.fence++;
+        this.mapped.putInt(slot + 8, length);
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(frame.position() + length);
+        this.mapped.position(slot + SLOT_HEADER_SIZE);
+        this.mapped.put(frame);
+        this.fence++;
+        // Now publish it:
+        this.mapped.putLong(slot, seq);
+        this.fence++;
+        this.mapped.putLong(SEQUENCE_OFFSET, seq);
+        this.sequence = seq;
+        checkReader();
+        return true;
+    }
+
+    /** See whether the reader has moved on since we last looked.*/
+    private void checkReader()
+    {
+        long readSequence = this.mapped.getLong(READ_SEQUENCE_OFFSET);
+        if (readSequence != this.lastReadSequence)
+        {
+            if (this.framesSinceRead >= READER_STALL_FRAMES)
+                System.out.println("Video reader of " + this.path + " has caught up after missing " + this.framesSinceRead + " frames.");
+            this.lastReadSequence = readSequence;
+            this.framesSinceRead = 0;
+        }
+        else if (++this.framesSinceRead == READER_STALL_FRAMES)
+        {
+            System.out.println("Video reader of " + this.path + " hasn't read a frame for " + READER_STALL_FRAMES + " frames - it is missing frames.");
+        }
+    }
+
+    /** @return the number of frames written since the reader last moved on - for diagnostics only, a slow reader isn't a failure.*/
+    public int getFramesSinceRead()
+    {
+        return this.framesSinceRead;
+    }
+
+    @Override
+    public boolean isWaitingToRetry()
+    {
+        return false;   // Nothing to reconnect.
+    }
+
+    @Override
+    public int getFailureCount()
+    {
+        return 0;   // Writing to memory can't fail, and a reader that falls behind just misses frames.
+    }
+
+    /** Waits for any frame in progress to be written before unmapping.*/
+    @Override
+    public synchronized void close()
+    {
+        if (this.mapped != null)
+        {
+            this.fence++;
+            this.mapped.putInt(STATE_OFFSET, STATE_ENDED);
+            this.mapped.force();
+        }
+        this.mapped = null;
+        try
+        {
+            if (this.file != null)
+                this.file.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("WARNING: error closing " + this.path + ": " + e);
+        }
+        this.file = null;
+    }
+
+    private int slotOffset(int slot)
+    {
+        return CONTROL_HEADER_SIZE + slot * (SLOT_HEADER_SIZE + this.slotSize);
+    }
+}
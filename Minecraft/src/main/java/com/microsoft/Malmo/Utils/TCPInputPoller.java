@@ -26,10 +26,16 @@ import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Class which polls for TCP commands in the background, and makes them available via a thread-safe queue.<br>
- * Used for receiving control commands from the Malmo code.
+ * Used for receiving control commands from the Malmo code.<br>
+ * The queue is lock-free - the connection threads add to it, and the consumer takes from it, without ever waiting on each other.
+ * Use drainTo() to take everything that has arrived in one go. The poller also keeps count of the queue depth,
+ * and of how long commands wait between arriving and being taken off the queue.
  */
 public class TCPInputPoller extends Thread
 {
@@ -37,15 +43,24 @@ public class TCPInputPoller extends Thread
     {
         public String command;
         public String ipAddress;
+        /** System.nanoTime() when the command was queued.*/
+        public long timeQueued;
         CommandAndIPAddress(String command, String ipAddress)
         {
             this.command = command;
             this.ipAddress = ipAddress;
+            this.timeQueued = System.nanoTime();
         }
     }
 
     private boolean keepRunning = true;
-    private ArrayList<CommandAndIPAddress> commandQueue;
+    private ConcurrentLinkedQueue<CommandAndIPAddress> commandQueue = new ConcurrentLinkedQueue<CommandAndIPAddress>();
+    private AtomicInteger queueDepth = new AtomicInteger();	// ConcurrentLinkedQueue.size() walks the whole queue.
+    private AtomicInteger maxQueueDepth = new AtomicInteger();
+    private AtomicLong commandsDequeued = new AtomicLong();
+    private AtomicLong totalLatencyNanos = new AtomicLong();
+    private AtomicLong maxLatencyNanos = new AtomicLong();
+    private Object onCommandLock = new Object();	// Keeps calls to onCommand() in order - the queue itself needs no lock.
     private int requestedPortNumber;	// Can be 0, meaning allocate one dynamically.
     private int portRangeMin = -1;
     private int portRangeMax = -1;
@@ -60,10 +75,7 @@ public class TCPInputPoller extends Thread
      */
     public void addCommand(String s)
     {
-        synchronized(this)
-        {
-            this.commandQueue.add(new CommandAndIPAddress(s, ""));
-        }
+        enqueue(new CommandAndIPAddress(s, ""));
     }
 
     /** Create a new TCPInputPoller to sit and await messages on the specified port.
@@ -72,7 +84,6 @@ public class TCPInputPoller extends Thread
     public TCPInputPoller(int port)
     {
         this.requestedPortNumber = port;
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
     }
 
     /** Create a new TCPInputPoller to sit and await messages on a port which is dynamically allocated from a range.
@@ -86,7 +97,6 @@ public class TCPInputPoller extends Thread
         this.portRangeMax = portmax;
         this.portRangeMin = portmin;
         this.choosePortRandomly = choosePortRandomly;
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
     }
 
     /** Create a new TCPInputPoller to sit and await messages on the port which is either specified, or chosen from the range.
@@ -99,49 +109,105 @@ public class TCPInputPoller extends Thread
         this.requestedPortNumber = requestedPort;
         this.portRangeMax = Math.max(portmin,  portmax);
         this.portRangeMin = Math.min(portmin,  portmax);
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
     }
 
     /** Pop the oldest command from our list and return it.
-     * @return the oldest unhandled command in our list
+     * @return the oldest unhandled command in our list, or "" if there isn't one.
      */
     public String getCommand()
     {
-        String command = "";
-        synchronized(this)
-        {
-            if (commandQueue.size() > 0)
-            {
-                command = commandQueue.remove(0).command;
-            }
-        }
-        return command;
+        CommandAndIPAddress command = getCommandAndIPAddress();
+        return (command != null) ? command.command : "";
     }
 
     /** Remove all commands from the queue.
      */
     public void clearCommands()
     {
-        synchronized(this)
+        int count = 0;
+        while (this.commandQueue.poll() != null)	// Not dequeue() - these never get executed, so shouldn't count towards the latency.
         {
-            System.out.println("JETTISONING " + commandQueue.size() + " COMMANDS");
-            commandQueue.clear();
+            this.queueDepth.decrementAndGet();
+            count++;
         }
+        System.out.println("JETTISONING " + count + " COMMANDS");
     }
 
     /** Pop the oldest command from our list and return it.
-     * @return the oldest unhandled command in our list
+     * @return the oldest unhandled command in our list, or null if there isn't one.
      */
     public CommandAndIPAddress getCommandAndIPAddress()
     {
-        CommandAndIPAddress command = null;
-        synchronized(this)
+        return dequeue();
+    }
+
+    /** Take the waiting commands off the queue, oldest first, in one go.
+     * @param commands the collection to add the commands to.
+     * @param maxCommands the most commands to take.
+     * @return the number of commands taken.
+     */
+    public int drainTo(Collection<? super CommandAndIPAddress> commands, int maxCommands)
+    {
+        int count = 0;
+        CommandAndIPAddress command;
+        while (count < maxCommands && (command = dequeue()) != null)
         {
-            if (commandQueue.size() > 0)
-            {
-                command = commandQueue.remove(0);
-            }
+            commands.add(command);
+            count++;
         }
+        return count;
+    }
+
+    /** @return the number of commands currently waiting in the queue.*/
+    public int getQueueDepth() { return this.queueDepth.get(); }
+
+    /** @return the most commands that have been waiting in the queue at once, since the statistics were last reset.*/
+    public int getMaxQueueDepth() { return this.maxQueueDepth.get(); }
+
+    /** @return the number of commands taken off the queue since the statistics were last reset.*/
+    public long getCommandsDequeued() { return this.commandsDequeued.get(); }
+
+    /** @return the mean time, in milliseconds, between a command arriving and being taken off the queue, since the statistics were last reset.*/
+    public double getMeanLatencyMs()
+    {
+        long count = this.commandsDequeued.get();
+        return (count == 0) ? 0 : this.totalLatencyNanos.get() / (count * 1000000.0);
+    }
+
+    /** @return the longest time, in milliseconds, between a command arriving and being taken off the queue, since the statistics were last reset.*/
+    public double getMaxLatencyMs() { return this.maxLatencyNanos.get() / 1000000.0; }
+
+    /** Reset the queue depth and latency statistics.
+     */
+    public void resetStatistics()
+    {
+        this.maxQueueDepth.set(this.queueDepth.get());
+        this.commandsDequeued.set(0);
+        this.totalLatencyNanos.set(0);
+        this.maxLatencyNanos.set(0);
+    }
+
+    private void enqueue(CommandAndIPAddress command)
+    {
+        this.commandQueue.add(command);
+        int depth = this.queueDepth.incrementAndGet();
+        int max = this.maxQueueDepth.get();
+        while (depth > max && !this.maxQueueDepth.compareAndSet(max, depth))
+            max = this.maxQueueDepth.get();
+    }
+
+    private CommandAndIPAddress dequeue()
+    {
+        CommandAndIPAddress command = this.commandQueue.poll();
+        if (command == null)
+            return null;
+        this.queueDepth.decrementAndGet();
+        long latency = System.nanoTime() - command.timeQueued;
+        this.commandsDequeued.incrementAndGet();
+        this.totalLatencyNanos.addAndGet(latency);
+        long max = this.maxLatencyNanos.get();
+        while (latency > max && !this.maxLatencyNanos.compareAndSet(max, latency))
+            max = this.maxLatencyNanos.get();
         return command;
     }
 
@@ -227,13 +293,13 @@ public class TCPInputPoller extends Thread
 
     protected void commandReceived(String command, String ipOriginator, DataOutputStream dos)
     {
-        synchronized(this)
+        synchronized(this.onCommandLock)
         {
             if (onCommand(command, ipOriginator, dos))
             {
                 // Add this command to our list - the calling thread will
-                // retrieve it via getCommand().
-                commandQueue.add(new CommandAndIPAddress(command, ipOriginator));
+                // retrieve it via getCommand() or drainTo().
+                enqueue(new CommandAndIPAddress(command, ipOriginator));
             }
         }
     }
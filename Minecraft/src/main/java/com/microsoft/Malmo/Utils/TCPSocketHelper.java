@@ -21,11 +21,14 @@ package com.microsoft.Malmo.Utils;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -119,10 +122,18 @@ public class TCPSocketHelper
      */
     public boolean sendTCPString(String message)
     {
-        byte[] bytes = message.getBytes();
+        byte[] bytes;
+        try
+        {
+            bytes = message.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            bytes = message.getBytes();  // Can't happen - every JVM supports UTF-8.
+        }
         return sendTCPBytes(bytes);
     }
-    
+
     /** Send byte buffer over TCP, including a length header.
      * @param buffer the bytes to send
      * @return true if the message was sent successfully
@@ -191,28 +202,98 @@ public class TCPSocketHelper
     	return null;   // No port found in the allowed range.
     }
     
-    public static class SocketChannelHelper
+    /** Non-blocking channel for sending length-prefixed frames, used for the video and observation streams.<br>
+     * Writes are driven by a selector, and looped until the whole header and frame have gone, however short the individual writes are.
+     * If the connection fails, it is re-established with exponential backoff - starting at MIN_RETRY_GAP_MS and doubling up to MAX_RETRY_GAP_MS -
+     * so that a brief hiccup costs milliseconds rather than seconds.
+     */
+    public static class SocketChannelHelper implements IFrameTransport
     {
-    	SocketChannel channel;
+        /** Delay before the first reconnection attempt after a failure, in milliseconds. Doubles with each consecutive failure. */
+        public static final long MIN_RETRY_GAP_MS = 10;
+        /** Longest delay between reconnection attempts, in milliseconds. */
+        public static final long MAX_RETRY_GAP_MS = 5000;
+        /** Time allowed for a connection attempt, in milliseconds. */
+        public static final long CONNECT_TIMEOUT_MS = 1000;
+        /** Time a write may go without making any progress before we give up on the connection, in milliseconds. */
+        public static final long WRITE_STALL_TIMEOUT_MS = 5000;
+
+    	SocketChannel channel = null;
+    	Selector selector = null;
     	String address;
     	int port;
 
+    	private ByteBuffer header = ByteBuffer.allocateDirect(4).order(ByteOrder.BIG_ENDIAN);
+    	private ByteBuffer[] buffers = new ByteBuffer[2];
+    	private long retryGapMs = 0;
+    	private volatile long retryTimeMs = 0;
+    	private volatile int failureCount = 0;
+
     	public SocketChannelHelper(String address, int port)
     	{
     		this.address = address;
     		this.port = port;
+    		this.buffers[0] = this.header;
+    		if (!connect())
+    			onFailure();
+    	}
+
+    	@Override
+    	public void close()
+    	{
+    		closeChannel();
+    	}
 
+    	@Override
+    	public boolean sendFrame(ByteBuffer buffer, int length)
+    	{
+    		return sendTCPBytes(buffer, length);
+    	}
+
+    	/** @return true if the connection has failed and we are waiting for the backoff period to pass before trying again. */
+    	@Override
+    	public boolean isWaitingToRetry()
+    	{
+    		return System.currentTimeMillis() < this.retryTimeMs;
+    	}
+
+    	/** @return the number of consecutive failed attempts to connect or send - every attempt counts, however far the backoff has got.
+    	 * Calls made while waiting to retry aren't attempts, so don't count.
+    	 */
+    	@Override
+    	public int getFailureCount()
+    	{
+    		return this.failureCount;
+    	}
+
+    	private boolean connect()
+    	{
     		try
     		{
-				this.channel = SocketChannel.open(new InetSocketAddress(address, port));
-			}
+    			this.selector = Selector.open();
+    			this.channel = SocketChannel.open();
+    			this.channel.configureBlocking(false);
+    			if (!this.channel.connect(new InetSocketAddress(this.address, this.port)))
+    			{
+    				this.channel.register(this.selector, SelectionKey.OP_CONNECT);
+    				if (this.selector.select(CONNECT_TIMEOUT_MS) == 0)
+    					throw new IOException("Timed out connecting");
+    				this.selector.selectedKeys().clear();
+    				this.channel.finishConnect();
+    			}
+    			// From now on we are only interested in when the channel can take more data:
+    			this.channel.register(this.selector, SelectionKey.OP_WRITE);
+    			return true;
+    		}
     		catch (IOException e)
     		{
-				e.printStackTrace();
-			}
+    			System.out.println(String.format("Failed to connect to %s:%d - %s", this.address, this.port, e));
+    			closeChannel();
+    			return false;
+    		}
     	}
-    	
-    	public void close()
+
+    	private void closeChannel()
     	{
     		if (this.channel != null)
     		{
@@ -225,41 +306,106 @@ public class TCPSocketHelper
     				System.out.println("WARNING: error closing socket: " + e);
     			}
     		}
+    		if (this.selector != null)
+    		{
+    			try
+    			{
+    				this.selector.close();
+    			}
+    			catch (IOException e)
+    			{
+    				System.out.println("WARNING: error closing selector: " + e);
+    			}
+    		}
+    		this.channel = null;
+    		this.selector = null;
+    	}
+
+    	private void onFailure()
+    	{
+    		this.retryGapMs = (this.retryGapMs == 0) ? MIN_RETRY_GAP_MS : Math.min(this.retryGapMs * 2, MAX_RETRY_GAP_MS);
+    		this.retryTimeMs = System.currentTimeMillis() + this.retryGapMs;
+    		this.failureCount++;
+    		System.out.println(String.format("Will retry %s:%d in %dms", this.address, this.port, this.retryGapMs));
+    	}
+
+    	private void onSuccess()
+    	{
+    		this.retryGapMs = 0;
+    		this.failureCount = 0;
+    	}
+
+    	/** Write all the buffers in full, waiting on the selector whenever the socket's send buffer is full.
+    	 * @return the number of bytes written.
+    	 */
+    	private long writeFully(ByteBuffer[] buffers) throws IOException
+    	{
+    		long bytesWritten = 0;
+    		while (buffers[buffers.length - 1].hasRemaining() || buffers[0].hasRemaining())
+    		{
+    			long written = this.channel.write(buffers);
+    			bytesWritten += written;
+    			if (written == 0)
+    			{
+    				this.selector.selectedKeys().clear();
+    				if (this.selector.select(WRITE_STALL_TIMEOUT_MS) == 0)
+    					throw new IOException("Timed out waiting for the receiver to read");
+    			}
+    		}
+    		return bytesWritten;
     	}
-    	
-	    /** Send byte buffer over TCP, including a length header.
-	     * @param buffer the bytes to send
+
+	    /** Send byte buffer over TCP, including a length header.<br>
+	     * If the connection is down, it will be re-established first - unless we are still waiting to retry, in which case this fails immediately.
+	     * @param buffer the bytes to send, starting from the buffer's current position.
+	     * @param length the number of bytes to send.
 	     * @return true if the message was sent successfully
 	     */
         public boolean sendTCPBytes(ByteBuffer buffer, int length)
         {
+            if (this.channel == null)
+            {
+                if (isWaitingToRetry())
+                    return false;
+                if (!connect())
+                {
+                    onFailure();
+                    return false;
+                }
+            }
+
             boolean success = false;
             try
             {
-                ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(length);
-                header.flip();
-                ByteBuffer[] buffers = new ByteBuffer[2];
-                buffers[0] = header;
-                buffers[1] = buffer;
+                this.header.clear();
+                this.header.putInt(length);
+                this.header.flip();
+                buffer.limit(buffer.position() + length);
+                this.buffers[1] = buffer;
                 if (logging)
                 {
                     long t1 = System.nanoTime();
-                    long bytesWritten = this.channel.write(buffers);
+                    long bytesWritten = writeFully(this.buffers);
                     long t2 = System.nanoTime();
                     double rate = 1000.0 * 1000.0 * 1000.0 * (double)(bytesWritten) / (1024.0 * (double)(t2 - t1));
                     logger.log(Level.INFO, "Sent " + bytesWritten + " bytes to " + this.address + ":" + this.port + " at " + rate + " Kb/s");
                 }
                 else
                 {
-                    this.channel.write(buffers);
+                    writeFully(this.buffers);
                 }
                 success = true;
+                onSuccess();
             }
             catch (Exception e)
             {
                 System.out.println(String.format("Failed to send TCP bytes to %s:%d.", this.address, this.port));
                 System.out.println(e);
+                // Whatever state the stream is in now, the receiver can't make sense of it - start afresh.
+                closeChannel();
+                onFailure();
             }
+            this.buffers[1] = null;
             return success;
         }
     }